@@ -0,0 +1,203 @@
+package net.berthereau.exlibris.rta;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+
+import com.exlibris.primo.api.common.IMappingTablesFetcher;
+import com.exlibris.primo.api.common.IPrimoLogger;
+import com.exlibris.primo.api.plugins.rta.HoldingStatus;
+import com.exlibris.primo.api.plugins.rta.Library;
+import com.exlibris.primo.api.plugins.rta.RTARequest;
+
+/**
+ * Builds the plugins, responses and requests used by the benchmarks, without
+ * access to Primo nor to a remote system.
+ */
+class BenchmarkFixtures {
+
+    /**
+     * A logger that doesn't output anything, so the benchmarks measure the
+     * plugin only.
+     */
+    static class SilentLogger implements IPrimoLogger {
+        @Override
+        public void setClass(Class<?> clazz) {
+        }
+
+        @Override
+        public void info(String msg) {
+        }
+
+        @Override
+        public void warn(String msg) {
+        }
+
+        @Override
+        public void warn(String msg, Exception e) {
+        }
+
+        @Override
+        public void error(String msg) {
+        }
+
+        @Override
+        public void error(String msg, Exception e) {
+        }
+    }
+
+    /**
+     * Size of the responses, as number of records and items by record.
+     */
+    enum ResponseSize {
+        // A record of a brief result.
+        small(1, 2),
+        // A page of results.
+        medium(10, 5),
+        // A serial with many issues.
+        serial(1, 500);
+
+        final int records;
+        final int items;
+
+        ResponseSize(int records, int items) {
+            this.records = records;
+            this.items = items;
+        }
+    }
+
+    private BenchmarkFixtures() {
+    }
+
+    /**
+     * Prepare a plugin with the default parameters, except the specified ones.
+     *
+     * @param settings
+     * @return StandardFlossPhysicalRTAPlugin
+     */
+    static StandardFlossPhysicalRTAPlugin newPlugin(Map<String, String> settings) {
+        Map<String, Object> params = new Hashtable<>();
+        params.put("SourceSystem", "ILS-DI");
+        params.put("IdentifierXpath", "record/control/sourcerecordid");
+        params.putAll(settings);
+
+        StandardFlossPhysicalRTAPlugin plugin = new StandardFlossPhysicalRTAPlugin();
+        plugin.init(new SilentLogger(), new IMappingTablesFetcher() {
+            @Override
+            public List<Map<String, String>> getTableRows(String tableName) {
+                return Collections.emptyList();
+            }
+        }, params);
+        return plugin;
+    }
+
+    /**
+     * Prepare a plugin for the specified levels.
+     *
+     * @param idType
+     * @param returnType
+     * @param parser
+     * @return StandardFlossPhysicalRTAPlugin
+     */
+    static StandardFlossPhysicalRTAPlugin newPlugin(String idType, String returnType, String parser) {
+        Map<String, String> settings = new HashMap<>();
+        settings.put("IdType", idType);
+        settings.put("ReturnType", returnType);
+        settings.put("Parser", parser);
+        return newPlugin(settings);
+    }
+
+    /**
+     * Build a DLF SimpleAvailability response at the level of the record.
+     *
+     * @param records
+     * @return String
+     */
+    static String buildBibResponse(int records) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n")
+                .append("<dlf:collection xmlns:dlf=\"http://diglib.org/ilsdi/1.1\">\n");
+        for (int i = 1; i <= records; i++) {
+            builder.append("  <dlf:record>\n")
+                    .append("    <dlf:bibliographic id=\"").append(i).append("\" />\n")
+                    .append("    <dlf:simpleavailability>\n")
+                    .append("      <dlf:identifier>").append(i).append("</dlf:identifier>\n")
+                    .append("      <dlf:availabilitystatus>")
+                    .append(i % 3 == 0 ? "available" : "not available")
+                    .append("</dlf:availabilitystatus>\n")
+                    .append("    </dlf:simpleavailability>\n")
+                    .append("  </dlf:record>\n");
+        }
+        builder.append("</dlf:collection>\n");
+        return builder.toString();
+    }
+
+    /**
+     * Build a DLF SimpleAvailability response at the level of the items.
+     *
+     * @param records
+     * @param items
+     *            Number of items by record.
+     * @return String
+     */
+    static String buildItemResponse(int records, int items) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n")
+                .append("<dlf:collection xmlns:dlf=\"http://diglib.org/ilsdi/1.1\">\n");
+        for (int i = 1; i <= records; i++) {
+            builder.append("  <dlf:record>\n")
+                    .append("    <dlf:bibliographic id=\"").append(i).append("\" />\n")
+                    .append("    <dlf:items>\n");
+            for (int j = 1; j <= items; j++) {
+                builder.append("      <dlf:item id=\"").append(i).append('-').append(j).append("\">\n")
+                        .append("        <dlf:simpleavailability>\n")
+                        .append("          <dlf:identifier>").append(i).append('-').append(j)
+                        .append("</dlf:identifier>\n")
+                        .append("          <dlf:availabilitystatus>")
+                        .append(j % 3 == 0 ? "available" : "not available")
+                        .append("</dlf:availabilitystatus>\n")
+                        .append("          <dlf:location>Library</dlf:location>\n")
+                        .append("        </dlf:simpleavailability>\n")
+                        .append("      </dlf:item>\n");
+            }
+            builder.append("    </dlf:items>\n")
+                    .append("  </dlf:record>\n");
+        }
+        builder.append("</dlf:collection>\n");
+        return builder.toString();
+    }
+
+    /**
+     * Build a batch of rta requests as sent by Primo for a page of results.
+     *
+     * Each record is held by one to three libraries, and the libraries belong
+     * to the specified number of institutions.
+     *
+     * @param records
+     * @param institutions
+     * @return List of rta requests.
+     */
+    static List<RTARequest> buildRtaRequests(int records, int institutions) {
+        List<RTARequest> rtaRequests = new ArrayList<>(records);
+        for (int i = 1; i <= records; i++) {
+            RTARequest rtaRequest = new RTARequest();
+            rtaRequest.setPrimoRecordId("primo" + i);
+            rtaRequest.setRecordIdentifier(String.valueOf(100000 + i));
+            List<Library> libraries = new ArrayList<>();
+            for (int j = 0; j <= i % 3; j++) {
+                Library library = new Library();
+                library.setInstitution("INST" + (i + j) % institutions);
+                library.setLibraryCode("LIB" + j);
+                library.setHoldingStatus(HoldingStatus.CHECKHOLDING);
+                library.setRtaBaseURL("http://ils" + (i + j) % institutions + ".example.org/cgi-bin/koha/ilsdi.pl");
+                libraries.add(library);
+            }
+            rtaRequest.setLibraries(libraries);
+            rtaRequests.add(rtaRequest);
+        }
+        return rtaRequests;
+    }
+}
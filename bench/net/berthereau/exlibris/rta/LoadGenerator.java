@@ -0,0 +1,468 @@
+package net.berthereau.exlibris.rta;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import net.berthereau.exlibris.rta.test.IlsdiStubServer;
+
+import com.exlibris.primo.api.plugins.rta.HoldingStatus;
+import com.exlibris.primo.api.plugins.rta.Library;
+import com.exlibris.primo.api.plugins.rta.RTARequest;
+
+/**
+ * Sends batches of rta requests to the plugin, as Primo does, and reports the
+ * throughput and the latencies, so the number of checks by second that a node
+ * can manage is known.
+ *
+ * The batches are built from a capture of the real traffic (see the param
+ * CaptureFile), or from a synthetic model, where the popularity of the records
+ * follows a Zipf distribution, as for the searches of a catalog. They are sent
+ * at a target rate, or by a fixed number of threads that send a new batch as
+ * soon as the previous one is done. At a target rate, the latency is measured
+ * from the time when the batch should have been sent, so a slow plugin is not
+ * hidden by a slower rate.
+ *
+ * The remote systems are simulated by an embedded ILS-DI server, that returns
+ * the captured responses when there are some. The recorded remote systems can
+ * be requested too, with care.
+ *
+ * The options are set as "name=value":
+ * <ul>
+ * <li>trace: Path of a capture to replay. Default is none (synthetic model).
+ * </li>
+ * <li>records: Number of distinct records of the synthetic model. Default is
+ * 100000.</li>
+ * <li>zipf: Exponent of the Zipf distribution, 0 for a uniform one. Default is
+ * 1.</li>
+ * <li>batch: Number of records by batch, as a page of results. Default is 10.
+ * </li>
+ * <li>institutions: Number of remote systems. Default is 3.</li>
+ * <li>libraries: Maximum number of libraries by record. Default is 2.</li>
+ * <li>target: "stub" (default) or "remote" to request the recorded remote
+ * systems of the capture.</li>
+ * <li>latency, latencyP99: Median and 99th percentile of the response times
+ * of the embedded server, in milliseconds. Default are 20 and 100.</li>
+ * <li>errorRate: Percentage of http errors of the embedded server. Default is
+ * 0.</li>
+ * <li>rate: Number of batches by second. Default is 0 (fixed concurrency).
+ * </li>
+ * <li>concurrency: Number of threads that send the batches. Default is 8.</li>
+ * <li>warmup, duration: In seconds. Default are 5 and 30.</li>
+ * </ul>
+ * The options that start with an uppercase letter are params of the plugin,
+ * for example "Parallel=true".
+ */
+public class LoadGenerator {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Source of the batches of rta requests, used by multiple threads.
+     */
+    interface Workload {
+        /**
+         * @return A new batch, with libraries to update.
+         */
+        List<RTARequest> next();
+    }
+
+    /**
+     * Records whose popularity follows a Zipf distribution, each one being
+     * held by one or more libraries of some institutions.
+     */
+    static class SyntheticWorkload implements Workload {
+        private final double[] cumulative;
+        private final int batchSize;
+        private final int maxLibraries;
+        private final String[] rtaBaseUrls;
+
+        /**
+         * @param records
+         * @param exponent
+         * @param batchSize
+         * @param maxLibraries
+         * @param rtaBaseUrls
+         *            One by institution.
+         */
+        SyntheticWorkload(int records, double exponent, int batchSize, int maxLibraries, String[] rtaBaseUrls) {
+            this.cumulative = new double[records];
+            double sum = 0;
+            for (int i = 0; i < records; i++) {
+                sum += 1 / Math.pow(i + 1, exponent);
+                cumulative[i] = sum;
+            }
+            for (int i = 0; i < records; i++) {
+                cumulative[i] /= sum;
+            }
+            this.batchSize = Math.min(batchSize, records);
+            this.maxLibraries = Math.max(1, maxLibraries);
+            this.rtaBaseUrls = rtaBaseUrls;
+        }
+
+        @Override
+        public List<RTARequest> next() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            // The records of a page of results are distinct.
+            Set<Integer> ranks = new LinkedHashSet<>();
+            while (ranks.size() < batchSize) {
+                int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+                ranks.add(Math.min(rank < 0 ? -rank - 1 : rank, cumulative.length - 1));
+            }
+
+            List<RTARequest> rtaRequests = new ArrayList<>(batchSize);
+            for (int rank : ranks) {
+                List<Library> libraries = new ArrayList<>();
+                // The holdings of a record don't change between the batches.
+                for (int j = 0, num = 1 + rank % maxLibraries; j < num; j++) {
+                    int institution = (rank + j) % rtaBaseUrls.length;
+                    libraries.add(newLibrary("INST" + institution, "LIB" + j, rtaBaseUrls[institution]));
+                }
+                rtaRequests.add(newRtaRequest(rank + "primo", String.valueOf(rank), libraries));
+            }
+            return rtaRequests;
+        }
+    }
+
+    /**
+     * The batches of a capture, replayed in order and in loop.
+     */
+    static class TraceWorkload implements Workload {
+        // For each batch, the fields of the records and of their libraries.
+        private final List<List<List<String>>> batches = new ArrayList<>();
+        private final Map<String, String> responses = new HashMap<>();
+        // The recorded rta base urls and the requested ones.
+        private final Map<String, String> rtaBaseUrls = new LinkedHashMap<>();
+        private final AtomicInteger index = new AtomicInteger();
+
+        /**
+         * @param file
+         * @throws IOException
+         */
+        TraceWorkload(String file) throws IOException {
+            List<List<String>> batch = null;
+            try (BufferedReader reader = Files.newBufferedReader(Paths.get(file), UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    List<String> fields = RequestCapture.parseLine(line);
+                    switch (fields.get(0)) {
+                        case RequestCapture.BATCH:
+                            batch = new ArrayList<>();
+                            batches.add(batch);
+                            break;
+                        case RequestCapture.RECORD:
+                        case RequestCapture.LIBRARY:
+                            if (batch == null) {
+                                break;
+                            }
+                            batch.add(fields);
+                            if (fields.get(0).equals(RequestCapture.LIBRARY) && fields.size() > 3) {
+                                rtaBaseUrls.put(fields.get(3), fields.get(3));
+                            }
+                            break;
+                        case RequestCapture.RESPONSE:
+                            if (fields.size() > 3) {
+                                int pos = fields.get(2).indexOf('?');
+                                responses.put(fields.get(2).substring(pos + 1), fields.get(3));
+                            }
+                            break;
+                        default:
+                            // A line written partially during a crash.
+                    }
+                }
+            }
+            if (batches.isEmpty()) {
+                throw new IOException("No batch in the capture [" + file + "].");
+            }
+        }
+
+        /**
+         * Request the embedded server instead of the recorded remote systems,
+         * with the recorded responses.
+         *
+         * @param stubServer
+         * @return void
+         */
+        void useStubServer(IlsdiStubServer stubServer) {
+            int i = 0;
+            for (Map.Entry<String, String> entry : rtaBaseUrls.entrySet()) {
+                entry.setValue(stubServer.getBaseUrl() + "institution" + i++ + "/");
+            }
+            for (Map.Entry<String, String> entry : responses.entrySet()) {
+                stubServer.setRecordedResponse(entry.getKey(), entry.getValue());
+            }
+        }
+
+        int size() {
+            return batches.size();
+        }
+
+        @Override
+        public List<RTARequest> next() {
+            List<List<String>> batch = batches.get((index.getAndIncrement() & Integer.MAX_VALUE) % batches.size());
+            List<RTARequest> rtaRequests = new ArrayList<>();
+            List<Library> libraries = null;
+            for (List<String> fields : batch) {
+                if (fields.get(0).equals(RequestCapture.RECORD)) {
+                    libraries = new ArrayList<>();
+                    rtaRequests.add(newRtaRequest(field(fields, 1), field(fields, 2), libraries));
+                }
+                else if (libraries != null) {
+                    libraries.add(newLibrary(field(fields, 1), field(fields, 2),
+                            rtaBaseUrls.get(field(fields, 3))));
+                }
+            }
+            return rtaRequests;
+        }
+
+        private static String field(List<String> fields, int index) {
+            return index < fields.size() ? fields.get(index) : "";
+        }
+    }
+
+    /**
+     * Counters and latencies of the batches.
+     */
+    static class Report {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final AtomicLong batches = new AtomicLong();
+        final AtomicLong records = new AtomicLong();
+        final AtomicLong libraries = new AtomicLong();
+        final AtomicLong notUpdated = new AtomicLong();
+        volatile long duration;
+
+        void record(List<RTARequest> rtaRequests, long latency) {
+            latencies.record(latency);
+            batches.incrementAndGet();
+            records.addAndGet(rtaRequests.size());
+            for (RTARequest rtaRequest : rtaRequests) {
+                for (Library library : rtaRequest.getLibraries()) {
+                    libraries.incrementAndGet();
+                    if (library.getHoldingStatus() == HoldingStatus.CHECKHOLDING) {
+                        notUpdated.incrementAndGet();
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return Number of batches by second.
+         */
+        double getThroughput() {
+            return duration <= 0 ? 0 : batches.get() * 1e9 / duration;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = duration / 1e9;
+            return String.format(Locale.ROOT, "Batches: %d (%.1f/s), records: %d (%.1f/s), libraries: %d,"
+                    + " not updated: %d%nLatency (ms): p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f",
+                    batches.get(), batches.get() / seconds, records.get(), records.get() / seconds,
+                    libraries.get(), notUpdated.get(), latencies.percentile(50), latencies.percentile(90),
+                    latencies.percentile(99), latencies.percentile(99.9), latencies.percentile(100));
+        }
+    }
+
+    private LoadGenerator() {
+    }
+
+    /**
+     * Send batches to the plugin at a target rate.
+     *
+     * The batches are queued when the plugin is slower than the rate, so the
+     * latency includes the wait.
+     *
+     * @param plugin
+     * @param workload
+     * @param rate
+     *            Number of batches by second.
+     * @param concurrency
+     *            Number of threads that send the batches.
+     * @param duration
+     *            In milliseconds.
+     * @return Report
+     * @throws InterruptedException
+     */
+    static Report runAtRate(final StandardFlossPhysicalRTAPlugin plugin, final Workload workload, double rate,
+            int concurrency, long duration) throws InterruptedException {
+        final Report report = new Report();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(duration);
+        for (long next = start; next < end; next += interval) {
+            final long scheduled = next;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    send(plugin, workload, report, scheduled);
+                }
+            });
+            LockSupport.parkNanos(next + interval - System.nanoTime());
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        report.duration = System.nanoTime() - start;
+        return report;
+    }
+
+    /**
+     * Send batches to the plugin with a fixed number of threads, each one
+     * sending a new batch as soon as the previous one is done.
+     *
+     * @param plugin
+     * @param workload
+     * @param concurrency
+     *            Number of threads that send the batches.
+     * @param duration
+     *            In milliseconds.
+     * @return Report
+     * @throws InterruptedException
+     */
+    static Report runWithConcurrency(final StandardFlossPhysicalRTAPlugin plugin, final Workload workload,
+            int concurrency, long duration) throws InterruptedException {
+        final Report report = new Report();
+        long start = System.nanoTime();
+        final long end = start + TimeUnit.MILLISECONDS.toNanos(duration);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    while (System.nanoTime() < end) {
+                        send(plugin, workload, report, System.nanoTime());
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        report.duration = System.nanoTime() - start;
+        return report;
+    }
+
+    private static void send(StandardFlossPhysicalRTAPlugin plugin, Workload workload, Report report,
+            long scheduled) {
+        List<RTARequest> rtaRequests = workload.next();
+        plugin.updateAvailability(rtaRequests);
+        report.record(rtaRequests, System.nanoTime() - scheduled);
+    }
+
+    private static RTARequest newRtaRequest(String primoRecordId, String recordIdentifier,
+            List<Library> libraries) {
+        RTARequest rtaRequest = new RTARequest();
+        rtaRequest.setPrimoRecordId(primoRecordId);
+        rtaRequest.setRecordIdentifier(recordIdentifier);
+        rtaRequest.setLibraries(libraries);
+        return rtaRequest;
+    }
+
+    private static Library newLibrary(String institution, String libraryCode, String rtaBaseUrl) {
+        Library library = new Library();
+        library.setInstitution(institution);
+        library.setLibraryCode(libraryCode);
+        library.setHoldingStatus(HoldingStatus.CHECKHOLDING);
+        library.setRtaBaseURL(rtaBaseUrl);
+        return library;
+    }
+
+    /**
+     * Run the load and print the report.
+     *
+     * @param args
+     *            Options as "name=value".
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        Map<String, String> params = new HashMap<>();
+        for (String arg : args) {
+            int pos = arg.indexOf('=');
+            if (pos <= 0) {
+                System.err.println("Options should be set as \"name=value\": [" + arg + "].");
+                System.exit(1);
+            }
+            String name = arg.substring(0, pos);
+            (Character.isUpperCase(name.charAt(0)) ? params : options).put(name, arg.substring(pos + 1));
+        }
+
+        // Else the small responses of the embedded server wait for the delayed
+        // acknowledgements, that is about 40 ms by request.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+
+        IlsdiStubServer stubServer = new IlsdiStubServer();
+        stubServer.setLatency(getLong(options, "latency", 20), getLong(options, "latencyP99", 100))
+                .setErrorRate((int) getLong(options, "errorRate", 0));
+        stubServer.start();
+        try {
+            Workload workload;
+            String trace = options.get("trace");
+            if (trace != null) {
+                TraceWorkload traceWorkload = new TraceWorkload(trace);
+                if (!"remote".equals(options.get("target"))) {
+                    traceWorkload.useStubServer(stubServer);
+                }
+                System.out.println("Replay of " + traceWorkload.size() + " batches of [" + trace + "].");
+                workload = traceWorkload;
+            }
+            else {
+                String[] rtaBaseUrls = new String[(int) Math.max(1, getLong(options, "institutions", 3))];
+                for (int i = 0; i < rtaBaseUrls.length; i++) {
+                    rtaBaseUrls[i] = stubServer.getBaseUrl() + "institution" + i + "/";
+                }
+                workload = new SyntheticWorkload((int) getLong(options, "records", 100000),
+                        Double.parseDouble(options.containsKey("zipf") ? options.get("zipf") : "1"),
+                        (int) getLong(options, "batch", 10), (int) getLong(options, "libraries", 2),
+                        rtaBaseUrls);
+            }
+
+            StandardFlossPhysicalRTAPlugin plugin = BenchmarkFixtures.newPlugin(params);
+            double rate = Double.parseDouble(options.containsKey("rate") ? options.get("rate") : "0");
+            int concurrency = (int) Math.max(1, getLong(options, "concurrency", 8));
+
+            // The warmup compiles the code and fills the caches and the pools.
+            String[] phases = { "Warmup", "Measure" };
+            long[] durations = { getLong(options, "warmup", 5), getLong(options, "duration", 30) };
+            for (int i = 0; i < phases.length; i++) {
+                if (durations[i] <= 0) {
+                    continue;
+                }
+                long duration = TimeUnit.SECONDS.toMillis(durations[i]);
+                Report report = rate > 0
+                        ? runAtRate(plugin, workload, rate, concurrency, duration)
+                        : runWithConcurrency(plugin, workload, concurrency, duration);
+                System.out.println(phases[i] + ":\n" + report);
+            }
+            System.out.println("Requests to the embedded server: " + stubServer.getRequests() + ".");
+        } finally {
+            stubServer.stop();
+        }
+    }
+
+    private static long getLong(Map<String, String> options, String name, long defaultValue) {
+        String value = options.get(name);
+        return value == null || value.isEmpty() ? defaultValue : Long.parseLong(value);
+    }
+}
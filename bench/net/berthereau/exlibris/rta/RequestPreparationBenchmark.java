@@ -0,0 +1,92 @@
+package net.berthereau.exlibris.rta;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.exlibris.primo.api.plugins.rta.Library;
+import com.exlibris.primo.api.plugins.rta.RTARequest;
+
+/**
+ * Measures the preparation of the requests sent to the remote systems: the
+ * sort of the rta requests by institution, the conversion of the statuses and
+ * the build of the urls.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestPreparationBenchmark {
+
+    // Number of records in a batch of Primo, as a brief result or a full page.
+    @Param({ "10", "50" })
+    public int records;
+
+    @Param({ "1", "3" })
+    public int institutions;
+
+    private static final String[] STATUSES = {
+        "available", "not available", "possibly available", "unknown", "lost",
+    };
+
+    private AvailabilityChecker checker;
+    private List<RTARequest> rtaRequests;
+    private Set<String> recordIds;
+    private String rtaBaseUrl;
+    private String url;
+
+    @Setup
+    public void setUp() {
+        checker = BenchmarkFixtures.newPlugin("bib", "item", "xpath").getChecker();
+        rtaRequests = BenchmarkFixtures.buildRtaRequests(records, institutions);
+
+        Map<String, Map<String, List<Library>>> recordsByInstitution = checker.sortRecordsByInstitution(rtaRequests);
+        rtaBaseUrl = recordsByInstitution.keySet().iterator().next();
+        recordIds = new LinkedHashSet<>(recordsByInstitution.get(rtaBaseUrl).keySet());
+        url = checker.getUrls().buildAvailabilityUrl(recordIds, rtaBaseUrl);
+    }
+
+    @Benchmark
+    public Map<String, Map<String, List<Library>>> sortRecordsByInstitution() {
+        return checker.sortRecordsByInstitution(rtaRequests);
+    }
+
+    @Benchmark
+    public void convertStatus(Blackhole blackhole) {
+        for (String status : STATUSES) {
+            blackhole.consume(AvailabilityILSDI2Primo.convert(status));
+        }
+    }
+
+    @Benchmark
+    public String buildAvailabilityUrl() {
+        return checker.getUrls().buildAvailabilityUrl(recordIds, rtaBaseUrl);
+    }
+
+    @Benchmark
+    public String joinList() {
+        return checker.getUrls().joinList(recordIds, "+");
+    }
+
+    @Benchmark
+    public String checkUrl() {
+        return checker.getUrls().checkUrl(url);
+    }
+}
@@ -0,0 +1,69 @@
+package net.berthereau.exlibris.rta;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.berthereau.exlibris.rta.BenchmarkFixtures.ResponseSize;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.exlibris.primo.api.plugins.rta.HoldingStatus;
+
+/**
+ * Measures the conversion of a response of the remote system into the
+ * availability of the records, for each level and each parser.
+ *
+ * Run with the gc profiler to get the allocation by response too (see the
+ * readme).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseDecodingBenchmark {
+
+    // IdType and ReturnType.
+    @Param({ "bib-bib", "bib-item", "item-item" })
+    public String levels;
+
+    @Param({ "small", "medium", "serial" })
+    public String size;
+
+    @Param({ "xpath", "stax" })
+    public String parser;
+
+    private AvailabilityChecker checker;
+    private String response;
+
+    @Setup
+    public void setUp() {
+        String[] types = levels.split("-");
+        checker = BenchmarkFixtures.newPlugin(types[0], types[1], parser).getChecker();
+
+        ResponseSize responseSize = ResponseSize.valueOf(size);
+        response = types[1].equals("bib")
+                ? BenchmarkFixtures.buildBibResponse(responseSize.records)
+                : BenchmarkFixtures.buildItemResponse(responseSize.records, responseSize.items);
+
+        if (checker.getParser().readAvailabilityResponse(response) == null) {
+            throw new IllegalStateException("The response cannot be decoded for [" + levels + "].");
+        }
+    }
+
+    @Benchmark
+    public Map<String, HoldingStatus> readAvailabilityResponse() {
+        return checker.getParser().readAvailabilityResponse(response);
+    }
+}
@@ -0,0 +1,86 @@
+package net.berthereau.exlibris.rta;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Compares the cost of the parsing of a response with a new xml parser by
+ * response (previous process) and with the parser prepared once by thread.
+ *
+ * Run it with: java -cp bin net.berthereau.exlibris.rta.XmlParsingBenchmark
+ * [records] [items by record] [iterations]
+ *
+ * The allocation by response is measured for the current thread only, via the
+ * management extension of the HotSpot virtual machine.
+ */
+public class XmlParsingBenchmark {
+
+    private interface Parse {
+        Document parse(String xmlString) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int items = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+
+        final String response = BenchmarkFixtures.buildItemResponse(records, items);
+        final XmlProcessorPool xmlProcessors = new XmlProcessorPool();
+
+        System.out.println("Response of " + records + " records with " + items + " items ("
+                + response.length() + " chars), " + iterations + " iterations.");
+
+        run("new factory by response", response, iterations, new Parse() {
+            @Override
+            public Document parse(String xmlString) throws ParserConfigurationException, SAXException, IOException {
+                DocumentBuilderFactory xmlFactory = DocumentBuilderFactory.newInstance();
+                xmlFactory.setNamespaceAware(true);
+                DocumentBuilder builder = xmlFactory.newDocumentBuilder();
+                return builder.parse(new InputSource(new StringReader(xmlString)));
+            }
+        });
+
+        run("parser by thread", response, iterations, new Parse() {
+            @Override
+            public Document parse(String xmlString) throws SAXException, IOException {
+                return xmlProcessors.get().parse(xmlString);
+            }
+        });
+    }
+
+    private static void run(String name, String response, int iterations, Parse parse) throws Exception {
+        // Warm up the compiler.
+        for (int i = 0; i < iterations; i++) {
+            parse.parse(response);
+        }
+
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            parse.parse(response);
+        }
+        long duration = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        System.out.println(String.format("%-26s %10.2f us/response %12d bytes/response",
+                name + ":", duration / 1000.0 / iterations, allocated / iterations));
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threadMXBean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0L;
+    }
+}
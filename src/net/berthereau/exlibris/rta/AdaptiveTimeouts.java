@@ -0,0 +1,166 @@
+package net.berthereau.exlibris.rta;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes the timeouts of each remote system from its usual response times,
+ * so a fast remote system that stalls is abandoned quickly, without cutting
+ * off a slow one that responds normally.
+ *
+ * The timeout to connect derives from the last durations of the connections,
+ * and the timeout to read from the last durations between the connection and
+ * the first byte of the response, that is the wait for the remote system.
+ *
+ * A request that times out is recorded too, with the timeout as duration,
+ * because the remote system was at least as slow. So the timeouts follow a
+ * remote system that becomes slower, and, to recover quickly, they are doubled
+ * after consecutive timeouts until a request succeeds, up to the maximum.
+ */
+class AdaptiveTimeouts {
+
+    // A single timeout may be a stall, so the timeouts are kept.
+    private static final int TIMEOUTS_BEFORE_WIDENING = 2;
+
+    private final EndpointLatencies connectLatencies;
+    private final EndpointLatencies readLatencies;
+    private final int percentile;
+    private final double multiplier;
+    private final int minTimeout;
+    private final int maxTimeout;
+    private final int minSamples;
+    private final int defaultConnectTimeout;
+    private final int defaultReadTimeout;
+
+    // Number of timeouts since the last successful request, by remote system.
+    private final ConcurrentMap<String, AtomicInteger> consecutiveTimeouts = new ConcurrentHashMap<>();
+
+    /**
+     * @param percentile
+     *            Percentile of the last durations used, from 1 to 100.
+     * @param multiplier
+     *            Factor applied to the percentile.
+     * @param minTimeout
+     *            In milliseconds.
+     * @param maxTimeout
+     *            In milliseconds.
+     * @param minSamples
+     *            Number of durations needed before the timeouts are adapted.
+     * @param defaultConnectTimeout
+     *            Used until there are enough durations, in milliseconds.
+     * @param defaultReadTimeout
+     *            Used until there are enough durations, in milliseconds.
+     */
+    AdaptiveTimeouts(int percentile, double multiplier, int minTimeout, int maxTimeout, int minSamples,
+            int defaultConnectTimeout, int defaultReadTimeout) {
+        this.connectLatencies = new EndpointLatencies(100);
+        this.readLatencies = new EndpointLatencies(100);
+        this.percentile = percentile;
+        this.multiplier = multiplier;
+        this.minTimeout = minTimeout;
+        this.maxTimeout = Math.max(minTimeout, maxTimeout);
+        this.minSamples = minSamples;
+        this.defaultConnectTimeout = defaultConnectTimeout;
+        this.defaultReadTimeout = defaultReadTimeout;
+    }
+
+    /**
+     * Record the durations of a successful request.
+     *
+     * @param rtaBaseUrl
+     * @param handle
+     * @return void
+     */
+    void record(String rtaBaseUrl, HttpRequestHandle handle) {
+        long connectTime = handle.getConnectTime();
+        if (connectTime >= 0) {
+            connectLatencies.record(rtaBaseUrl, TimeUnit.NANOSECONDS.toMillis(connectTime));
+        }
+        long firstByteTime = handle.getFirstByteTime();
+        if (firstByteTime >= 0) {
+            readLatencies.record(rtaBaseUrl, TimeUnit.NANOSECONDS.toMillis(firstByteTime));
+        }
+        AtomicInteger timeouts = consecutiveTimeouts.get(rtaBaseUrl);
+        if (timeouts != null) {
+            timeouts.set(0);
+        }
+    }
+
+    /**
+     * Record a request that timed out: the timeout of the step that was not
+     * finished is the shortest duration it would have taken.
+     *
+     * @param rtaBaseUrl
+     * @param handle
+     * @return void
+     */
+    void recordTimeout(String rtaBaseUrl, HttpRequestHandle handle) {
+        long connectTime = handle.getConnectTime();
+        long firstByteTime = handle.getFirstByteTime();
+        if (connectTime < 0) {
+            connectLatencies.record(rtaBaseUrl, handle.getConnectTimeout());
+        }
+        else if (firstByteTime < 0) {
+            connectLatencies.record(rtaBaseUrl, TimeUnit.NANOSECONDS.toMillis(connectTime));
+            readLatencies.record(rtaBaseUrl, handle.getReadTimeout());
+        }
+        else {
+            // The body was too slow: the wait for the remote system is known.
+            connectLatencies.record(rtaBaseUrl, TimeUnit.NANOSECONDS.toMillis(connectTime));
+            readLatencies.record(rtaBaseUrl, TimeUnit.NANOSECONDS.toMillis(firstByteTime));
+        }
+
+        AtomicInteger timeouts = consecutiveTimeouts.get(rtaBaseUrl);
+        if (timeouts == null) {
+            timeouts = new AtomicInteger();
+            AtomicInteger existing = consecutiveTimeouts.putIfAbsent(rtaBaseUrl, timeouts);
+            if (existing != null) {
+                timeouts = existing;
+            }
+        }
+        timeouts.incrementAndGet();
+    }
+
+    /**
+     * @param rtaBaseUrl
+     * @return The timeout to connect to the remote system, in milliseconds.
+     */
+    int getConnectTimeout(String rtaBaseUrl) {
+        return timeout(connectLatencies, rtaBaseUrl, defaultConnectTimeout);
+    }
+
+    /**
+     * @param rtaBaseUrl
+     * @return The timeout to read the response of the remote system, in
+     *         milliseconds.
+     */
+    int getReadTimeout(String rtaBaseUrl) {
+        return timeout(readLatencies, rtaBaseUrl, defaultReadTimeout);
+    }
+
+    /**
+     * Get the longest time a request may last.
+     *
+     * @return In milliseconds.
+     */
+    int getMaxRequestTime() {
+        return Math.max(maxTimeout, defaultConnectTimeout) + Math.max(maxTimeout, defaultReadTimeout);
+    }
+
+    private int timeout(EndpointLatencies latencies, String rtaBaseUrl, int defaultTimeout) {
+        if (latencies.count(rtaBaseUrl) < minSamples) {
+            return defaultTimeout;
+        }
+        // A duration of 0 ms is possible on a local network.
+        long duration = Math.max(1L, latencies.percentile(rtaBaseUrl, percentile));
+        double timeout = Math.max(minTimeout, Math.ceil(duration * multiplier));
+        AtomicInteger timeouts = consecutiveTimeouts.get(rtaBaseUrl);
+        int widenings = timeouts == null ? 0 : timeouts.get() - TIMEOUTS_BEFORE_WIDENING + 1;
+        if (widenings > 0) {
+            timeout *= Math.pow(2, Math.min(widenings, 16));
+        }
+        return (int) Math.min(maxTimeout, timeout);
+    }
+}
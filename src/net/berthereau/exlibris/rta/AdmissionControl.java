@@ -0,0 +1,122 @@
+package net.berthereau.exlibris.rta;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of requests in progress to the remote systems, globally
+ * and by remote system, so the threads of Primo don't pile up behind a slow
+ * remote system during a spike of traffic.
+ *
+ * A request over a limit is not sent nor queued: the records keep their
+ * holding status, or get the last one known, whatever its age. No live status
+ * is better than a search interface without threads.
+ */
+class AdmissionControl {
+
+    private final int maxRequests;
+    private final int maxRequestsByEndpoint;
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private final ConcurrentMap<String, AtomicInteger> requestsByEndpoint = new ConcurrentHashMap<>();
+
+    private final AtomicLong shed = new AtomicLong();
+    private final AtomicLong shedByEndpoint = new AtomicLong();
+    private final AtomicLong lastKnownRecords = new AtomicLong();
+
+    /**
+     * @param maxRequests
+     *            Maximum number of requests in progress, 0 for no limit.
+     * @param maxRequestsByEndpoint
+     *            Maximum number of requests in progress to a remote system, 0
+     *            for no limit.
+     */
+    AdmissionControl(int maxRequests, int maxRequestsByEndpoint) {
+        this.maxRequests = maxRequests;
+        this.maxRequestsByEndpoint = maxRequestsByEndpoint;
+    }
+
+    /**
+     * Take a place for a request to a remote system, without waiting. It
+     * should be released when the request is done.
+     *
+     * @param rtaBaseUrl
+     * @return False if the request should not be sent.
+     */
+    boolean tryAcquire(String rtaBaseUrl) {
+        if (maxRequests > 0 && requests.incrementAndGet() > maxRequests) {
+            requests.decrementAndGet();
+            shed.incrementAndGet();
+            return false;
+        }
+        if (maxRequestsByEndpoint <= 0) {
+            return true;
+        }
+        AtomicInteger counter = getCounter(rtaBaseUrl);
+        if (counter.incrementAndGet() > maxRequestsByEndpoint) {
+            counter.decrementAndGet();
+            if (maxRequests > 0) {
+                requests.decrementAndGet();
+            }
+            shedByEndpoint.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Release the place of a request that is done.
+     *
+     * @param rtaBaseUrl
+     * @return void
+     */
+    void release(String rtaBaseUrl) {
+        if (maxRequests > 0) {
+            requests.decrementAndGet();
+        }
+        if (maxRequestsByEndpoint > 0) {
+            getCounter(rtaBaseUrl).decrementAndGet();
+        }
+    }
+
+    /**
+     * Count the records of the shed requests that got their last known status.
+     *
+     * @param count
+     * @return void
+     */
+    void recordLastKnown(int count) {
+        lastKnownRecords.addAndGet(count);
+    }
+
+    /**
+     * @return Number of requests in progress, when there is a global limit.
+     */
+    int getRequests() {
+        return requests.get();
+    }
+
+    long getShed() {
+        return shed.get();
+    }
+
+    long getShedByEndpoint() {
+        return shedByEndpoint.get();
+    }
+
+    long getLastKnownRecords() {
+        return lastKnownRecords.get();
+    }
+
+    private AtomicInteger getCounter(String rtaBaseUrl) {
+        AtomicInteger counter = requestsByEndpoint.get(rtaBaseUrl);
+        if (counter != null) {
+            return counter;
+        }
+        counter = new AtomicInteger();
+        AtomicInteger existing = requestsByEndpoint.putIfAbsent(rtaBaseUrl, counter);
+        return existing == null ? counter : existing;
+    }
+}
@@ -0,0 +1,221 @@
+package net.berthereau.exlibris.rta;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.exlibris.primo.api.plugins.rta.HoldingStatus;
+
+/**
+ * Keeps in memory the availability of the records recently checked, so the
+ * remote system is not requested again for popular records.
+ *
+ * An availability is kept during a limited time (ttl) and the number of
+ * records is limited too: the least recently used ones are removed first.
+ * After the ttl, an availability may still be used during a second limited
+ * time (stale ttl), while it is requested again in the background.
+ *
+ * The key of each availability is the rta base url, the type of the id, the
+ * type of the response and the record id, because the same id may have
+ * different meanings and responses according to them.
+ *
+ * A record missing in memory may be found in the snapshot of a previous run,
+ * if any.
+ *
+ * The expired availabilities are kept until they are replaced or removed as
+ * least recently used, so the last known one can be used when the remote
+ * system can't be requested.
+ *
+ * The records are split in segments locked separately, so the concurrent views
+ * don't wait for a global lock.
+ */
+class AvailabilityCache {
+
+    private final long ttl;
+    private final long staleTtl;
+    private final int maxEntries;
+
+    private final StripedLruMap<CachedStatus> entries;
+
+    // Availabilities saved before the last restart, if enabled.
+    private volatile CacheSnapshot snapshot;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * A holding status and the time it was received.
+     */
+    static class CachedStatus {
+        final HoldingStatus holdingStatus;
+        final long timestamp;
+
+        CachedStatus(HoldingStatus holdingStatus, long timestamp) {
+            this.holdingStatus = holdingStatus;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * @param ttl
+     *            Time to keep an availability, in milliseconds.
+     * @param staleTtl
+     *            Time to use an availability after the ttl, in milliseconds.
+     * @param maxEntries
+     *            Maximum number of availabilities to keep.
+     */
+    AvailabilityCache(long ttl, long staleTtl, int maxEntries) {
+        this.ttl = ttl;
+        this.staleTtl = staleTtl;
+        this.maxEntries = maxEntries;
+        this.entries = new StripedLruMap<>(maxEntries);
+    }
+
+    /**
+     * Get the holding status of a record if it is still valid or stale.
+     *
+     * @param rtaBaseUrl
+     * @param idType
+     * @param returnType
+     * @param recordId
+     * @return The holding status and its time, or null if unknown or expired.
+     */
+    CachedStatus get(String rtaBaseUrl, String idType, String returnType, String recordId) {
+        String key = key(rtaBaseUrl, idType, returnType, recordId);
+        long now = System.currentTimeMillis();
+        CachedStatus cachedStatus = entries.get(key);
+        if (cachedStatus != null) {
+            long age = now - cachedStatus.timestamp;
+            if (age < ttl) {
+                hits.incrementAndGet();
+                return cachedStatus;
+            }
+            if (age < ttl + staleTtl) {
+                staleHits.incrementAndGet();
+                return cachedStatus;
+            }
+        }
+
+        // The snapshot is read only when needed, so it is loaded lazily.
+        CachedStatus savedStatus = snapshot == null ? null : snapshot.get(key);
+        if (savedStatus != null) {
+            long age = now - savedStatus.timestamp;
+            if (age < ttl + staleTtl) {
+                entries.putIfAbsent(key, savedStatus);
+                (age < ttl ? hits : staleHits).incrementAndGet();
+                return savedStatus;
+            }
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Get the last known holding status of a record, whatever its age.
+     *
+     * @param rtaBaseUrl
+     * @param idType
+     * @param returnType
+     * @param recordId
+     * @return The holding status and its time, or null if unknown.
+     */
+    CachedStatus getLastKnown(String rtaBaseUrl, String idType, String returnType, String recordId) {
+        return entries.get(key(rtaBaseUrl, idType, returnType, recordId));
+    }
+
+    /**
+     * Check if a holding status is older than the ttl, so it should be
+     * requested again.
+     *
+     * @param cachedStatus
+     * @return boolean
+     */
+    boolean isStale(CachedStatus cachedStatus) {
+        return System.currentTimeMillis() - cachedStatus.timestamp >= ttl;
+    }
+
+    /**
+     * Store the holding status of a record.
+     *
+     * @param rtaBaseUrl
+     * @param idType
+     * @param returnType
+     * @param recordId
+     * @param holdingStatus
+     * @return void
+     */
+    void put(String rtaBaseUrl, String idType, String returnType, String recordId, HoldingStatus holdingStatus) {
+        String key = key(rtaBaseUrl, idType, returnType, recordId);
+        entries.put(key, new CachedStatus(holdingStatus, System.currentTimeMillis()));
+    }
+
+    /**
+     * Store the holding statuses of records of an institution.
+     *
+     * @param rtaBaseUrl
+     * @param idType
+     * @param returnType
+     * @param results
+     *            Availability of each record (record id -> holding status).
+     * @return void
+     */
+    void putAll(String rtaBaseUrl, String idType, String returnType, Map<String, HoldingStatus> results) {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, HoldingStatus> result : results.entrySet()) {
+            entries.put(key(rtaBaseUrl, idType, returnType, result.getKey()),
+                    new CachedStatus(result.getValue(), now));
+        }
+    }
+
+    /**
+     * Set the snapshot where the missing records are searched.
+     *
+     * @param snapshot
+     * @return void
+     */
+    void setSnapshot(CacheSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Copy the availabilities, the most recently used first, to be saved.
+     *
+     * @see StripedLruMap#copyEntries()
+     *
+     * @return Availabilities by key.
+     */
+    Map<String, CachedStatus> copyEntries() {
+        return entries.copyEntries();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    int getMaxEntries() {
+        return maxEntries;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getStaleHits() {
+        return staleHits.get();
+    }
+
+    long getSnapshotHits() {
+        CacheSnapshot current = snapshot;
+        return current == null ? 0 : current.getHits();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    private static String key(String rtaBaseUrl, String idType, String returnType, String recordId) {
+        // The new line can't be used in an url nor in an id.
+        return rtaBaseUrl + '\n' + idType + '\n' + returnType + '\n' + recordId;
+    }
+}
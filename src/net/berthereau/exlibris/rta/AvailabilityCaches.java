@@ -0,0 +1,324 @@
+package net.berthereau.exlibris.rta;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.exlibris.primo.api.common.IPrimoLogger;
+import com.exlibris.primo.api.plugins.rta.HoldingStatus;
+
+/**
+ * Local sources of availability, checked before the remote systems: the
+ * harvested copy, the records recently missing, and the cache with its
+ * snapshot on disk and its background refreshes.
+ *
+ * Each one is enabled by its own params, so all of them may be null.
+ */
+class AvailabilityCaches {
+
+    private final IPrimoLogger logger;
+    private final PluginConfig config;
+    private final String name;
+
+    // Availability of the records recently checked, if enabled.
+    private final AvailabilityCache cache;
+
+    // Copy of the cache on disk and the process that saves it on shutdown, if
+    // enabled.
+    private final CacheSnapshot cacheSnapshot;
+    private final Thread cacheSnapshotHook;
+
+    // Background requests of the stale records of the cache, if enabled.
+    private final CacheRevalidator cacheRevalidator;
+
+    // Records recently missing in the responses, if enabled.
+    private final MissingRecordsCache missingRecordsCache;
+
+    // Local copy of the availability of the harvested institutions, if
+    // enabled.
+    private final AvailabilityMirror mirror;
+
+    /**
+     * Build the caches required by the params.
+     *
+     * @param logger
+     * @param config
+     * @param name
+     *            The name of the plugin.
+     * @param threads
+     * @param refresher
+     *            Requests the stale records of the cache.
+     * @param harvester
+     *            Requests the records changed in a remote system.
+     */
+    AvailabilityCaches(IPrimoLogger logger, PluginConfig config, String name, PluginThreads threads,
+            CacheRevalidator.Refresher refresher, AvailabilityMirror.Harvester harvester) {
+        this.logger = logger;
+        this.config = config;
+        this.name = name;
+
+        // Keep the last availabilities in memory.
+        cache = config.cacheTtl > 0 && config.cacheMaxEntries > 0
+                ? new AvailabilityCache(config.cacheTtl * 1000L, Math.max(0, config.cacheStaleTtl) * 1000L,
+                        config.cacheMaxEntries)
+                : null;
+
+        // Refresh the stale records in the background, by institution.
+        cacheRevalidator = cache != null && config.cacheStaleTtl > 0
+                ? new CacheRevalidator(logger, 50L, threads.scheduler, threads.backgroundExecutor, refresher)
+                : null;
+
+        // Keep a copy of the cache on disk for the next restart.
+        cacheSnapshot = cache != null && !config.cacheSnapshotFile.isEmpty()
+                ? openCacheSnapshot(threads.scheduler)
+                : null;
+        cacheSnapshotHook = cacheSnapshot != null ? addCacheSnapshotHook() : null;
+
+        // Skip for a while the records that the remote systems don't know.
+        missingRecordsCache = config.negativeCacheTtl > 0 && config.cacheMaxEntries > 0
+                ? new MissingRecordsCache(config.negativeCacheTtl * 1000L, config.cacheMaxEntries)
+                : null;
+
+        // Harvest the institutions in the background, with their own thread,
+        // because a full harvest is long.
+        mirror = config.harvestInterval > 0
+                ? new AvailabilityMirror(logger, config.harvestInterval * 1000L,
+                        new ScheduledThreadPoolExecutor(1, threads.newThreadFactory("harvest")), harvester)
+                : null;
+    }
+
+    /**
+     * @return True if at least one cache is enabled.
+     */
+    boolean isEnabled() {
+        return cache != null || missingRecordsCache != null || mirror != null;
+    }
+
+    AvailabilityCache getCache() {
+        return cache;
+    }
+
+    CacheRevalidator getCacheRevalidator() {
+        return cacheRevalidator;
+    }
+
+    MissingRecordsCache getMissingRecordsCache() {
+        return missingRecordsCache;
+    }
+
+    AvailabilityMirror getMirror() {
+        return mirror;
+    }
+
+    /**
+     * Get the availability of the records of an institution that are in the
+     * harvested copy or in the cache, and skip the records that were recently
+     * missing in the responses.
+     *
+     * The stale records of the cache are used too, and they are requested again
+     * in the background.
+     *
+     * @param rtaBaseUrl
+     * @param recordIds
+     * @param unknownRecordIds
+     *            Filled with the records that should be requested.
+     * @return Availability of the known records (record id -> holding status).
+     */
+    Map<String, HoldingStatus> getKnownAvailability(String rtaBaseUrl, Collection<String> recordIds,
+            Collection<String> unknownRecordIds) {
+        Map<String, HoldingStatus> knownResults = new HashMap<>();
+        List<String> skippedRecordIds = new ArrayList<>();
+        List<String> staleRecordIds = new ArrayList<>();
+        for (String recordId : recordIds) {
+            HoldingStatus harvestedStatus = mirror == null ? null : mirror.get(rtaBaseUrl, recordId);
+            if (harvestedStatus != null) {
+                knownResults.put(recordId, harvestedStatus);
+                continue;
+            }
+            if (missingRecordsCache != null
+                    && missingRecordsCache.isMissing(rtaBaseUrl, config.idType, config.returnType, recordId)) {
+                skippedRecordIds.add(recordId);
+                continue;
+            }
+            AvailabilityCache.CachedStatus cachedStatus = cache == null
+                    ? null
+                    : cache.get(rtaBaseUrl, config.idType, config.returnType, recordId);
+            if (cachedStatus == null) {
+                unknownRecordIds.add(recordId);
+            }
+            else {
+                knownResults.put(recordId, cachedStatus.holdingStatus);
+                // The stale status is used, but it is requested again.
+                if (cacheRevalidator != null && cache.isStale(cachedStatus)) {
+                    staleRecordIds.add(recordId);
+                }
+            }
+        }
+
+        if (config.debug && !skippedRecordIds.isEmpty()) {
+            logger.info("Records " + skippedRecordIds + " are not requested to [" + rtaBaseUrl
+                    + "]: they were missing in a recent response.");
+        }
+        if (!staleRecordIds.isEmpty()) {
+            if (config.debug) {
+                logger.info("Records " + staleRecordIds + " are stale and will be refreshed from ["
+                        + rtaBaseUrl + "].");
+            }
+            cacheRevalidator.revalidate(rtaBaseUrl, staleRecordIds);
+        }
+        return knownResults;
+    }
+
+    /**
+     * Get the last known availability of records from the cache, whatever its
+     * age.
+     *
+     * @param recordIds
+     * @param rtaBaseUrl
+     * @return Availability of the known records (record id -> holding status).
+     */
+    Map<String, HoldingStatus> getLastKnownAvailability(Set<String> recordIds, String rtaBaseUrl) {
+        Map<String, HoldingStatus> results = new HashMap<>();
+        if (cache == null) {
+            return results;
+        }
+        for (String recordId : recordIds) {
+            AvailabilityCache.CachedStatus cachedStatus = cache.getLastKnown(rtaBaseUrl, config.idType,
+                    config.returnType, recordId);
+            if (cachedStatus != null) {
+                results.put(recordId, cachedStatus.holdingStatus);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Keep the results of a successful request.
+     *
+     * @param rtaBaseUrl
+     * @param recordIds
+     *            The requested records, so the missing ones are known.
+     * @param results
+     * @return void
+     */
+    void putAll(String rtaBaseUrl, Set<String> recordIds, Map<String, HoldingStatus> results) {
+        if (cache != null) {
+            cache.putAll(rtaBaseUrl, config.idType, config.returnType, results);
+        }
+        if (missingRecordsCache != null) {
+            missingRecordsCache.putAll(rtaBaseUrl, config.idType, config.returnType, recordIds, results);
+        }
+        if (mirror != null) {
+            mirror.putAll(rtaBaseUrl, results);
+        }
+    }
+
+    /**
+     * Save the cache on disk for the last time, if enabled, before a new
+     * checker reads the same snapshot.
+     *
+     * @return void
+     */
+    void closeCacheSnapshot() {
+        if (cacheSnapshot == null) {
+            return;
+        }
+        if (cacheSnapshotHook != null) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(cacheSnapshotHook);
+            } catch (IllegalStateException e) {
+                // The virtual machine is already stopping.
+            }
+        }
+        saveCacheSnapshot(cacheSnapshot, cache);
+    }
+
+    /**
+     * Stop the harvests, if any.
+     *
+     * @return void
+     */
+    void close() {
+        if (mirror != null) {
+            mirror.close();
+        }
+    }
+
+    /**
+     * Map the snapshot of the cache of a previous run, so the records are
+     * read from it when needed, and save the cache regularly.
+     *
+     * @param scheduler
+     * @return CacheSnapshot
+     */
+    private CacheSnapshot openCacheSnapshot(ScheduledThreadPoolExecutor scheduler) {
+        CacheSnapshot snapshot = new CacheSnapshot(Paths.get(config.cacheSnapshotFile),
+                (config.cacheTtl + Math.max(0, config.cacheStaleTtl)) * 1000L);
+        try {
+            snapshot.open();
+        } catch (IOException e) {
+            logger.warn("Cannot read the snapshot of the cache [" + config.cacheSnapshotFile + "]: " + e.getMessage()
+                    + ". It will be replaced.", e);
+        }
+        cache.setSnapshot(snapshot);
+
+        scheduler.scheduleWithFixedDelay(newCacheSnapshotSave(snapshot, cache), config.cacheSnapshotInterval,
+                config.cacheSnapshotInterval, TimeUnit.SECONDS);
+        return snapshot;
+    }
+
+    /**
+     * Save the cache when Primo stops.
+     *
+     * @return The hook, or null if the virtual machine is already stopping.
+     */
+    private Thread addCacheSnapshotHook() {
+        Thread hook = new Thread(newCacheSnapshotSave(cacheSnapshot, cache), name + "-snapshot");
+        try {
+            Runtime.getRuntime().addShutdownHook(hook);
+        } catch (IllegalStateException e) {
+            // The virtual machine is already stopping.
+            return null;
+        }
+        return hook;
+    }
+
+    /**
+     * Prepare the process that saves the cache.
+     *
+     * @param snapshot
+     * @param savedCache
+     * @return Runnable
+     */
+    private Runnable newCacheSnapshotSave(final CacheSnapshot snapshot, final AvailabilityCache savedCache) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                saveCacheSnapshot(snapshot, savedCache);
+            }
+        };
+    }
+
+    /**
+     * Write the availabilities of the cache in the snapshot.
+     *
+     * @param snapshot
+     * @param savedCache
+     * @return void
+     */
+    private void saveCacheSnapshot(CacheSnapshot snapshot, AvailabilityCache savedCache) {
+        try {
+            snapshot.save(savedCache.copyEntries(), savedCache.getMaxEntries());
+        } catch (IOException e) {
+            logger.warn("Cannot save the snapshot of the cache [" + config.cacheSnapshotFile + "]: "
+                    + e.getMessage(), e);
+        }
+    }
+}
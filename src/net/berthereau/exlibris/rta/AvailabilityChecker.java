@@ -0,0 +1,1022 @@
+package net.berthereau.exlibris.rta;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPathExpressionException;
+
+import com.exlibris.primo.api.common.IPrimoLogger;
+import com.exlibris.primo.api.plugins.rta.HoldingStatus;
+import com.exlibris.primo.api.plugins.rta.Library;
+import com.exlibris.primo.api.plugins.rta.RTARequest;
+
+/**
+ * Checks the availability of records on the remote systems, with the params
+ * and the components built by one init of the plugin.
+ *
+ * All of them are final, so a check uses the same ones from its start to its
+ * end, even when Primo initializes the plugin again meanwhile. The previous
+ * checker is closed only when the new one is published, so its last checks
+ * finish or fail quietly.
+ *
+ * The checker sorts the records by institution, answers from the caches, and
+ * filters the requests with the circuit breakers, the admission control and
+ * the rate limits. The requests themselves are sent by AvailabilityRequests.
+ */
+class AvailabilityChecker {
+
+    private final IPrimoLogger logger;
+
+    // Checked params of the plugin.
+    private final PluginConfig config;
+
+    // Name of the plugin, used for the threads, the requests and the metrics.
+    private final String name;
+
+    // Threads of the requests, of the timers and of the background.
+    private final PluginThreads threads;
+
+    // State of the remote systems, if failing ones are not requested.
+    private final CircuitBreakers circuitBreakers;
+
+    // Requests of records in progress, if they are merged.
+    private final SingleFlightRequests singleFlightRequests;
+
+    // Counters and durations of the requests, published via JMX.
+    private final PluginMetrics metrics;
+
+    // Client that requests the remote systems without waiting, if enabled.
+    private final NonBlockingHttpClient nonBlockingClient;
+
+    // Connections kept open to the remote systems, if enabled.
+    private final HttpConnectionPool connectionPool;
+
+    // Cache, harvested copy and records recently missing, if enabled.
+    private final AvailabilityCaches caches;
+
+    // Maximum rate of requests by remote system, if enabled.
+    private final RateLimiters rateLimiters;
+
+    // Maximum number of requests in progress, if enabled.
+    private final AdmissionControl admissionControl;
+
+    // Copy of the batches and of the responses in a file, if enabled.
+    private final RequestCapture requestCapture;
+
+    // Urls of the ILS-DI services.
+    private final IlsdiUrls urls;
+
+    // Conversion of the responses, with xml tools prepared by thread.
+    private final AvailabilityResponseParser parser;
+
+    // Requests sent to the remote systems.
+    private final AvailabilityRequests requests;
+
+    /**
+     * Build the components required by the params.
+     *
+     * @param logger
+     * @param config
+     * @param name
+     *            The name of the plugin.
+     * @param instance
+     *            The instance of the plugin, when Primo creates multiple
+     *            ones.
+     * @throws ParserConfigurationException
+     * @throws XPathExpressionException
+     *             The xml tools are prepared first, so nothing is started when
+     *             they cannot be.
+     */
+    AvailabilityChecker(IPrimoLogger logger, PluginConfig config, String name, String instance)
+            throws ParserConfigurationException, XPathExpressionException {
+        this.logger = logger;
+        this.config = config;
+        this.name = name;
+
+        // Prepare xml tools used to process each response.
+        parser = new AvailabilityResponseParser(logger, config);
+        urls = new IlsdiUrls(logger, config);
+
+        // Prepare the threads used to request multiple institutions at once
+        // and the ones of the background.
+        threads = new PluginThreads(config, name);
+
+        // Stop to request the remote systems that fail.
+        circuitBreakers = config.circuitBreakerFailureRate > 0
+                ? new CircuitBreakers(logger, config.circuitBreakerFailureRate, config.circuitBreakerWindow,
+                        config.circuitBreakerProbeInterval, threads.scheduler, threads.backgroundExecutor,
+                        new CircuitBreakers.Probe() {
+                            @Override
+                            public boolean isAvailable(String rtaBaseUrl, String recordId) {
+                                if (recordId == null) {
+                                    return false;
+                                }
+                                return requests.requestAvailability(Collections.singleton(recordId), rtaBaseUrl)
+                                        != null;
+                            }
+                        })
+                : null;
+
+        // Adapt the timeouts to the usual response times of each remote
+        // system.
+        AdaptiveTimeouts adaptiveTimeouts = config.adaptiveTimeoutPercentile > 0
+                ? new AdaptiveTimeouts(config.adaptiveTimeoutPercentile, config.adaptiveTimeoutMultiplier,
+                        config.adaptiveTimeoutMin, config.adaptiveTimeoutMax, 20, config.connectionTimeout,
+                        config.readTimeout)
+                : null;
+
+        // Keep the summaries of a sample of the last requests.
+        RequestTraces requestTraces = config.traceSize > 0
+                ? new RequestTraces(logger, config.traceSampleRate, config.traceSize)
+                : null;
+
+        // Record the real traffic, so it can be replayed by the load
+        // generator.
+        requestCapture = openRequestCapture();
+
+        // Send a second request when a remote system is slower than usual.
+        EndpointLatencies latencies = config.hedgePercentile > 0 ? new EndpointLatencies(100) : null;
+        HedgedRequests hedgedRequests = config.hedgePercentile > 0
+                ? new HedgedRequests(latencies, config.hedgePercentile, config.hedgeMaxRate, 20, threads.scheduler,
+                        threads.executor)
+                : null;
+
+        // Keep the traffic under the rate allowed by the remote systems.
+        rateLimiters = config.rateLimits.isEmpty()
+                ? null
+                : new RateLimiters(config.rateLimits, config.rateLimitWait);
+
+        // Shed the requests when too many ones are in progress.
+        admissionControl = config.maxPendingRequests > 0 || config.maxPendingRequestsByInstitution > 0
+                ? new AdmissionControl(config.maxPendingRequests, config.maxPendingRequestsByInstitution)
+                : null;
+
+        // Merge concurrent requests of the same records.
+        singleFlightRequests = config.coalesceRequests ? new SingleFlightRequests() : null;
+
+        // Keep the connections to the remote systems open.
+        connectionPool = config.keepAlive ? openConnectionPool() : null;
+
+        // Request the remote systems without waiting for their responses.
+        nonBlockingClient = config.nonBlocking ? openNonBlockingClient() : null;
+
+        // Answer from the local copies when possible.
+        caches = new AvailabilityCaches(logger, config, name, threads,
+                new CacheRevalidator.Refresher() {
+                    @Override
+                    public void refresh(String rtaBaseUrl, Set<String> recordIds) {
+                        checkAvailabilityForRecords(recordIds, rtaBaseUrl);
+                    }
+                },
+                new AvailabilityMirror.Harvester() {
+                    @Override
+                    public Map<String, HoldingStatus> harvest(String rtaBaseUrl, Date from) {
+                        return requests.harvestAvailability(rtaBaseUrl, from);
+                    }
+                });
+
+        // Publish the metrics via JMX, replacing the ones of a previous init.
+        metrics = new PluginMetrics(logger, name, instance, caches.getCache(), caches.getCacheRevalidator(),
+                caches.getMissingRecordsCache(), caches.getMirror(), rateLimiters, admissionControl,
+                singleFlightRequests, hedgedRequests, connectionPool, circuitBreakers, requestTraces);
+        metrics.register();
+
+        requests = new AvailabilityRequests(logger, config, urls, parser,
+                new IlsdiHttpClient(logger, config, connectionPool, parser), nonBlockingClient, hedgedRequests,
+                latencies, adaptiveTimeouts, metrics, requestTraces, requestCapture);
+    }
+
+    /**
+     * Save the cache on disk for the last time, if enabled, before a new
+     * checker reads the same snapshot.
+     *
+     * @return void
+     */
+    void closeCacheSnapshot() {
+        caches.closeCacheSnapshot();
+    }
+
+    /**
+     * Stop the threads and release the files and the connections, when a new
+     * checker is published.
+     *
+     * The checks in progress are not waited for: the queued ones are still
+     * processed, the other ones complete without result.
+     *
+     * @return void
+     */
+    void close() {
+        metrics.close();
+        threads.close();
+        if (requestCapture != null) {
+            requestCapture.close();
+        }
+        if (connectionPool != null) {
+            connectionPool.closeAll();
+        }
+        if (nonBlockingClient != null) {
+            nonBlockingClient.close();
+        }
+        caches.close();
+    }
+
+    IlsdiUrls getUrls() {
+        return urls;
+    }
+
+    AvailabilityResponseParser getParser() {
+        return parser;
+    }
+
+    /**
+     * Open the file where the traffic is recorded, if enabled.
+     *
+     * @return The capture, or null.
+     */
+    private RequestCapture openRequestCapture() {
+        if (config.captureFile.isEmpty()) {
+            return null;
+        }
+        try {
+            return new RequestCapture(logger, Paths.get(config.captureFile));
+        } catch (IOException e) {
+            logger.error("Cannot open the capture [" + config.captureFile + "]: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Prepare the pool of the kept alive connections and close regularly the
+     * ones that are idle for too long, even when no more request is sent.
+     *
+     * @return HttpConnectionPool
+     */
+    private HttpConnectionPool openConnectionPool() {
+        final HttpConnectionPool pool = new HttpConnectionPool(config.maxIdleConnections,
+                config.idleConnectionTimeout, name, config.streaming);
+        long interval = Math.max(1000L, config.idleConnectionTimeout);
+        threads.scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                pool.closeExpired();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        return pool;
+    }
+
+    /**
+     * Prepare the client of the non-blocking requests.
+     *
+     * @return The client, or null if it cannot be prepared.
+     */
+    private NonBlockingHttpClient openNonBlockingClient() {
+        try {
+            return new NonBlockingHttpClient(config.parallelThreads, threads.newThreadFactory("io"), threads.scheduler,
+                    name,
+                    config.streaming);
+        } catch (IOException e) {
+            logger.error("Cannot prepare the non-blocking requests: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Update the availability status of the libraries of a list of RTA
+     * requests, waiting for the remote systems.
+     *
+     * The libraries are updated via the asynchronous process, and the wait
+     * lasts until its end, so no library is updated after the return. Each
+     * request is already limited by its timeouts, so the wait is limited too,
+     * whatever the number of requests waiting for a thread, a rate or a second
+     * request. Without Parallel, the current thread does the requests itself.
+     *
+     * @see StandardFlossPhysicalRTAPlugin#updateAvailability(List)
+     *
+     * @param rtaRequests
+     * @return void
+     */
+    void updateAvailability(List<RTARequest> rtaRequests) {
+        AvailabilityFuture<List<RTARequest>> update = updateAvailability(rtaRequests, true);
+        try {
+            update.get();
+        } catch (ExecutionException e) {
+            logger.warn("Failed when updating availability: " + e.getCause(), e);
+        } catch (InterruptedException e) {
+            // Primo stops the process, so no more update is done.
+            update.cancel(true);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Update the availability status of the libraries of a list of RTA
+     * requests without waiting for the remote systems.
+     *
+     * @see StandardFlossPhysicalRTAPlugin#updateAvailabilityAsync(List)
+     *
+     * @param rtaRequests
+     * @return The updated rta requests, when complete.
+     */
+    AvailabilityFuture<List<RTARequest>> updateAvailabilityAsync(List<RTARequest> rtaRequests) {
+        return updateAvailability(rtaRequests, false);
+    }
+
+    /**
+     * Update the availability status of the libraries of a list of RTA
+     * requests.
+     *
+     * @param rtaRequests
+     * @param isBlocking
+     *            When set and when Parallel is not set, the current thread
+     *            does the blocking requests itself. Else, they are done by the
+     *            threads of the plugin.
+     * @return The updated rta requests, when complete.
+     */
+    private AvailabilityFuture<List<RTARequest>> updateAvailability(final List<RTARequest> rtaRequests,
+            boolean isBlocking) {
+        final AvailabilityFuture<List<RTARequest>> update = new AvailabilityFuture<>();
+
+        // TODO Check if a check has been done inside the closed Primo API.
+        if (rtaRequests == null || rtaRequests.isEmpty()) {
+            logger.warn("An empty rta request has been sent.");
+            update.complete(rtaRequests);
+            return update;
+        }
+
+        if (requestCapture != null) {
+            requestCapture.addBatch(rtaRequests);
+        }
+
+        // The remote API can manage multiple records by request, so
+        // the requests to same institution, identified by the rta base url, are
+        // merged.
+        // TODO Institution is not used, because the rta base url is enough.
+        Map<String, Map<String, List<Library>>> recordsByInstitution = sortRecordsByInstitution(rtaRequests);
+        // Check if there is at least one library to request.
+        if (recordsByInstitution.isEmpty()) {
+            logger.error("No RTA request can be processed.");
+            update.complete(rtaRequests);
+            return update;
+        }
+
+        // Only the records that are not in the caches are requested.
+        if (caches.isEnabled()) {
+            recordsByInstitution = updateAvailabilityFromCache(recordsByInstitution);
+        }
+
+        // Remove the institutions without records.
+        Iterator<Entry<String, Map<String, List<Library>>>> iterator = recordsByInstitution.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry<String, Map<String, List<Library>>> entry = iterator.next();
+            if (entry.getValue().isEmpty()) {
+                logger.warn("No records for this institution [rta base url: " + entry.getKey() + "].");
+                iterator.remove();
+            }
+        }
+        if (recordsByInstitution.isEmpty()) {
+            update.complete(rtaRequests);
+            return update;
+        }
+
+        // When there are multiple institutions, they are requested at the
+        // same time when possible, so the wait is the one of the slowest
+        // remote system.
+        final List<AvailabilityFuture<Map<String, HoldingStatus>>> requests = new ArrayList<>();
+        final AtomicInteger remaining = new AtomicInteger(recordsByInstitution.size());
+        for (Entry<String, Map<String, List<Library>>> entry : recordsByInstitution.entrySet()) {
+            final String rtaBaseUrl = entry.getKey();
+            final Map<String, List<Library>> recordsToRequest = entry.getValue();
+            AvailabilityFuture<Map<String, HoldingStatus>> request = fetchAvailabilityAsync(
+                    recordsToRequest.keySet(), rtaBaseUrl, isBlocking);
+            requests.add(request);
+            request.addListener(new AvailabilityFuture.Listener<Map<String, HoldingStatus>>() {
+                @Override
+                public void onComplete(AvailabilityFuture<Map<String, HoldingStatus>> request) {
+                    try {
+                        if (request.getCause() != null) {
+                            logger.warn("Failed when fetching response from [" + rtaBaseUrl + "]: "
+                                    + request.getCause(), request.getCause());
+                        }
+                        // The lock prevents the cancellation during the update.
+                        synchronized (update) {
+                            if (!update.isCancelled()) {
+                                updateLibraries(rtaBaseUrl, recordsToRequest, request.getNow());
+                            }
+                        }
+                    } finally {
+                        if (remaining.decrementAndGet() == 0) {
+                            update.complete(rtaRequests);
+                        }
+                    }
+                }
+            });
+        }
+
+        update.addListener(new AvailabilityFuture.Listener<List<RTARequest>>() {
+            @Override
+            public void onComplete(AvailabilityFuture<List<RTARequest>> update) {
+                if (update.isCancelled()) {
+                    for (AvailabilityFuture<Map<String, HoldingStatus>> request : requests) {
+                        request.cancel(true);
+                    }
+                }
+            }
+        });
+
+        return update;
+    }
+
+    /**
+     * Update the libraries of the records that are available in the local
+     * copies, and keep the records that should be requested.
+     *
+     * @see AvailabilityCaches#getKnownAvailability(String, java.util.Collection, java.util.Collection)
+     *
+     * @param recordsByInstitution
+     * @return The records that are not in the caches, by institution.
+     */
+    private Map<String, Map<String, List<Library>>> updateAvailabilityFromCache(
+            Map<String, Map<String, List<Library>>> recordsByInstitution) {
+        Map<String, Map<String, List<Library>>> missingByInstitution = new HashMap<>();
+        for (Entry<String, Map<String, List<Library>>> entry : recordsByInstitution.entrySet()) {
+            String rtaBaseUrl = entry.getKey();
+            Map<String, List<Library>> records = entry.getValue();
+            Set<String> unknownRecordIds = new LinkedHashSet<>();
+            Map<String, HoldingStatus> knownResults = caches.getKnownAvailability(rtaBaseUrl, records.keySet(),
+                    unknownRecordIds);
+
+            if (!knownResults.isEmpty()) {
+                Map<String, List<Library>> knownRecords = new HashMap<>();
+                for (String recordId : knownResults.keySet()) {
+                    knownRecords.put(recordId, records.get(recordId));
+                }
+                updateLibraries(rtaBaseUrl, knownRecords, knownResults);
+            }
+            if (!unknownRecordIds.isEmpty()) {
+                Map<String, List<Library>> missingRecords = new HashMap<>();
+                for (String recordId : unknownRecordIds) {
+                    missingRecords.put(recordId, records.get(recordId));
+                }
+                missingByInstitution.put(rtaBaseUrl, missingRecords);
+            }
+        }
+        return missingByInstitution;
+    }
+
+    /**
+     * Set the holding status of each record in each library of an institution.
+     *
+     * @param rtaBaseUrl
+     * @param recordsToRequest
+     *            The libraries to update by record id.
+     * @param results
+     *            The availability of each record, or null if none.
+     * @return void
+     */
+    private void updateLibraries(String rtaBaseUrl, Map<String, List<Library>> recordsToRequest,
+            Map<String, HoldingStatus> results) {
+        if (results == null) {
+            logger.warn("No results for record identifiers: " + recordsToRequest.keySet() + " with rta base url: ["
+                    + rtaBaseUrl + "].");
+            return;
+        }
+        if (config.debug) {
+            logger.info("Updated holding status of records: " + results);
+        }
+
+        // Set status for each record in each library.
+        for (Entry<String, List<Library>> recordsToUpdate : recordsToRequest.entrySet()) {
+            String recordIdentifier = recordsToUpdate.getKey();
+            HoldingStatus holdingStatus = results.get(recordIdentifier);
+            // No result for this record.
+            if (holdingStatus == null) {
+                logger.warn("No response for record id [" + recordIdentifier + "].");
+            }
+            // Update all libraries for this record.
+            else {
+                for (Library library : recordsToUpdate.getValue()) {
+                    // TODO To be removed.
+                    if (config.debug) {
+                        logger.info("Update of record [" + recordIdentifier + "] for library ["
+                                + library.getLibraryCode() + "]: " + library.getHoldingStatus() + " => "
+                                + holdingStatus + ".");
+                    }
+                    // Update only if needed.
+                    if (library.getHoldingStatus() != holdingStatus) {
+                        library.setHoldingStatus(holdingStatus);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Re-map rta requests by institution, remote record ids and libraries.
+     *
+     * The institution is identified by its rta base url, because we don't know
+     * if there is an Institution class that can be used.
+     *
+     * This helper is useful to manage update of multiple records for multiple
+     * libraries. The Primo record id is not needed for that.
+     *
+     * @param rtaRequests
+     * @return
+     */
+    Map<String, Map<String, List<Library>>> sortRecordsByInstitution(List<RTARequest> rtaRequests) {
+        Map<String, Map<String, List<Library>>> recordsByInstitution = new HashMap<>();
+        Map<String, List<Library>> records;
+        // TODO Check if a Set of libraries can be used instead of a List.
+        List<Library> recordsLibraries;
+
+        for (RTARequest request : rtaRequests) {
+            List<Library> libraries = request.getLibraries();
+            // Quick check of libraries because we don't know if Primo do it.
+            if (libraries == null) {
+                logger.warn("No library is set in the rta request for primoRecordId ["
+                        + request.getPrimoRecordId() + "].");
+                continue;
+            }
+            // Quick check of record ids because we don't know if Primo do it.
+            String recordIdentifier = request.getRecordIdentifier();
+            if (recordIdentifier == null || recordIdentifier.isEmpty()) {
+                logger.warn("The record primoRecordId [" + request.getPrimoRecordId()
+                        + "] has no record identifier.");
+                continue;
+            }
+
+            for (Library library : libraries) {
+                String rtaBaseUrl = library.getRtaBaseURL();
+                // Quick check of base url because we don't know if Primo do it.
+                if (rtaBaseUrl == null || rtaBaseUrl.isEmpty()) {
+                    logger.warn("RTA base url is not defined in the request for library ["
+                            + library.getLibraryCode() + "] and primoRecordId ["
+                            + request.getPrimoRecordId() + "].");
+                    continue;
+                }
+
+                // Store the record for the library for the institution.
+                if (!recordsByInstitution.containsKey(rtaBaseUrl)) {
+                    records = new HashMap<String, List<Library>>();
+                    recordsByInstitution.put(rtaBaseUrl, records);
+                }
+                else {
+                    records = recordsByInstitution.get(rtaBaseUrl);
+                }
+
+                if (!records.containsKey(recordIdentifier)) {
+                    recordsLibraries = new ArrayList<Library>();
+                    records.put(recordIdentifier, recordsLibraries);
+                }
+                else {
+                    recordsLibraries = records.get(recordIdentifier);
+                }
+                recordsLibraries.add(library);
+            }
+        }
+
+        return recordsByInstitution;
+    }
+
+    /**
+     * Get the availability of records, merging the concurrent requests of the
+     * same records when enabled.
+     *
+     * @param recordIds
+     * @param rtaBaseUrl
+     * @return Availability of each record (record id -> holding status).
+     */
+    private Map<String, HoldingStatus> fetchAvailabilityForRecords(Set<String> recordIds, final String rtaBaseUrl) {
+        if (singleFlightRequests == null) {
+            return checkAvailabilityForRecords(recordIds, rtaBaseUrl);
+        }
+
+        // A thread waits for the request of another one no more than for its
+        // own request.
+        return singleFlightRequests.fetch(rtaBaseUrl, recordIds, requests.getMaxRequestTime(),
+                new SingleFlightRequests.Fetcher() {
+                    @Override
+                    public Map<String, HoldingStatus> fetch(Set<String> missingRecordIds) {
+                        return checkAvailabilityForRecords(missingRecordIds, rtaBaseUrl);
+                    }
+                });
+    }
+
+    /**
+     * Get the availability of records of an institution without waiting for
+     * the remote system.
+     *
+     * @param recordIds
+     * @param rtaBaseUrl
+     * @param isBlocking
+     *            When set and when Parallel is not set, the current thread
+     *            does the blocking request itself.
+     * @return Availability of each record (record id -> holding status), when
+     *         complete.
+     */
+    private AvailabilityFuture<Map<String, HoldingStatus>> fetchAvailabilityAsync(final Set<String> recordIds,
+            final String rtaBaseUrl, boolean isBlocking) {
+        if (nonBlockingClient != null && NonBlockingHttpClient.supports(rtaBaseUrl)) {
+            return checkAvailabilityForRecordsAsync(recordIds, rtaBaseUrl);
+        }
+
+        final AvailabilityFuture<Map<String, HoldingStatus>> request = new AvailabilityFuture<>();
+        if (isBlocking && !config.parallel) {
+            request.complete(fetchAvailabilityForRecords(recordIds, rtaBaseUrl));
+            return request;
+        }
+
+        // The xml tools are prepared by thread, so the responses are processed
+        // in the threads too. Without Parallel, the asynchronous checks use
+        // them too, so the caller is never blocked.
+        final Future<?> task;
+        try {
+            task = threads.executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        request.complete(fetchAvailabilityForRecords(recordIds, rtaBaseUrl));
+                    } catch (RuntimeException e) {
+                        request.fail(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The plugin is reinitialized.
+            request.complete(null);
+            return request;
+        }
+        request.addListener(new AvailabilityFuture.Listener<Map<String, HoldingStatus>>() {
+            @Override
+            public void onComplete(AvailabilityFuture<Map<String, HoldingStatus>> request) {
+                if (request.isCancelled()) {
+                    task.cancel(true);
+                }
+            }
+        });
+        return request;
+    }
+
+    /* Specific methods for the xml standard ILS-DI */
+
+    /**
+     * Calls ILS-DI service "GetAvailability", passing it the record ids and
+     * receiving back information for each library of the institution.
+     *
+     * The standard ILS-DI allows to pass multiple record ids by query. When
+     * there are too many records for one url, they are split in multiple
+     * requests, sent at the same time with the threads of the requests, and
+     * the results are merged.
+     *
+     * @param recordIds
+     *            The list of unique identifiers of the records to check on the
+     *            remote system.
+     * @return Availability of each record (record id -> holding status).
+     */
+    private Map<String, HoldingStatus> checkAvailabilityForRecords(Set<String> recordIds, final String rtaBaseUrl) {
+        List<Set<String>> chunks = urls.splitRecordIds(recordIds, rtaBaseUrl);
+        if (chunks.size() == 1) {
+            return checkAvailabilityForChunk(recordIds, rtaBaseUrl);
+        }
+
+        if (config.debug) {
+            logger.info("Records " + recordIds + " are requested in " + chunks.size() + " requests to ["
+                    + rtaBaseUrl + "].");
+        }
+
+        // The requests are sent at the same time even without Parallel,
+        // because they are the parts of a single check.
+        List<Map<String, HoldingStatus>> chunkResults = new ArrayList<>();
+        List<FutureTask<Map<String, HoldingStatus>>> requests = new ArrayList<>();
+        for (final Set<String> chunk : chunks) {
+            FutureTask<Map<String, HoldingStatus>> request = new FutureTask<>(
+                    new Callable<Map<String, HoldingStatus>>() {
+                        @Override
+                        public Map<String, HoldingStatus> call() {
+                            return checkAvailabilityForChunk(chunk, rtaBaseUrl);
+                        }
+                    });
+            requests.add(request);
+            try {
+                threads.executor.execute(request);
+            } catch (RejectedExecutionException e) {
+                // The plugin is reinitialized, so the current thread does
+                // the request itself.
+                request.run();
+            }
+        }
+        for (FutureTask<Map<String, HoldingStatus>> request : requests) {
+            // When all threads are busy, for example with the requests of
+            // other institutions, the current thread does the request
+            // itself.
+            if (threads.executor.remove(request)) {
+                request.run();
+            }
+            try {
+                chunkResults.add(request.get());
+            } catch (ExecutionException e) {
+                logger.warn("Failed when fetching response from [" + rtaBaseUrl + "]: " + e.getCause(), e);
+            } catch (InterruptedException e) {
+                for (Future<Map<String, HoldingStatus>> remaining : requests) {
+                    remaining.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        return mergeResults(chunkResults);
+    }
+
+    /**
+     * Calls ILS-DI service "GetAvailability" without waiting for the remote
+     * system, splitting the records in multiple requests when needed.
+     *
+     * @param recordIds
+     * @param rtaBaseUrl
+     * @return Availability of each record (record id -> holding status), when
+     *         all requests are complete.
+     */
+    private AvailabilityFuture<Map<String, HoldingStatus>> checkAvailabilityForRecordsAsync(Set<String> recordIds,
+            String rtaBaseUrl) {
+        List<Set<String>> chunks = urls.splitRecordIds(recordIds, rtaBaseUrl);
+        if (chunks.size() == 1) {
+            return checkAvailabilityForChunkAsync(recordIds, rtaBaseUrl);
+        }
+
+        if (config.debug) {
+            logger.info("Records " + recordIds + " are requested in " + chunks.size() + " requests to ["
+                    + rtaBaseUrl + "].");
+        }
+
+        final AvailabilityFuture<Map<String, HoldingStatus>> results = new AvailabilityFuture<>();
+        final List<AvailabilityFuture<Map<String, HoldingStatus>>> requests = new ArrayList<>();
+        for (Set<String> chunk : chunks) {
+            requests.add(checkAvailabilityForChunkAsync(chunk, rtaBaseUrl));
+        }
+
+        // Merge the results of all requests when the last one is complete.
+        final AtomicInteger remaining = new AtomicInteger(requests.size());
+        AvailabilityFuture.Listener<Map<String, HoldingStatus>> merge =
+                new AvailabilityFuture.Listener<Map<String, HoldingStatus>>() {
+                    @Override
+                    public void onComplete(AvailabilityFuture<Map<String, HoldingStatus>> request) {
+                        if (remaining.decrementAndGet() > 0) {
+                            return;
+                        }
+                        List<Map<String, HoldingStatus>> chunkResults = new ArrayList<>();
+                        for (AvailabilityFuture<Map<String, HoldingStatus>> chunkRequest : requests) {
+                            chunkResults.add(chunkRequest.getNow());
+                        }
+                        results.complete(mergeResults(chunkResults));
+                    }
+                };
+        for (AvailabilityFuture<Map<String, HoldingStatus>> request : requests) {
+            request.addListener(merge);
+        }
+
+        results.addListener(new AvailabilityFuture.Listener<Map<String, HoldingStatus>>() {
+            @Override
+            public void onComplete(AvailabilityFuture<Map<String, HoldingStatus>> results) {
+                if (results.isCancelled()) {
+                    for (AvailabilityFuture<Map<String, HoldingStatus>> request : requests) {
+                        request.cancel(true);
+                    }
+                }
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Merge the results of multiple requests to the same remote system.
+     *
+     * @param chunkResults
+     *            The results of each request, or null if none.
+     * @return Availability of each record (record id -> holding status), or
+     *         null if there is no result.
+     */
+    private Map<String, HoldingStatus> mergeResults(List<Map<String, HoldingStatus>> chunkResults) {
+        Map<String, HoldingStatus> results = null;
+        for (Map<String, HoldingStatus> chunkResult : chunkResults) {
+            if (chunkResult == null) {
+                continue;
+            }
+            if (results == null) {
+                results = new HashMap<>();
+            }
+            results.putAll(chunkResult);
+        }
+        return results;
+    }
+
+    /**
+     * Calls ILS-DI service "GetAvailability" for a list of records that can be
+     * sent in one request.
+     *
+     * @param recordIds
+     * @param rtaBaseUrl
+     * @return Availability of each record (record id -> holding status).
+     */
+    private Map<String, HoldingStatus> checkAvailabilityForChunk(Set<String> recordIds, String rtaBaseUrl) {
+        // Fail fast when the remote system doesn't respond.
+        if (circuitBreakers != null && !circuitBreakers.allowRequest(rtaBaseUrl)) {
+            if (config.debug) {
+                logger.info("Circuit breaker for [" + rtaBaseUrl + "] is open: records " + recordIds
+                        + " are not requested.");
+            }
+            return null;
+        }
+
+        // Don't pile up the requests when the remote systems are slow.
+        if (admissionControl != null && !admissionControl.tryAcquire(rtaBaseUrl)) {
+            return getLastKnownAvailability(recordIds, rtaBaseUrl);
+        }
+
+        try {
+            // Respect the rate allowed by the remote system.
+            if (rateLimiters != null && !rateLimiters.acquire(rtaBaseUrl)) {
+                if (config.debug) {
+                    logger.info("Rate limit of [" + rtaBaseUrl + "] is reached: records " + recordIds
+                            + " are not requested.");
+                }
+                return null;
+            }
+
+            Map<String, HoldingStatus> results = requests.requestAvailability(recordIds, rtaBaseUrl);
+            // A cancelled check is not a failure of the remote system.
+            if (results != null || !Thread.currentThread().isInterrupted()) {
+                recordChunkResults(recordIds, rtaBaseUrl, results);
+            }
+            return results;
+        } finally {
+            if (admissionControl != null) {
+                admissionControl.release(rtaBaseUrl);
+            }
+        }
+    }
+
+    /**
+     * Calls ILS-DI service "GetAvailability" for a list of records that can be
+     * sent in one request, without waiting for the remote system.
+     *
+     * @param recordIds
+     * @param rtaBaseUrl
+     * @return Availability of each record (record id -> holding status), when
+     *         the response is received.
+     */
+    private AvailabilityFuture<Map<String, HoldingStatus>> checkAvailabilityForChunkAsync(
+            final Set<String> recordIds, final String rtaBaseUrl) {
+        final AvailabilityFuture<Map<String, HoldingStatus>> results = new AvailabilityFuture<>();
+
+        // Fail fast when the remote system doesn't respond.
+        if (circuitBreakers != null && !circuitBreakers.allowRequest(rtaBaseUrl)) {
+            if (config.debug) {
+                logger.info("Circuit breaker for [" + rtaBaseUrl + "] is open: records " + recordIds
+                        + " are not requested.");
+            }
+            results.complete(null);
+            return results;
+        }
+
+        // Don't pile up the requests when the remote systems are slow. The
+        // place is released when the request is done, whatever the way.
+        final AdmissionControl admission = admissionControl;
+        if (admission != null) {
+            if (!admission.tryAcquire(rtaBaseUrl)) {
+                results.complete(getLastKnownAvailability(recordIds, rtaBaseUrl));
+                return results;
+            }
+            results.addListener(new AvailabilityFuture.Listener<Map<String, HoldingStatus>>() {
+                @Override
+                public void onComplete(AvailabilityFuture<Map<String, HoldingStatus>> results) {
+                    admission.release(rtaBaseUrl);
+                }
+            });
+        }
+
+        // Respect the rate allowed by the remote system, waiting without
+        // thread if needed.
+        long delay = rateLimiters == null ? 0 : rateLimiters.reserve(rtaBaseUrl);
+        if (delay < 0) {
+            if (config.debug) {
+                logger.info("Rate limit of [" + rtaBaseUrl + "] is reached: records " + recordIds
+                        + " are not requested.");
+            }
+            results.complete(null);
+            return results;
+        }
+
+        final String pUrl = urls.buildAvailabilityUrl(recordIds, rtaBaseUrl);
+        URL url = null;
+        try {
+            url = pUrl == null ? null : new URL(pUrl);
+        } catch (MalformedURLException e) {
+            logger.error("Request url [" + pUrl + "] is malformed: " + e.getMessage(), e);
+        }
+        if (url == null) {
+            results.complete(null);
+            return results;
+        }
+
+        final HttpRequestHandle handle = new HttpRequestHandle();
+        results.addListener(new AvailabilityFuture.Listener<Map<String, HoldingStatus>>() {
+            @Override
+            public void onComplete(AvailabilityFuture<Map<String, HoldingStatus>> results) {
+                if (results.isCancelled()) {
+                    handle.cancel();
+                }
+            }
+        });
+
+        final URL requestUrl = url;
+        Runnable send = new Runnable() {
+            @Override
+            public void run() {
+                requests.requestAvailabilityAsync(requestUrl, pUrl, recordIds.size(), rtaBaseUrl, handle)
+                        .addListener(new AvailabilityFuture.Listener<Map<String, HoldingStatus>>() {
+                            @Override
+                            public void onComplete(AvailabilityFuture<Map<String, HoldingStatus>> request) {
+                                Map<String, HoldingStatus> availability = request.getNow();
+                                try {
+                                    // A cancelled check is not a failure of
+                                    // the remote system.
+                                    if (availability != null || !handle.isCancelled()) {
+                                        recordChunkResults(recordIds, rtaBaseUrl, availability);
+                                    }
+                                } finally {
+                                    results.complete(availability);
+                                }
+                            }
+                        });
+            }
+        };
+        if (delay == 0) {
+            send.run();
+            return results;
+        }
+        try {
+            threads.scheduler.schedule(send, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The plugin is reinitialized.
+            results.complete(null);
+        }
+        return results;
+    }
+
+    /**
+     * Get the last known availability of records whose request is shed, from
+     * the cache, whatever its age.
+     *
+     * @param recordIds
+     * @param rtaBaseUrl
+     * @return Availability of the known records (record id -> holding status),
+     *         or null if none.
+     */
+    private Map<String, HoldingStatus> getLastKnownAvailability(Set<String> recordIds, String rtaBaseUrl) {
+        Map<String, HoldingStatus> results = caches.getLastKnownAvailability(recordIds, rtaBaseUrl);
+        admissionControl.recordLastKnown(results.size());
+        if (config.debug) {
+            logger.info("Too many requests in progress for [" + rtaBaseUrl + "]: records " + recordIds
+                    + " are not requested (" + results.size() + " last known).");
+        }
+        return results.isEmpty() ? null : results;
+    }
+
+    /**
+     * Keep the result of a request for the circuit breaker and the caches.
+     *
+     * @param recordIds
+     * @param rtaBaseUrl
+     * @param results
+     *            The availability of each record, or null if none.
+     * @return void
+     */
+    private void recordChunkResults(Set<String> recordIds, String rtaBaseUrl, Map<String, HoldingStatus> results) {
+        if (circuitBreakers != null) {
+            circuitBreakers.recordResult(rtaBaseUrl, recordIds, results != null);
+        }
+        if (results != null) {
+            caches.putAll(rtaBaseUrl, recordIds, results);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package net.berthereau.exlibris.rta;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of an asynchronous check of availability, that notifies listeners
+ * when it is complete.
+ *
+ * The listeners are called by the thread that completes the future, or by the
+ * thread that adds them when the future is already complete, so they should
+ * be quick and never block.
+ *
+ * @internal CompletableFuture is not available in the version of Java used by
+ *           Primo, so this is a minimal equivalent.
+ */
+public class AvailabilityFuture<V> implements Future<V> {
+
+    /**
+     * Process called once when the future is complete, cancelled or failed.
+     */
+    public interface Listener<V> {
+        void onComplete(AvailabilityFuture<V> future);
+    }
+
+    private static final int PENDING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELLED = 3;
+
+    private int state = PENDING;
+    private V value;
+    private Exception cause;
+    private List<Listener<V>> listeners = new ArrayList<>();
+
+    /**
+     * Add a process to call when the future is complete.
+     *
+     * @param listener
+     * @return void
+     */
+    public void addListener(Listener<V> listener) {
+        synchronized (this) {
+            if (state == PENDING) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(CANCELLED, null, null);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return state == CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return state != PENDING;
+    }
+
+    @Override
+    public synchronized V get() throws InterruptedException, ExecutionException {
+        while (state == PENDING) {
+            wait();
+        }
+        return report();
+    }
+
+    @Override
+    public synchronized V get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (state == PENDING) {
+            long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (wait <= 0) {
+                throw new TimeoutException();
+            }
+            wait(wait);
+        }
+        return report();
+    }
+
+    /**
+     * Set the result of the future, if it is not already complete.
+     *
+     * @param value
+     * @return False if the future was already complete.
+     */
+    boolean complete(V value) {
+        return finish(SUCCEEDED, value, null);
+    }
+
+    /**
+     * Set the failure of the future, if it is not already complete.
+     *
+     * @param cause
+     * @return False if the future was already complete.
+     */
+    boolean fail(Exception cause) {
+        return finish(FAILED, null, cause);
+    }
+
+    /**
+     * Get the result without waiting.
+     *
+     * @return The result, or null if the future is not complete, failed or
+     *         cancelled.
+     */
+    synchronized V getNow() {
+        return state == SUCCEEDED ? value : null;
+    }
+
+    /**
+     * Get the failure of the future, if any.
+     *
+     * @return Exception
+     */
+    synchronized Exception getCause() {
+        return cause;
+    }
+
+    private boolean finish(int newState, V newValue, Exception newCause) {
+        List<Listener<V>> completed;
+        synchronized (this) {
+            if (state != PENDING) {
+                return false;
+            }
+            state = newState;
+            value = newValue;
+            cause = newCause;
+            completed = listeners;
+            listeners = null;
+            notifyAll();
+        }
+        // The listeners are called without lock, so they can use the future.
+        for (Listener<V> listener : completed) {
+            notifyListener(listener);
+        }
+        return true;
+    }
+
+    private void notifyListener(Listener<V> listener) {
+        try {
+            listener.onComplete(this);
+        } catch (RuntimeException e) {
+            // A failing listener doesn't prevent the other ones to be called.
+        }
+    }
+
+    private V report() throws ExecutionException {
+        if (state == CANCELLED) {
+            throw new CancellationException();
+        }
+        if (state == FAILED) {
+            throw new ExecutionException(cause);
+        }
+        return value;
+    }
+}
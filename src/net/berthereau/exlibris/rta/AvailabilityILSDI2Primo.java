@@ -63,17 +63,25 @@ public class AvailabilityILSDI2Primo {
      * @return
      */
     public static HoldingStatus convert(AvailabilityStatus status) {
-        if (!emap.containsKey(status)) {
-            return null;
-        }
-        return emap.get(status);
+        // The map contains no null value, so a single lookup is enough.
+        return status == null ? null : emap.get(status);
     }
 
     public static HoldingStatus convert(String status) {
-        if (!esmap.containsKey(status)) {
-            return null;
-        }
-        return esmap.get(status);
+        return status == null ? null : esmap.get(status);
+    }
+
+    /**
+     * Get Primo holding status from the characters of an ILS-DI availability
+     * status, as provided by a xml parser, without creating any string.
+     *
+     * @param buffer
+     * @param start
+     * @param length
+     * @return The holding status, or null if the characters are not a status.
+     */
+    public static HoldingStatus convert(char[] buffer, int start, int length) {
+        return convert(AvailabilityStatus.getFromChars(buffer, start, length));
     }
 
     public static Collection<HoldingStatus> values() {
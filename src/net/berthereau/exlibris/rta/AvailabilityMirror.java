@@ -0,0 +1,246 @@
+package net.berthereau.exlibris.rta;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.exlibris.primo.api.common.IPrimoLogger;
+import com.exlibris.primo.api.plugins.rta.HoldingStatus;
+
+/**
+ * Keeps a local copy of the availability of all the records of the remote
+ * systems, harvested regularly in the background, so the views don't request
+ * the remote systems that can't manage the query rate of Primo.
+ *
+ * An institution is harvested fully when it is requested for the first time,
+ * then only the records changed since the previous harvest are requested.
+ * Until the first harvest is done, and for the records that are not in the
+ * harvest, the remote system is requested as usual. When the harvests of an
+ * institution fail for a few intervals, its copy is too old to be used, so the
+ * remote system is requested again until a harvest succeeds.
+ *
+ * @internal The records deleted in the remote system are not removed, because
+ *           the incremental harvest doesn't list them, but they are not
+ *           displayed by Primo either.
+ */
+class AvailabilityMirror {
+
+    /**
+     * Process that requests the records changed in a remote system.
+     */
+    interface Harvester {
+        /**
+         * @param rtaBaseUrl
+         * @param from
+         *            The date of the previous harvest, or null for a full
+         *            harvest.
+         * @return Availability of each changed record (record id -> holding
+         *         status), or null if the harvest failed.
+         */
+        Map<String, HoldingStatus> harvest(String rtaBaseUrl, Date from);
+    }
+
+    // The clocks of the servers may be different, so the harvests overlap.
+    private static final long OVERLAP = 60000L;
+
+    // Number of intervals without successful harvest before the copy of an
+    // institution is not used.
+    private static final int MAX_AGE_INTERVALS = 3;
+
+    private final IPrimoLogger logger;
+    private final long interval;
+    private final ScheduledExecutorService scheduler;
+    private final Harvester harvester;
+
+    private final ConcurrentMap<String, Institution> institutions = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong harvests = new AtomicLong();
+
+    /**
+     * The availability of the records of a remote system and the date of its
+     * last successful harvest.
+     */
+    private static class Institution {
+        private final ConcurrentMap<String, HoldingStatus> statuses = new ConcurrentHashMap<>();
+        // 0 until the first harvest is done.
+        private volatile long lastHarvest;
+    }
+
+    /**
+     * @param logger
+     * @param interval
+     *            Time between two harvests of an institution, in milliseconds.
+     * @param scheduler
+     *            Thread used to harvest, that is stopped on close.
+     * @param harvester
+     */
+    AvailabilityMirror(IPrimoLogger logger, long interval, ScheduledExecutorService scheduler,
+            Harvester harvester) {
+        this.logger = logger;
+        this.interval = interval;
+        this.scheduler = scheduler;
+        this.harvester = harvester;
+    }
+
+    /**
+     * Get the availability of a record from the local copy, and start to
+     * harvest the institution if it is unknown.
+     *
+     * @param rtaBaseUrl
+     * @param recordId
+     * @return The status, or null if the record is not harvested.
+     */
+    HoldingStatus get(String rtaBaseUrl, String recordId) {
+        Institution institution = institutions.get(rtaBaseUrl);
+        if (institution == null) {
+            register(rtaBaseUrl);
+            misses.incrementAndGet();
+            return null;
+        }
+        HoldingStatus holdingStatus = isStale(institution, System.currentTimeMillis())
+                ? null
+                : institution.statuses.get(recordId);
+        (holdingStatus == null ? misses : hits).incrementAndGet();
+        return holdingStatus;
+    }
+
+    /**
+     * Update the local copy with the availability of records received from the
+     * remote system, if the institution is harvested.
+     *
+     * @param rtaBaseUrl
+     * @param results
+     *            Availability of each record (record id -> holding status).
+     * @return void
+     */
+    void putAll(String rtaBaseUrl, Map<String, HoldingStatus> results) {
+        Institution institution = institutions.get(rtaBaseUrl);
+        if (institution != null) {
+            institution.statuses.putAll(results);
+        }
+    }
+
+    /**
+     * Stop the harvests.
+     *
+     * @return void
+     */
+    void close() {
+        scheduler.shutdownNow();
+    }
+
+    int size() {
+        int size = 0;
+        for (Institution institution : institutions.values()) {
+            size += institution.statuses.size();
+        }
+        return size;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getHarvests() {
+        return harvests.get();
+    }
+
+    /**
+     * @return Number of institutions whose copy is too old to be used.
+     */
+    int getStaleInstitutions() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (Institution institution : institutions.values()) {
+            if (institution.lastHarvest != 0 && isStale(institution, now)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the time since the last successful harvest of the oldest copy.
+     *
+     * @return In milliseconds, or -1 if no institution is harvested.
+     */
+    long getAge() {
+        long now = System.currentTimeMillis();
+        long age = -1L;
+        for (Institution institution : institutions.values()) {
+            long lastHarvest = institution.lastHarvest;
+            if (lastHarvest != 0) {
+                age = Math.max(age, now - lastHarvest);
+            }
+        }
+        return age;
+    }
+
+    /**
+     * @param institution
+     * @param now
+     * @return True if the institution is not harvested yet or if its last
+     *         successful harvest is too old.
+     */
+    private boolean isStale(Institution institution, long now) {
+        long lastHarvest = institution.lastHarvest;
+        return lastHarvest == 0 || now - lastHarvest > MAX_AGE_INTERVALS * interval;
+    }
+
+    private void register(final String rtaBaseUrl) {
+        final Institution institution = new Institution();
+        if (institutions.putIfAbsent(rtaBaseUrl, institution) != null) {
+            return;
+        }
+        try {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    harvest(rtaBaseUrl, institution);
+                }
+            }, 0L, interval, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The plugin is reinitialized.
+        }
+    }
+
+    private void harvest(String rtaBaseUrl, Institution institution) {
+        long start = System.currentTimeMillis();
+        Date from = institution.lastHarvest == 0 ? null : new Date(institution.lastHarvest - OVERLAP);
+        Map<String, HoldingStatus> results;
+        try {
+            results = harvester.harvest(rtaBaseUrl, from);
+        } catch (RuntimeException e) {
+            logger.warn("Failed when harvesting [" + rtaBaseUrl + "]: " + e.getMessage(), e);
+            warnIfStale(rtaBaseUrl, institution);
+            return;
+        }
+        // The next harvest will request the same records again.
+        if (results == null) {
+            warnIfStale(rtaBaseUrl, institution);
+            return;
+        }
+        institution.statuses.putAll(results);
+        institution.lastHarvest = start;
+        harvests.incrementAndGet();
+    }
+
+    private void warnIfStale(String rtaBaseUrl, Institution institution) {
+        long lastHarvest = institution.lastHarvest;
+        if (lastHarvest != 0 && isStale(institution, System.currentTimeMillis())) {
+            logger.warn("The local copy of [" + rtaBaseUrl + "] was harvested at [" + new Date(lastHarvest)
+                    + "]: it is too old, so the remote system is requested until the next successful harvest.");
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package net.berthereau.exlibris.rta;
+
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.exlibris.primo.api.common.IPrimoLogger;
+import com.exlibris.primo.api.plugins.rta.HoldingStatus;
+
+/**
+ * Sends the requests to the ILS-DI services of the remote systems, blocking or
+ * not, with the timeouts of each remote system and a second request when it is
+ * slow, then records their metrics, their traces and their captures.
+ *
+ * The requests are not filtered: the circuit breakers, the rate limits and the
+ * caches are checked before by the checker.
+ */
+class AvailabilityRequests {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final IPrimoLogger logger;
+    private final PluginConfig config;
+    private final IlsdiUrls urls;
+    private final AvailabilityResponseParser parser;
+    private final IlsdiHttpClient httpClient;
+
+    // Client that requests the remote systems without waiting, if enabled.
+    private final NonBlockingHttpClient nonBlockingClient;
+
+    // Second requests to slow remote systems and the response times they
+    // use, if enabled.
+    private final HedgedRequests hedgedRequests;
+    private final EndpointLatencies latencies;
+
+    // Timeouts by remote system, if enabled.
+    private final AdaptiveTimeouts adaptiveTimeouts;
+
+    // Counters and durations of the requests, published via JMX.
+    private final PluginMetrics metrics;
+
+    // Summaries of the last requests, if enabled.
+    private final RequestTraces requestTraces;
+
+    // Copy of the responses in a file, if enabled.
+    private final RequestCapture requestCapture;
+
+    /**
+     * @param logger
+     * @param config
+     * @param urls
+     * @param parser
+     * @param httpClient
+     * @param nonBlockingClient
+     *            The client of the non-blocking requests, or null.
+     * @param hedgedRequests
+     *            Or null.
+     * @param latencies
+     *            Or null.
+     * @param adaptiveTimeouts
+     *            Or null.
+     * @param metrics
+     * @param requestTraces
+     *            Or null.
+     * @param requestCapture
+     *            Or null.
+     */
+    AvailabilityRequests(IPrimoLogger logger, PluginConfig config, IlsdiUrls urls,
+            AvailabilityResponseParser parser, IlsdiHttpClient httpClient, NonBlockingHttpClient nonBlockingClient,
+            HedgedRequests hedgedRequests, EndpointLatencies latencies, AdaptiveTimeouts adaptiveTimeouts,
+            PluginMetrics metrics, RequestTraces requestTraces, RequestCapture requestCapture) {
+        this.logger = logger;
+        this.config = config;
+        this.urls = urls;
+        this.parser = parser;
+        this.httpClient = httpClient;
+        this.nonBlockingClient = nonBlockingClient;
+        this.hedgedRequests = hedgedRequests;
+        this.latencies = latencies;
+        this.adaptiveTimeouts = adaptiveTimeouts;
+        this.metrics = metrics;
+        this.requestTraces = requestTraces;
+        this.requestCapture = requestCapture;
+    }
+
+    /**
+     * Send a request to the ILS-DI service "GetAvailability" and convert its
+     * response.
+     *
+     * @param recordIds
+     * @param rtaBaseUrl
+     * @return Availability of each record (record id -> holding status).
+     */
+    Map<String, HoldingStatus> requestAvailability(Set<String> recordIds, final String rtaBaseUrl) {
+        final String pUrl = urls.buildAvailabilityUrl(recordIds, rtaBaseUrl);
+        if (pUrl == null) {
+            return null;
+        }
+
+        final int recordCount = recordIds.size();
+        if (hedgedRequests == null) {
+            return timedRequestAvailability(pUrl, rtaBaseUrl, recordCount, new HttpRequestHandle());
+        }
+
+        // A second request may be sent when the remote system is slow.
+        Map<String, HoldingStatus> results = hedgedRequests.send(rtaBaseUrl,
+                new HedgedRequests.Request<Map<String, HoldingStatus>>() {
+                    @Override
+                    public Map<String, HoldingStatus> send(HttpRequestHandle handle) {
+                        return timedRequestAvailability(pUrl, rtaBaseUrl, recordCount, handle);
+                    }
+                }, getMaxRequestTime());
+        if (config.debug) {
+            logger.info("Hedged requests: " + hedgedRequests.getHedged() + " / " + hedgedRequests.getRequests()
+                    + ", faster: " + hedgedRequests.getHedgedWins() + ".");
+        }
+        return results;
+    }
+
+    /**
+     * Request and decode the availability of records and record the response
+     * time and the metrics.
+     *
+     * @param pUrl
+     * @param rtaBaseUrl
+     * @param recordCount
+     * @param handle
+     * @return Availability of each record (record id -> holding status), or
+     *         null if there is no result.
+     */
+    private Map<String, HoldingStatus> timedRequestAvailability(String pUrl, String rtaBaseUrl, int recordCount,
+            HttpRequestHandle handle) {
+        setTimeouts(handle, rtaBaseUrl);
+        handle.markStarted();
+        long start = System.nanoTime();
+        Map<String, HoldingStatus> results;
+        String output = null;
+        long parseTime = -1L;
+        if (config.streaming) {
+            // The parse is done during the read of the body.
+            results = httpClient.httpGetAvailability(pUrl, handle);
+        }
+        else {
+            output = httpClient.httpGet(pUrl, handle);
+            long parseStart = System.nanoTime();
+            results = parser.readAvailabilityResponse(output);
+            if (output != null) {
+                parseTime = System.nanoTime() - parseStart;
+            }
+        }
+        long duration = System.nanoTime() - start;
+        recordRequest(rtaBaseUrl, recordCount, handle, results, parseTime, duration);
+        if (requestTraces != null && requestTraces.isSampled(handle)) {
+            requestTraces.add(pUrl, handle, results, output, handle.getBodyLength(), duration);
+        }
+        if (requestCapture != null && output != null) {
+            requestCapture.addResponse(pUrl, output);
+        }
+        return results;
+    }
+
+    /**
+     * Send a request to the ILS-DI service "GetAvailability" without waiting
+     * for the remote system.
+     *
+     * @param url
+     * @param pUrl
+     * @param recordCount
+     * @param rtaBaseUrl
+     * @param handle
+     *            Allows to cancel the request.
+     * @return Availability of each record (record id -> holding status), when
+     *         the response is received.
+     */
+    AvailabilityFuture<Map<String, HoldingStatus>> requestAvailabilityAsync(URL url, final String pUrl,
+            final int recordCount, final String rtaBaseUrl, final HttpRequestHandle handle) {
+        final AvailabilityFuture<Map<String, HoldingStatus>> results = new AvailabilityFuture<>();
+        setTimeouts(handle, rtaBaseUrl);
+        final long start = System.nanoTime();
+        handle.markStarted();
+
+        // Currently, only accept DLF SimpleAvailability xml format. The whole
+        // request is limited to the longest time a check waits for it.
+        nonBlockingClient.get(url, "text/xml", handle.getConnectTimeout(), handle.getReadTimeout(),
+                handle.getConnectTimeout() + handle.getReadTimeout(), handle,
+                new NonBlockingHttpClient.Callback() {
+                    @Override
+                    public void completed(HttpConnectionPool.Response response) {
+                        Map<String, HoldingStatus> availability = null;
+                        long parseTime = -1L;
+                        try {
+                            if (response.statusCode != 200) {
+                                handle.setOutcome(HttpRequestHandle.Outcome.HTTP_ERROR);
+                                logger.warn("Failed to receive correct response. HTTP error code: "
+                                        + response.statusCode);
+                            }
+                            else {
+                                long parseStart = System.nanoTime();
+                                availability = parser.decodeResponse(pUrl, response, handle);
+                                parseTime = System.nanoTime() - parseStart;
+                            }
+                        } finally {
+                            finish(availability, parseTime, response);
+                        }
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        handle.setFailure(e);
+                        // A cancelled request is not an error.
+                        if (!handle.isCancelled()) {
+                            logger.warn("Failed when fetching response: " + e.getMessage(), e);
+                        }
+                        finish(null, -1L, null);
+                    }
+
+                    private void finish(Map<String, HoldingStatus> availability, long parseTime,
+                            HttpConnectionPool.Response response) {
+                        try {
+                            long duration = System.nanoTime() - start;
+                            recordRequest(rtaBaseUrl, recordCount, handle, availability, parseTime, duration);
+                            boolean isTraced = requestTraces != null && requestTraces.isSampled(handle);
+                            if (!isTraced && requestCapture == null) {
+                                return;
+                            }
+                            // The compressed body is not converted.
+                            boolean hasBody = response != null && !config.streaming;
+                            if (isTraced) {
+                                // Only the start of the body is kept in the
+                                // traces, so only it is converted.
+                                String prefix = hasBody
+                                        ? new String(response.body, 0,
+                                                Math.min(response.body.length, RequestTraces.MAX_BODY_LENGTH * 4),
+                                                response.getCharset(UTF_8))
+                                        : null;
+                                requestTraces.add(pUrl, handle, availability, prefix,
+                                        response == null ? -1L : response.body.length, duration);
+                            }
+                            if (requestCapture != null && hasBody) {
+                                requestCapture.addResponse(pUrl,
+                                        new String(response.body, response.getCharset(UTF_8)));
+                            }
+                        } finally {
+                            results.complete(availability);
+                        }
+                    }
+                });
+        return results;
+    }
+
+    /**
+     * Record the outcome, the response time and the metrics of a request.
+     *
+     * @param rtaBaseUrl
+     * @param recordCount
+     * @param handle
+     * @param results
+     *            The availability of each record, or null if none.
+     * @param parseTime
+     *            In nanoseconds, or -1 if unknown.
+     * @param duration
+     *            In nanoseconds.
+     * @return void
+     */
+    private void recordRequest(String rtaBaseUrl, int recordCount, HttpRequestHandle handle,
+            Map<String, HoldingStatus> results, long parseTime, long duration) {
+        // The network failures are already known.
+        if (handle.getOutcome() == null) {
+            handle.setOutcome(results == null
+                    ? HttpRequestHandle.Outcome.UNPARSEABLE
+                    : HttpRequestHandle.Outcome.SUCCESS);
+        }
+        if (metrics != null) {
+            metrics.get(rtaBaseUrl).record(recordCount, handle, parseTime, duration);
+        }
+        if (results != null && latencies != null) {
+            latencies.record(rtaBaseUrl, TimeUnit.NANOSECONDS.toMillis(duration));
+        }
+        if (adaptiveTimeouts != null) {
+            if (results != null) {
+                adaptiveTimeouts.record(rtaBaseUrl, handle);
+            }
+            // A slower remote system should not be cut off forever.
+            else if (handle.getOutcome() == HttpRequestHandle.Outcome.TIMEOUT && !handle.isCancelled()) {
+                adaptiveTimeouts.recordTimeout(rtaBaseUrl, handle);
+            }
+        }
+    }
+
+    /**
+     * Set the timeouts of a request to a remote system, fixed or adapted to
+     * its response times.
+     *
+     * @param handle
+     * @param rtaBaseUrl
+     * @return void
+     */
+    private void setTimeouts(HttpRequestHandle handle, String rtaBaseUrl) {
+        if (adaptiveTimeouts == null) {
+            handle.setTimeouts(config.connectionTimeout, config.readTimeout);
+            return;
+        }
+        handle.setTimeouts(adaptiveTimeouts.getConnectTimeout(rtaBaseUrl), adaptiveTimeouts.getReadTimeout(rtaBaseUrl));
+        if (config.debug) {
+            logger.info("Timeouts for [" + rtaBaseUrl + "]: " + handle.getConnectTimeout() + " ms to connect, "
+                    + handle.getReadTimeout() + " ms to read.");
+        }
+    }
+
+    /**
+     * Get the longest time a request to a remote system may last.
+     *
+     * @return In milliseconds.
+     */
+    int getMaxRequestTime() {
+        return adaptiveTimeouts == null
+                ? config.connectionTimeout + config.readTimeout
+                : adaptiveTimeouts.getMaxRequestTime();
+    }
+
+    /**
+     * Request the availability of the records changed in a remote system via
+     * the ILS-DI service "HarvestHoldingsRecords".
+     *
+     * @param rtaBaseUrl
+     * @param from
+     *            The date of the previous harvest, or null for all records.
+     * @return Availability of each record (record id -> holding status), or
+     *         null if the harvest failed.
+     */
+    Map<String, HoldingStatus> harvestAvailability(String rtaBaseUrl, Date from) {
+        String pUrl = urls.buildHarvestUrl(rtaBaseUrl, from);
+        if (pUrl == null) {
+            return null;
+        }
+
+        // The read timeout applies to each read, so a long response is
+        // fully received.
+        long start = System.nanoTime();
+        HttpRequestHandle handle = new HttpRequestHandle();
+        handle.setTimeouts(config.connectionTimeout, config.readTimeout);
+        Map<String, HoldingStatus> results = parser.readAvailabilityResponse(httpClient.httpGet(pUrl, handle));
+        if (results == null) {
+            logger.warn("No harvest of the holdings of [" + rtaBaseUrl + "]: the local copy is not updated.");
+        }
+        else if (config.debug) {
+            logger.info("Harvested " + results.size() + " records from [" + rtaBaseUrl + "] in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+        }
+        return results;
+    }
+}
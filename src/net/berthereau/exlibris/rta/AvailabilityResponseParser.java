@@ -0,0 +1,320 @@
+package net.berthereau.exlibris.rta;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+
+import net.berthereau.exlibris.rta.XmlProcessorPool.XmlProcessor;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import com.exlibris.primo.api.common.IPrimoLogger;
+import com.exlibris.primo.api.plugins.rta.HoldingStatus;
+
+/**
+ * Converts the responses of the ILS-DI service "GetAvailability" into the
+ * holding status of each record, with XPath or with StAX, according to the
+ * parser set in the params.
+ */
+class AvailabilityResponseParser {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final IPrimoLogger logger;
+    private final PluginConfig config;
+
+    // Prepare xml tools during init so they will be available quickly to
+    // process each response, by thread.
+    private final XmlProcessorPool xmlProcessors;
+
+    // Streaming process of the responses, used when the parser is "stax".
+    private final StaxAvailabilityDecoder staxDecoder;
+
+    /**
+     * Prepare the xml tools used to process each response.
+     *
+     * @param logger
+     * @param config
+     * @throws ParserConfigurationException
+     * @throws XPathExpressionException
+     */
+    AvailabilityResponseParser(IPrimoLogger logger, PluginConfig config)
+            throws ParserConfigurationException, XPathExpressionException {
+        this.logger = logger;
+        this.config = config;
+        xmlProcessors = new XmlProcessorPool();
+        staxDecoder = config.parser.equals("stax")
+                ? new StaxAvailabilityDecoder(config.idType, config.returnType)
+                : null;
+    }
+
+    /**
+     * Convert the response of the ILS-DI service "GetAvailability".
+     *
+     * @param output
+     *            The response of the remote system, or null if none.
+     * @return Availability of each record (record id -> holding status).
+     */
+    Map<String, HoldingStatus> readAvailabilityResponse(String output) {
+        if (output == null) {
+            return null;
+        }
+
+        if (config.debug) {
+            logger.info("Received response: " + output);
+        }
+
+        // Convert the result and return it.
+        // Currently, only accept DLF SimpleAvailability xml format.
+        if (staxDecoder != null) {
+            return decodeSimpleAvailability(output);
+        }
+        return extractSimpleAvailability(output);
+    }
+
+    /**
+     * Helper to convert returned string as xml standard of DLF for ILS-DI into
+     * a java map in one pass, without xml document.
+     *
+     * @see StaxAvailabilityDecoder
+     *
+     * @param output
+     * @return Extracted availability.
+     */
+    private Map<String, HoldingStatus> decodeSimpleAvailability(String output) {
+        try {
+            return staxDecoder.decode(new StringReader(output));
+        } catch (XMLStreamException e) {
+            logger.warn("Cannot process response: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Helper to convert returned string as xml standard of DLF for ILS-DI into
+     * a java map, that can manage bib and item level.
+     *
+     * @internal By default, process is done via a simple XPath and not via a
+     *           StAX model, because ILS-DI responses with the default format
+     *           (SimpleAvailability) are light. The StAX model is used when
+     *           the parser is "stax".
+     *
+     * @see http://diglib.org/ilsdi/1.1
+     *
+     * @param xmlString
+     * @return Extracted availability.
+     */
+    private Map<String, HoldingStatus> extractSimpleAvailability(String output) {
+        XmlProcessor xml = xmlProcessors.get();
+        Document doc = convertStringToXml(xml, output);
+        if (doc == null) {
+            logger.warn("Cannot process response as XML: " + output);
+            return null;
+        }
+
+        return extractSimpleAvailability(xml, doc);
+    }
+
+    /**
+     * Helper to convert a xml document of DLF for ILS-DI into a java map.
+     *
+     * @param xml
+     *            The xml tools of the current thread.
+     * @param doc
+     * @return Extracted availability.
+     */
+    private Map<String, HoldingStatus> extractSimpleAvailability(XmlProcessor xml, Document doc) {
+
+        Map<String, HoldingStatus> results = new HashMap<>();
+
+        // TODO Institution is not used, because the query is done for one
+        // institution only.
+
+        NodeList records;
+        Node record;
+        String recordId;
+        String status;
+        HoldingStatus statusPrimo;
+        int countItems, countAvailable, countUnavailable;
+        try {
+            // Prepare process for each record.
+            records = (NodeList) xml.exprRecordsList.evaluate(doc, XPathConstants.NODESET);
+            for (int i = 0, num = records.getLength(); i < num; i++) {
+                record = records.item(i);
+
+                switch (config.idType) {
+                    case "bib":
+                        switch (config.returnType) {
+                            case "bib":
+                                recordId = (String) xml.exprRecordId.evaluate(record, XPathConstants.STRING);
+                                status = (String) xml.exprAvailability.evaluate(record, XPathConstants.STRING);
+                                statusPrimo = AvailabilityILSDI2Primo.convert(status);
+                                if (statusPrimo == null) {
+                                    throw new Exception("Response contains an unknown status for bib: " + status + ".");
+                                }
+                                results.put(recordId, statusPrimo);
+                                break;
+
+                            case "item":
+                                recordId = (String) xml.exprRecordId.evaluate(record, XPathConstants.STRING);
+                                // If one is available, returns available. If
+                                // all are not available, returns unavailable;
+                                // else returns check holdings.
+                                countItems = ((Double) xml.exprCountItems.evaluate(record, XPathConstants.NUMBER))
+                                        .intValue();
+                                countAvailable =
+                                        ((Double) xml.exprCountItemsAvailable.evaluate(record, XPathConstants.NUMBER))
+                                                .intValue();
+                                if (countAvailable > 0) {
+                                    statusPrimo = HoldingStatus.AVAILABLE;
+                                }
+                                // None available.
+                                // TODO Add a response check as for bib?
+                                else {
+                                    countUnavailable =
+                                            ((Double) xml.exprCountItemsUnavailable.evaluate(record, XPathConstants.NUMBER))
+                                                    .intValue();
+                                    statusPrimo = (countUnavailable == countItems)
+                                            ? HoldingStatus.UNAVAILABLE
+                                            : HoldingStatus.CHECKHOLDING;
+                                }
+                                results.put(recordId, statusPrimo);
+                                break;
+                        }
+                        break;
+
+                    case "item":
+                        switch (config.returnType) {
+                            case "bib":
+                                throw new Exception(
+                                        "To use [item] as IdType and [bib] as ReturnType is currently unsupported.");
+
+                            case "item":
+                                NodeList items;
+                                Node item;
+                                String itemId;
+                                // In ILS-DI, the location may not be the
+                                // library name, so mapping may be difficult.
+                                // Furthermore, the location is not a required
+                                // element. So we can't check it against Primo
+                                // list.
+                                items = (NodeList) xml.exprItemsList.evaluate(record, XPathConstants.NODESET);
+                                countItems = items.getLength();
+                                for (int j = 0; j < countItems; j++) {
+                                    item = items.item(j);
+                                    itemId = (String) xml.exprItemId.evaluate(item, XPathConstants.STRING);
+                                    status = (String) xml.exprAvailability.evaluate(item, XPathConstants.STRING);
+                                    statusPrimo = AvailabilityILSDI2Primo.convert(status.trim());
+                                    if (statusPrimo == null) {
+                                        throw new Exception("Response contains an unknown status for item: " + status
+                                                + ".");
+                                    }
+                                    results.put(itemId, statusPrimo);
+                                }
+                                break;
+                        }
+                        break;
+                }
+            }
+        } catch (XPathExpressionException xpe) {
+            logger.warn("Cannot process records of the response: " + xpe.getMessage(), xpe);
+            return null;
+        } catch (Exception e) {
+            logger.warn("Cannot process response: " + e.getMessage(), e);
+            return null;
+        }
+
+        return results;
+    }
+
+    /**
+     * Decode a response of the ILS-DI service "GetAvailability" that is fully
+     * received.
+     *
+     * @param pUrl
+     * @param response
+     *            A successful response.
+     * @param handle
+     * @return Availability of each record (record id -> holding status), or
+     *         null if the response cannot be processed.
+     */
+    Map<String, HoldingStatus> decodeResponse(String pUrl, HttpConnectionPool.Response response,
+            HttpRequestHandle handle) {
+        if (!config.streaming) {
+            return readAvailabilityResponse(new String(response.body, response.getCharset(UTF_8)));
+        }
+
+        // The body is kept compressed and is not converted into a string.
+        Map<String, HoldingStatus> results;
+        try (Reader reader = new InputStreamReader(response.openBody(), response.getCharset(UTF_8))) {
+            results = decodeAvailability(reader);
+        } catch (IOException | SAXException | XMLStreamException e) {
+            handle.setOutcome(HttpRequestHandle.Outcome.UNPARSEABLE);
+            logger.warn("Cannot process response: " + e.getMessage(), e);
+            return null;
+        }
+        if (config.debug) {
+            logger.info("Received response via [" + pUrl + "], decoded while streaming.");
+        }
+        return results;
+    }
+
+    /**
+     * Decode a response of the ILS-DI service "GetAvailability" while it is
+     * read.
+     *
+     * @param reader
+     * @return Availability of each record (record id -> holding status), or
+     *         null if the response cannot be processed.
+     * @throws IOException
+     * @throws SAXException
+     * @throws XMLStreamException
+     */
+    Map<String, HoldingStatus> decodeAvailability(Reader reader)
+            throws IOException, SAXException, XMLStreamException {
+        // Currently, only accept DLF SimpleAvailability xml format.
+        if (staxDecoder != null) {
+            return staxDecoder.decode(reader);
+        }
+        XmlProcessor xml = xmlProcessors.get();
+        return extractSimpleAvailability(xml, xml.parse(reader));
+    }
+
+    /**
+     * Check and convert a string into an xml document.
+     *
+     * @param xmlProcessor
+     *            The xml tools of the current thread.
+     * @param xmlString
+     * @return XML Document.
+     */
+    private Document convertStringToXml(XmlProcessor xmlProcessor, String xmlString) {
+        Document document;
+        try {
+            document = xmlProcessor.parse(xmlString);
+        } catch (SAXException se) {
+            if (config.debug) {
+                logger.error("Error in SAX: " + se.getMessage(), se);
+            }
+            return null;
+        } catch (IOException ioe) {
+            if (config.debug) {
+                logger.error("Error In/Out: " + ioe.getMessage(), ioe);
+            }
+            return null;
+        }
+        return document;
+    }
+}
@@ -0,0 +1,163 @@
+package net.berthereau.exlibris.rta;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.exlibris.primo.api.common.IPrimoLogger;
+
+/**
+ * Requests again in the background the records whose availability in the cache
+ * is stale, so the views don't wait for the remote systems.
+ *
+ * The stale records of an institution are gathered during a short delay, so
+ * the records of concurrent views are requested together. A record that is
+ * already waiting or being requested is not added again.
+ */
+class CacheRevalidator {
+
+    /**
+     * Process that requests the availability of records and updates the
+     * cache.
+     */
+    interface Refresher {
+        void refresh(String rtaBaseUrl, Set<String> recordIds);
+    }
+
+    private final IPrimoLogger logger;
+    private final long batchDelay;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService executor;
+    private final Refresher refresher;
+
+    // Records waiting to be requested, by rta base url.
+    private final Map<String, Set<String>> pending = new HashMap<>();
+
+    // Records being requested, by rta base url.
+    private final Map<String, Set<String>> inProgress = new HashMap<>();
+
+    private final AtomicLong batches = new AtomicLong();
+
+    /**
+     * @param logger
+     * @param batchDelay
+     *            Time to gather the stale records of an institution, in
+     *            milliseconds.
+     * @param scheduler
+     *            Thread used to wait for the delay.
+     * @param executor
+     *            Threads used to send the requests, so the scheduler is never
+     *            blocked.
+     * @param refresher
+     */
+    CacheRevalidator(IPrimoLogger logger, long batchDelay, ScheduledExecutorService scheduler,
+            ExecutorService executor, Refresher refresher) {
+        this.logger = logger;
+        this.batchDelay = batchDelay;
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.refresher = refresher;
+    }
+
+    /**
+     * Add stale records of an institution to request again.
+     *
+     * @param rtaBaseUrl
+     * @param recordIds
+     * @return void
+     */
+    void revalidate(final String rtaBaseUrl, Collection<String> recordIds) {
+        synchronized (this) {
+            Set<String> batch = pending.get(rtaBaseUrl);
+            boolean isNew = batch == null;
+            if (isNew) {
+                batch = new LinkedHashSet<>();
+            }
+            Set<String> requested = inProgress.get(rtaBaseUrl);
+            for (String recordId : recordIds) {
+                if (requested == null || !requested.contains(recordId)) {
+                    batch.add(recordId);
+                }
+            }
+            if (!isNew || batch.isEmpty()) {
+                return;
+            }
+            pending.put(rtaBaseUrl, batch);
+        }
+
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    send(rtaBaseUrl);
+                }
+            }, batchDelay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The plugin is reinitialized.
+            synchronized (this) {
+                pending.remove(rtaBaseUrl);
+            }
+        }
+    }
+
+    long getBatches() {
+        return batches.get();
+    }
+
+    private void send(final String rtaBaseUrl) {
+        final Set<String> batch;
+        synchronized (this) {
+            batch = pending.remove(rtaBaseUrl);
+            if (batch == null) {
+                return;
+            }
+            Set<String> requested = inProgress.get(rtaBaseUrl);
+            if (requested == null) {
+                requested = new HashSet<>();
+                inProgress.put(rtaBaseUrl, requested);
+            }
+            requested.addAll(batch);
+        }
+        batches.incrementAndGet();
+
+        Runnable request = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresher.refresh(rtaBaseUrl, batch);
+                } catch (RuntimeException e) {
+                    logger.warn("Failed when refreshing records " + batch + " from [" + rtaBaseUrl + "]: "
+                            + e.getMessage(), e);
+                } finally {
+                    done(rtaBaseUrl, batch);
+                }
+            }
+        };
+
+        try {
+            executor.execute(request);
+        } catch (RejectedExecutionException e) {
+            // The plugin is reinitialized.
+            done(rtaBaseUrl, batch);
+        }
+    }
+
+    private synchronized void done(String rtaBaseUrl, Set<String> batch) {
+        Set<String> requested = inProgress.get(rtaBaseUrl);
+        if (requested == null) {
+            return;
+        }
+        requested.removeAll(batch);
+        if (requested.isEmpty()) {
+            inProgress.remove(rtaBaseUrl);
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package net.berthereau.exlibris.rta;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.exlibris.primo.api.plugins.rta.HoldingStatus;
+
+/**
+ * Keeps a copy of the cache of availabilities in a file, so the plugin doesn't
+ * start with an empty cache after a restart of Primo.
+ *
+ * The file is a hash table that is mapped in memory and read only when a
+ * record is missing in the cache, so nothing is parsed during the init. It is
+ * fully written again on each save, then replaces the previous one.
+ *
+ * Format (big endian): a header with the magic number, the version, the
+ * number of slots, the number of entries, the offset of the slots and the
+ * names of the holding statuses; then the slots (hash of the key and offset of
+ * the entry, 0 when empty, with linear probing); then the entries (timestamp,
+ * index of the holding status, length and utf-8 bytes of the key of the
+ * cache).
+ */
+class CacheSnapshot {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x52544153;
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 20;
+    private static final int SLOT_LENGTH = 8;
+
+    private final Path file;
+    private final long maxAge;
+
+    // The mapped file, or null if there is no valid file.
+    private volatile Snapshot snapshot;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * A mapped file and its header.
+     */
+    private static class Snapshot {
+        private final ByteBuffer buffer;
+        private final int slotCount;
+        private final int slotsOffset;
+        private final HoldingStatus[] statuses;
+
+        private Snapshot(ByteBuffer buffer, int slotCount, int slotsOffset, HoldingStatus[] statuses) {
+            this.buffer = buffer;
+            this.slotCount = slotCount;
+            this.slotsOffset = slotsOffset;
+            this.statuses = statuses;
+        }
+    }
+
+    /**
+     * @param file
+     * @param maxAge
+     *            Time after which an availability is not used, in
+     *            milliseconds.
+     */
+    CacheSnapshot(Path file, long maxAge) {
+        this.file = file;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Map the existing file, if any. Only the header is read.
+     *
+     * @return void
+     * @throws IOException
+     *             If the file cannot be read or is not a snapshot.
+     */
+    void open() throws IOException {
+        snapshot = null;
+        if (!Files.isRegularFile(file)) {
+            return;
+        }
+        snapshot = map(file);
+    }
+
+    /**
+     * Get an availability from the file.
+     *
+     * @param key
+     *            The key of the availability in the cache.
+     * @return The availability, or null if it is unknown or expired.
+     */
+    AvailabilityCache.CachedStatus get(String key) {
+        Snapshot current = snapshot;
+        if (current == null) {
+            return null;
+        }
+
+        byte[] keyBytes = key.getBytes(UTF_8);
+        int hash = key.hashCode();
+        ByteBuffer buffer = current.buffer;
+        try {
+            int mask = current.slotCount - 1;
+            for (int i = 0, slot = hash & mask; i < current.slotCount; i++, slot = (slot + 1) & mask) {
+                int position = current.slotsOffset + slot * SLOT_LENGTH;
+                int offset = buffer.getInt(position + 4);
+                if (offset == 0) {
+                    return null;
+                }
+                if (buffer.getInt(position) != hash || !matches(buffer, offset + 11, keyBytes)) {
+                    continue;
+                }
+                long timestamp = buffer.getLong(offset);
+                int status = buffer.get(offset + 8);
+                if (System.currentTimeMillis() - timestamp >= maxAge
+                        || status < 0 || status >= current.statuses.length || current.statuses[status] == null) {
+                    return null;
+                }
+                hits.incrementAndGet();
+                return new AvailabilityCache.CachedStatus(current.statuses[status], timestamp);
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // The file is truncated: it will be replaced on next save.
+        }
+        return null;
+    }
+
+    /**
+     * Write the availabilities of the cache in the file, with the ones of the
+     * previous file that are still valid and that are not in the cache.
+     *
+     * @param entries
+     *            The availabilities of the cache by key.
+     * @param maxEntries
+     *            Maximum number of availabilities to write.
+     * @return void
+     * @throws IOException
+     */
+    synchronized void save(Map<String, AvailabilityCache.CachedStatus> entries, int maxEntries)
+            throws IOException {
+        long now = System.currentTimeMillis();
+        Map<String, AvailabilityCache.CachedStatus> valid = new LinkedHashMap<>();
+        for (Entry<String, AvailabilityCache.CachedStatus> entry : entries.entrySet()) {
+            if (valid.size() >= maxEntries) {
+                break;
+            }
+            if (now - entry.getValue().timestamp < maxAge) {
+                valid.put(entry.getKey(), entry.getValue());
+            }
+        }
+        readAll(snapshot, valid, maxEntries, now);
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        write(tmp, valid);
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        snapshot = map(file);
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    private static Snapshot map(Path file) throws IOException {
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "r")) {
+            // The mapping remains valid when the file is closed.
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+
+        try {
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("The file [" + file + "] is not a snapshot of the cache.");
+            }
+            int slotCount = buffer.getInt(8);
+            int slotsOffset = buffer.getInt(16);
+            if (slotCount <= 0 || Integer.bitCount(slotCount) != 1
+                    || (long) slotsOffset + (long) slotCount * SLOT_LENGTH > buffer.capacity()) {
+                throw new IOException("The snapshot [" + file + "] is truncated.");
+            }
+
+            // The statuses are stored by name, so they don't depend on the
+            // order of the enum.
+            int position = HEADER_LENGTH;
+            int statusCount = buffer.get(position++);
+            HoldingStatus[] statuses = new HoldingStatus[Math.max(0, statusCount)];
+            for (int i = 0; i < statuses.length; i++) {
+                byte[] name = new byte[buffer.get(position++)];
+                for (int j = 0; j < name.length; j++) {
+                    name[j] = buffer.get(position++);
+                }
+                try {
+                    statuses[i] = HoldingStatus.valueOf(new String(name, UTF_8));
+                } catch (IllegalArgumentException e) {
+                    statuses[i] = null;
+                }
+            }
+            return new Snapshot(buffer, slotCount, slotsOffset, statuses);
+        } catch (IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IOException("The snapshot [" + file + "] is truncated.");
+        }
+    }
+
+    /**
+     * Add the valid availabilities of a mapped file to a map.
+     */
+    private void readAll(Snapshot current, Map<String, AvailabilityCache.CachedStatus> entries,
+            int maxEntries, long now) {
+        if (current == null) {
+            return;
+        }
+        ByteBuffer buffer = current.buffer;
+        try {
+            for (int slot = 0; slot < current.slotCount && entries.size() < maxEntries; slot++) {
+                int offset = buffer.getInt(current.slotsOffset + slot * SLOT_LENGTH + 4);
+                if (offset == 0) {
+                    continue;
+                }
+                long timestamp = buffer.getLong(offset);
+                int status = buffer.get(offset + 8);
+                byte[] key = new byte[buffer.getShort(offset + 9) & 0xFFFF];
+                for (int i = 0; i < key.length; i++) {
+                    key[i] = buffer.get(offset + 11 + i);
+                }
+                if (now - timestamp >= maxAge || status < 0 || status >= current.statuses.length
+                        || current.statuses[status] == null) {
+                    continue;
+                }
+                String keyString = new String(key, UTF_8);
+                if (!entries.containsKey(keyString)) {
+                    entries.put(keyString, new AvailabilityCache.CachedStatus(current.statuses[status], timestamp));
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // The rest of a truncated file is lost.
+        }
+    }
+
+    private void write(Path tmp, Map<String, AvailabilityCache.CachedStatus> entries) throws IOException {
+        HoldingStatus[] statuses = HoldingStatus.values();
+        Map<HoldingStatus, Integer> statusIndexes = new HashMap<>();
+        List<byte[]> statusNames = new ArrayList<>();
+        int slotsOffset = HEADER_LENGTH + 1;
+        for (int i = 0; i < statuses.length; i++) {
+            byte[] name = statuses[i].name().getBytes(UTF_8);
+            statusIndexes.put(statuses[i], i);
+            statusNames.add(name);
+            slotsOffset += 1 + name.length;
+        }
+
+        int slotCount = 16;
+        while (slotCount < entries.size() * 2) {
+            slotCount <<= 1;
+        }
+
+        List<byte[]> keys = new ArrayList<>(entries.size());
+        long length = slotsOffset + (long) slotCount * SLOT_LENGTH;
+        for (String key : entries.keySet()) {
+            byte[] keyBytes = key.getBytes(UTF_8);
+            keys.add(keyBytes);
+            length += 11 + keyBytes.length;
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("The snapshot of the cache is too big.");
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(tmp.toFile(), "rw")) {
+            raf.setLength(length);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, slotCount);
+            buffer.putInt(12, entries.size());
+            buffer.putInt(16, slotsOffset);
+            int position = HEADER_LENGTH;
+            buffer.put(position++, (byte) statusNames.size());
+            for (byte[] name : statusNames) {
+                buffer.put(position++, (byte) name.length);
+                for (byte b : name) {
+                    buffer.put(position++, b);
+                }
+            }
+
+            int mask = slotCount - 1;
+            int offset = slotsOffset + slotCount * SLOT_LENGTH;
+            int index = 0;
+            for (Entry<String, AvailabilityCache.CachedStatus> entry : entries.entrySet()) {
+                byte[] keyBytes = keys.get(index++);
+                if (keyBytes.length > 0xFFFF) {
+                    continue;
+                }
+                int hash = entry.getKey().hashCode();
+                int slot = hash & mask;
+                while (buffer.getInt(slotsOffset + slot * SLOT_LENGTH + 4) != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                buffer.putInt(slotsOffset + slot * SLOT_LENGTH, hash);
+                buffer.putInt(slotsOffset + slot * SLOT_LENGTH + 4, offset);
+
+                buffer.putLong(offset, entry.getValue().timestamp);
+                buffer.put(offset + 8, statusIndexes.get(entry.getValue().holdingStatus).byteValue());
+                buffer.putShort(offset + 9, (short) keyBytes.length);
+                for (int i = 0; i < keyBytes.length; i++) {
+                    buffer.put(offset + 11 + i, keyBytes[i]);
+                }
+                offset += 11 + keyBytes.length;
+            }
+            buffer.force();
+        }
+    }
+
+    private static boolean matches(ByteBuffer buffer, int position, byte[] key) {
+        if ((buffer.getShort(position - 2) & 0xFFFF) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(position + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
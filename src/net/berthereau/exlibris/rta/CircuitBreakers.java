@@ -0,0 +1,211 @@
+package net.berthereau.exlibris.rta;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.exlibris.primo.api.common.IPrimoLogger;
+
+/**
+ * Stops to request a remote system when too many of its last requests
+ * failed, so the checks fail fast instead of waiting for the timeouts.
+ *
+ * A circuit breaker is managed by rta base url. When it is open, a light
+ * request is sent regularly in the background to check if the remote system
+ * is back, and the breaker is closed when it responds.
+ */
+class CircuitBreakers {
+
+    /**
+     * Process that checks if a remote system responds.
+     */
+    interface Probe {
+        boolean isAvailable(String rtaBaseUrl, String recordId);
+    }
+
+    /**
+     * The last results of the requests to a remote system.
+     */
+    private static class Breaker {
+        private final boolean[] failed;
+        private int index;
+        private int count;
+        private int failures;
+        private volatile boolean open;
+        private volatile String lastRecordId;
+
+        private Breaker(int window) {
+            failed = new boolean[window];
+        }
+
+        private void reset() {
+            index = 0;
+            count = 0;
+            failures = 0;
+        }
+    }
+
+    private final IPrimoLogger logger;
+    private final int failureRate;
+    private final int window;
+    private final long probeInterval;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService executor;
+    private final Probe probe;
+
+    private final ConcurrentMap<String, Breaker> breakers = new ConcurrentHashMap<>();
+
+    /**
+     * @param logger
+     * @param failureRate
+     *            Percentage of failed requests that opens the breaker.
+     * @param window
+     *            Number of last requests used to compute the failure rate.
+     * @param probeInterval
+     *            Time between two checks of a remote system when the breaker
+     *            is open, in milliseconds.
+     * @param scheduler
+     *            Thread used to wait for the next check.
+     * @param executor
+     *            Threads used to check the remote systems, because a check
+     *            waits for the response.
+     * @param probe
+     */
+    CircuitBreakers(IPrimoLogger logger, int failureRate, int window, long probeInterval,
+            ScheduledExecutorService scheduler, ExecutorService executor, Probe probe) {
+        this.logger = logger;
+        this.failureRate = failureRate;
+        this.window = Math.max(1, window);
+        this.probeInterval = probeInterval;
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.probe = probe;
+    }
+
+    /**
+     * Check if a remote system can be requested.
+     *
+     * @param rtaBaseUrl
+     * @return False if the breaker is open.
+     */
+    boolean allowRequest(String rtaBaseUrl) {
+        Breaker breaker = breakers.get(rtaBaseUrl);
+        return breaker == null || !breaker.open;
+    }
+
+    /**
+     * Record the result of a request and open the breaker if needed.
+     *
+     * @param rtaBaseUrl
+     * @param recordIds
+     *            The requested records, one of them being used to check the
+     *            remote system later.
+     * @param success
+     * @return void
+     */
+    void recordResult(String rtaBaseUrl, Set<String> recordIds, boolean success) {
+        Breaker breaker = breakers.get(rtaBaseUrl);
+        if (breaker == null) {
+            breaker = new Breaker(window);
+            Breaker existing = breakers.putIfAbsent(rtaBaseUrl, breaker);
+            if (existing != null) {
+                breaker = existing;
+            }
+        }
+
+        if (!recordIds.isEmpty()) {
+            breaker.lastRecordId = recordIds.iterator().next();
+        }
+
+        int failures;
+        synchronized (breaker) {
+            if (breaker.open) {
+                return;
+            }
+            if (breaker.count == window) {
+                if (breaker.failed[breaker.index]) {
+                    breaker.failures--;
+                }
+            }
+            else {
+                breaker.count++;
+            }
+            breaker.failed[breaker.index] = !success;
+            if (!success) {
+                breaker.failures++;
+            }
+            breaker.index = (breaker.index + 1) % window;
+
+            if (breaker.count < window || breaker.failures * 100 < failureRate * window) {
+                return;
+            }
+            failures = breaker.failures;
+            breaker.open = true;
+            breaker.reset();
+        }
+
+        logger.warn("Circuit breaker for [" + rtaBaseUrl + "] is open: " + failures + " failures on the last "
+                + window + " requests. The remote system will be checked every " + probeInterval + " ms.");
+        scheduleProbe(rtaBaseUrl, breaker);
+    }
+
+    /**
+     * Get the list of the remote systems that are not requested currently.
+     *
+     * @return String
+     */
+    String getOpenBreakers() {
+        StringBuilder builder = new StringBuilder();
+        for (String rtaBaseUrl : breakers.keySet()) {
+            if (!allowRequest(rtaBaseUrl)) {
+                builder.append(builder.length() == 0 ? "" : ", ").append(rtaBaseUrl);
+            }
+        }
+        return "[" + builder + "]";
+    }
+
+    private void scheduleProbe(final String rtaBaseUrl, final Breaker breaker) {
+        final Runnable check = new Runnable() {
+            @Override
+            public void run() {
+                checkProbe(rtaBaseUrl, breaker);
+            }
+        };
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        executor.execute(check);
+                    } catch (RejectedExecutionException e) {
+                        // The plugin is reinitialized.
+                    }
+                }
+            }, probeInterval, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The plugin is reinitialized.
+        }
+    }
+
+    private void checkProbe(String rtaBaseUrl, Breaker breaker) {
+        boolean available;
+        try {
+            available = probe.isAvailable(rtaBaseUrl, breaker.lastRecordId);
+        } catch (RuntimeException e) {
+            available = false;
+        }
+        if (!available) {
+            scheduleProbe(rtaBaseUrl, breaker);
+            return;
+        }
+        synchronized (breaker) {
+            breaker.reset();
+            breaker.open = false;
+        }
+        logger.info("Circuit breaker for [" + rtaBaseUrl + "] is closed: the remote system responds.");
+    }
+}
@@ -0,0 +1,104 @@
+package net.berthereau.exlibris.rta;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the durations of the last successful requests of each remote system,
+ * so their usual response time is known.
+ */
+class EndpointLatencies {
+
+    private final int size;
+
+    private final ConcurrentMap<String, Samples> samplesByEndpoint = new ConcurrentHashMap<>();
+
+    /**
+     * The last durations of a remote system.
+     */
+    private static class Samples {
+        private final long[] durations;
+        private int index;
+        private int count;
+
+        private Samples(int size) {
+            durations = new long[size];
+        }
+    }
+
+    /**
+     * @param size
+     *            Number of last durations kept by remote system.
+     */
+    EndpointLatencies(int size) {
+        this.size = size;
+    }
+
+    /**
+     * Record the duration of a successful request.
+     *
+     * @param rtaBaseUrl
+     * @param duration
+     *            In milliseconds.
+     * @return void
+     */
+    void record(String rtaBaseUrl, long duration) {
+        Samples samples = samplesByEndpoint.get(rtaBaseUrl);
+        if (samples == null) {
+            samples = new Samples(size);
+            Samples existing = samplesByEndpoint.putIfAbsent(rtaBaseUrl, samples);
+            if (existing != null) {
+                samples = existing;
+            }
+        }
+        synchronized (samples) {
+            samples.durations[samples.index] = duration;
+            samples.index = (samples.index + 1) % size;
+            if (samples.count < size) {
+                samples.count++;
+            }
+        }
+    }
+
+    /**
+     * Get the number of durations known for a remote system.
+     *
+     * @param rtaBaseUrl
+     * @return int
+     */
+    int count(String rtaBaseUrl) {
+        Samples samples = samplesByEndpoint.get(rtaBaseUrl);
+        if (samples == null) {
+            return 0;
+        }
+        synchronized (samples) {
+            return samples.count;
+        }
+    }
+
+    /**
+     * Get a percentile of the last durations of a remote system.
+     *
+     * @param rtaBaseUrl
+     * @param percentile
+     *            From 1 to 100.
+     * @return The duration in milliseconds, or -1 if unknown.
+     */
+    long percentile(String rtaBaseUrl, int percentile) {
+        Samples samples = samplesByEndpoint.get(rtaBaseUrl);
+        if (samples == null) {
+            return -1L;
+        }
+        long[] durations;
+        synchronized (samples) {
+            if (samples.count == 0) {
+                return -1L;
+            }
+            durations = Arrays.copyOf(samples.durations, samples.count);
+        }
+        Arrays.sort(durations);
+        int rank = (int) Math.ceil(percentile / 100.0 * durations.length) - 1;
+        return durations[Math.min(durations.length - 1, Math.max(0, rank))];
+    }
+}
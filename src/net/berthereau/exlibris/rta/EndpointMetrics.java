@@ -0,0 +1,205 @@
+package net.berthereau.exlibris.rta;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of the requests to a remote system: counts and durations of each
+ * step.
+ *
+ * The recording uses only atomic counters, so it doesn't lock the threads of
+ * the requests.
+ */
+class EndpointMetrics implements EndpointMetricsMBean {
+
+    private final String rtaBaseUrl;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong httpErrors = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong unparseable = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+
+    private final LatencyHistogram connect = new LatencyHistogram();
+    private final LatencyHistogram firstByte = new LatencyHistogram();
+    private final LatencyHistogram bodyRead = new LatencyHistogram();
+    private final LatencyHistogram parse = new LatencyHistogram();
+    private final LatencyHistogram total = new LatencyHistogram();
+
+    EndpointMetrics(String rtaBaseUrl) {
+        this.rtaBaseUrl = rtaBaseUrl;
+    }
+
+    /**
+     * Record a finished request.
+     *
+     * @param recordCount
+     *            The number of requested records.
+     * @param handle
+     *            The timings and the outcome of the request.
+     * @param parseTime
+     *            In nanoseconds, or -1 if the response was not parsed
+     *            separately.
+     * @param totalTime
+     *            In nanoseconds.
+     * @return void
+     */
+    void record(int recordCount, HttpRequestHandle handle, long parseTime, long totalTime) {
+        requests.incrementAndGet();
+        records.addAndGet(recordCount);
+
+        // The second request of a hedged one is not a failure.
+        if (handle.isCancelled()) {
+            cancelled.incrementAndGet();
+            return;
+        }
+
+        HttpRequestHandle.Outcome outcome = handle.getOutcome();
+        if (outcome != null) {
+            switch (outcome) {
+                case HTTP_ERROR:
+                    httpErrors.incrementAndGet();
+                    break;
+                case TIMEOUT:
+                    timeouts.incrementAndGet();
+                    break;
+                case FAILURE:
+                    failures.incrementAndGet();
+                    break;
+                case UNPARSEABLE:
+                    unparseable.incrementAndGet();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        connect.record(handle.getConnectTime());
+        firstByte.record(handle.getFirstByteTime());
+        bodyRead.record(handle.getBodyReadTime());
+        parse.record(parseTime);
+        total.record(totalTime);
+    }
+
+    @Override
+    public String getRtaBaseUrl() {
+        return rtaBaseUrl;
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.get();
+    }
+
+    @Override
+    public long getRecords() {
+        return records.get();
+    }
+
+    @Override
+    public double getRecordsByRequest() {
+        long count = requests.get();
+        return count == 0 ? 0 : (double) records.get() / count;
+    }
+
+    @Override
+    public long getHttpErrors() {
+        return httpErrors.get();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    @Override
+    public long getFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public long getUnparseableResponses() {
+        return unparseable.get();
+    }
+
+    @Override
+    public long getCancelledRequests() {
+        return cancelled.get();
+    }
+
+    @Override
+    public double getConnectP50() {
+        return connect.percentile(50);
+    }
+
+    @Override
+    public double getConnectP95() {
+        return connect.percentile(95);
+    }
+
+    @Override
+    public double getConnectP99() {
+        return connect.percentile(99);
+    }
+
+    @Override
+    public double getFirstByteP50() {
+        return firstByte.percentile(50);
+    }
+
+    @Override
+    public double getFirstByteP95() {
+        return firstByte.percentile(95);
+    }
+
+    @Override
+    public double getFirstByteP99() {
+        return firstByte.percentile(99);
+    }
+
+    @Override
+    public double getBodyReadP50() {
+        return bodyRead.percentile(50);
+    }
+
+    @Override
+    public double getBodyReadP95() {
+        return bodyRead.percentile(95);
+    }
+
+    @Override
+    public double getBodyReadP99() {
+        return bodyRead.percentile(99);
+    }
+
+    @Override
+    public double getParseP50() {
+        return parse.percentile(50);
+    }
+
+    @Override
+    public double getParseP95() {
+        return parse.percentile(95);
+    }
+
+    @Override
+    public double getParseP99() {
+        return parse.percentile(99);
+    }
+
+    @Override
+    public double getTotalP50() {
+        return total.percentile(50);
+    }
+
+    @Override
+    public double getTotalP95() {
+        return total.percentile(95);
+    }
+
+    @Override
+    public double getTotalP99() {
+        return total.percentile(99);
+    }
+}
@@ -0,0 +1,57 @@
+package net.berthereau.exlibris.rta;
+
+/**
+ * Management interface of the metrics of the requests to a remote system.
+ *
+ * The durations are in milliseconds, since the init of the plugin.
+ */
+public interface EndpointMetricsMBean {
+
+    String getRtaBaseUrl();
+
+    long getRequests();
+
+    long getRecords();
+
+    double getRecordsByRequest();
+
+    long getHttpErrors();
+
+    long getTimeouts();
+
+    long getFailures();
+
+    long getUnparseableResponses();
+
+    long getCancelledRequests();
+
+    double getConnectP50();
+
+    double getConnectP95();
+
+    double getConnectP99();
+
+    double getFirstByteP50();
+
+    double getFirstByteP95();
+
+    double getFirstByteP99();
+
+    double getBodyReadP50();
+
+    double getBodyReadP95();
+
+    double getBodyReadP99();
+
+    double getParseP50();
+
+    double getParseP95();
+
+    double getParseP99();
+
+    double getTotalP50();
+
+    double getTotalP95();
+
+    double getTotalP99();
+}
@@ -0,0 +1,198 @@
+package net.berthereau.exlibris.rta;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sends a second identical request when the response of a remote system is
+ * slower than usual, and keeps the first complete response.
+ *
+ * The delay before the second request is a percentile of the last response
+ * times of the remote system, so only the slowest requests are duplicated.
+ * The share of duplicated requests is limited, so the remote systems are not
+ * overloaded.
+ *
+ * The end of the first request and the start of the second one are exclusive:
+ * the first one to change the state of the request wins, so a second request
+ * is never sent without its response being waited for.
+ */
+class HedgedRequests {
+
+    // States of a request.
+    private static final int PENDING = 0;
+    private static final int PRIMARY_DONE = 1;
+    private static final int HEDGE_STARTED = 2;
+
+    /**
+     * A request that can be sent multiple times.
+     */
+    interface Request<T> {
+        T send(HttpRequestHandle handle);
+    }
+
+    private final EndpointLatencies latencies;
+    private final int percentile;
+    private final int maxRate;
+    private final int minSamples;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService executor;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong hedgedWins = new AtomicLong();
+
+    /**
+     * @param latencies
+     *            The last response times of the remote systems.
+     * @param percentile
+     *            Percentile of the response times after which a second request
+     *            is sent.
+     * @param maxRate
+     *            Maximum percentage of duplicated requests.
+     * @param minSamples
+     *            Minimum number of known response times of a remote system
+     *            before duplicating its requests.
+     * @param scheduler
+     *            Thread used to wait for the delay.
+     * @param executor
+     *            Threads used to send the second requests.
+     */
+    HedgedRequests(EndpointLatencies latencies, int percentile, int maxRate, int minSamples,
+            ScheduledExecutorService scheduler, ExecutorService executor) {
+        this.latencies = latencies;
+        this.percentile = percentile;
+        this.maxRate = maxRate;
+        this.minSamples = minSamples;
+        this.scheduler = scheduler;
+        this.executor = executor;
+    }
+
+    /**
+     * Send a request in the current thread, and a second one in another thread
+     * if the first one is too slow.
+     *
+     * @param rtaBaseUrl
+     * @param request
+     * @param maxWait
+     *            Maximum time to wait for the second request when the first
+     *            one failed, in milliseconds.
+     * @return The first complete response, or null.
+     */
+    <T> T send(String rtaBaseUrl, final Request<T> request, long maxWait) {
+        requests.incrementAndGet();
+
+        long delay = latencies.count(rtaBaseUrl) >= minSamples
+                ? latencies.percentile(rtaBaseUrl, percentile)
+                : -1L;
+        if (delay < 0) {
+            return request.send(new HttpRequestHandle());
+        }
+
+        final HttpRequestHandle primary = new HttpRequestHandle();
+        final HttpRequestHandle hedge = new HttpRequestHandle();
+        final AtomicBoolean finished = new AtomicBoolean();
+        final AtomicInteger state = new AtomicInteger(PENDING);
+        final AtomicReference<T> hedgeOutput = new AtomicReference<>();
+        final CountDownLatch hedgeDone = new CountDownLatch(1);
+
+        final Runnable hedgeRequest = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (finished.get()) {
+                        return;
+                    }
+                    T output = request.send(hedge);
+                    if (output != null && finished.compareAndSet(false, true)) {
+                        hedgeOutput.set(output);
+                        hedgedWins.incrementAndGet();
+                        primary.cancel();
+                    }
+                } finally {
+                    hedgeDone.countDown();
+                }
+            }
+        };
+
+        ScheduledFuture<?> trigger;
+        try {
+            trigger = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (state.get() != PENDING || !tryAcquireHedge()) {
+                        return;
+                    }
+                    // The first request ended meanwhile.
+                    if (!state.compareAndSet(PENDING, HEDGE_STARTED)) {
+                        hedged.decrementAndGet();
+                        return;
+                    }
+                    try {
+                        executor.execute(hedgeRequest);
+                    } catch (RejectedExecutionException e) {
+                        hedgeDone.countDown();
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return request.send(primary);
+        }
+
+        T output = request.send(primary);
+        // No second request can start anymore.
+        if (state.compareAndSet(PENDING, PRIMARY_DONE)) {
+            trigger.cancel(false);
+            return output;
+        }
+        if (output != null && finished.compareAndSet(false, true)) {
+            hedge.cancel();
+            return output;
+        }
+
+        // The second request is faster, or the first one failed.
+        try {
+            hedgeDone.await(maxWait, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        hedge.cancel();
+        return hedgeOutput.get();
+    }
+
+    long getRequests() {
+        return requests.get();
+    }
+
+    long getHedged() {
+        return hedged.get();
+    }
+
+    long getHedgedWins() {
+        return hedgedWins.get();
+    }
+
+    /**
+     * Count a second request if the maximum share is not reached.
+     *
+     * @return boolean
+     */
+    private boolean tryAcquireHedge() {
+        while (true) {
+            long current = hedged.get();
+            if (current * 100 >= maxRate * requests.get()) {
+                return false;
+            }
+            if (hedged.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,624 @@
+package net.berthereau.exlibris.rta;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Very basic http client that keeps the connections to the remote systems
+ * open between requests, so the tcp and tls handshakes are done only once.
+ *
+ * The idle connections are kept by scheme, host and port. Their number by
+ * host is limited and they are closed when they are idle for too long. Each
+ * response is fully read, so the connection can be reused for the next
+ * request, but no more than a maximum size, because a remote system may send
+ * an endless body.
+ *
+ * @internal HttpURLConnection keeps its own connections alive, but its cache
+ *           can be configured only via global system properties of the
+ *           virtual machine, that is shared with Primo. Only the GET method is
+ *           needed, without proxy nor redirection.
+ */
+class HttpConnectionPool {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // Maximum size of a body, in bytes. The availability of the records of a
+    // request is much smaller.
+    static final int MAX_BODY_LENGTH = 16 * 1024 * 1024;
+
+    private final int maxIdleConnections;
+    private final long idleTimeout;
+    private final String userAgent;
+    private final boolean acceptGzip;
+
+    // The most recently used connections are the first ones.
+    private final Map<String, Deque<PooledConnection>> idleConnections = new HashMap<>();
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong closed = new AtomicLong();
+
+    /**
+     * A connection to a remote system and the time it was released.
+     */
+    static class PooledConnection {
+        private final String key;
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private long lastUsed;
+        private long keepAlive;
+
+        private PooledConnection(String key, Socket socket) throws IOException {
+            this.key = key;
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = socket.getOutputStream();
+        }
+    }
+
+    /**
+     * A response fully read.
+     */
+    static class Response {
+        final int statusCode;
+        final Map<String, String> headers;
+        final byte[] body;
+
+        private Response(int statusCode, Map<String, String> headers, byte[] body) {
+            this.statusCode = statusCode;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        /**
+         * Get the value of a header.
+         *
+         * @param name
+         *            The name of the header, in lower case.
+         * @return The value, or null.
+         */
+        String getHeader(String name) {
+            return headers.get(name);
+        }
+
+        /**
+         * Get the charset declared in the content type, if any.
+         *
+         * @param defaultCharset
+         * @return Charset
+         */
+        Charset getCharset(Charset defaultCharset) {
+            return parseCharset(headers.get("content-type"), defaultCharset);
+        }
+
+        /**
+         * Get the body as a stream, decompressed if needed.
+         *
+         * @return InputStream
+         * @throws IOException
+         */
+        InputStream openBody() throws IOException {
+            InputStream in = new ByteArrayInputStream(body);
+            return "gzip".equalsIgnoreCase(headers.get("content-encoding"))
+                    ? new GZIPInputStream(in)
+                    : in;
+        }
+    }
+
+    /**
+     * Get the charset declared in a content type, if any.
+     *
+     * @param contentType
+     *            The value of the header "Content-Type", or null.
+     * @param defaultCharset
+     * @return Charset
+     */
+    static Charset parseCharset(String contentType, Charset defaultCharset) {
+        if (contentType == null) {
+            return defaultCharset;
+        }
+        for (String param : contentType.split(";")) {
+            param = param.trim();
+            if (param.regionMatches(true, 0, "charset=", 0, 8)) {
+                String charset = param.substring(8).trim().replace("\"", "");
+                try {
+                    return Charset.forName(charset);
+                } catch (IllegalArgumentException e) {
+                    return defaultCharset;
+                }
+            }
+        }
+        return defaultCharset;
+    }
+
+    /**
+     * @param maxIdleConnections
+     *            Maximum number of idle connections kept by host.
+     * @param idleTimeout
+     *            Time after which an idle connection is closed, in
+     *            milliseconds.
+     * @param userAgent
+     * @param acceptGzip
+     *            Request compressed responses. They are decompressed via
+     *            {@link Response#openBody()}.
+     */
+    HttpConnectionPool(int maxIdleConnections, long idleTimeout, String userAgent, boolean acceptGzip) {
+        this.maxIdleConnections = maxIdleConnections;
+        this.idleTimeout = idleTimeout;
+        this.userAgent = userAgent;
+        this.acceptGzip = acceptGzip;
+    }
+
+    /**
+     * Get a remote content via a kept alive connection.
+     *
+     * If a reused connection has been closed by the remote system, the request
+     * is sent again once via a new connection, because GET is idempotent.
+     *
+     * @param url
+     * @param accept
+     *            The content type to request.
+     * @param connectionTimeout
+     *            In milliseconds.
+     * @param readTimeout
+     *            In milliseconds.
+     * @param handle
+     *            Allows to cancel the request from another thread. May be null.
+     * @return The response, whatever the status code.
+     * @throws IOException
+     */
+    Response get(URL url, String accept, int connectionTimeout, int readTimeout, HttpRequestHandle handle)
+            throws IOException {
+        PooledConnection connection = acquire(url, connectionTimeout, readTimeout, true);
+        boolean isReused = connection.lastUsed > 0;
+        try {
+            return send(connection, url, accept, readTimeout, handle);
+        } catch (SocketTimeoutException e) {
+            // The remote system is slow, so don't wait twice.
+            throw e;
+        } catch (IOException e) {
+            if (!isReused || (handle != null && handle.isCancelled())) {
+                throw e;
+            }
+        }
+        // The idle connection was closed by the remote system.
+        connection = acquire(url, connectionTimeout, readTimeout, false);
+        return send(connection, url, accept, readTimeout, handle);
+    }
+
+    /**
+     * Close all idle connections.
+     *
+     * @return void
+     */
+    void closeAll() {
+        List<PooledConnection> connections = new ArrayList<>();
+        synchronized (idleConnections) {
+            for (Deque<PooledConnection> idle : idleConnections.values()) {
+                connections.addAll(idle);
+            }
+            idleConnections.clear();
+        }
+        for (PooledConnection connection : connections) {
+            close(connection);
+        }
+    }
+
+    /**
+     * Close the connections that are idle for too long, so they are not kept
+     * open when no more request is sent to their remote system.
+     *
+     * @return void
+     */
+    void closeExpired() {
+        List<PooledConnection> expired = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (idleConnections) {
+            Iterator<Deque<PooledConnection>> idleIterator = idleConnections.values().iterator();
+            while (idleIterator.hasNext()) {
+                Deque<PooledConnection> idle = idleIterator.next();
+                // The least recently used connections are the last ones.
+                Iterator<PooledConnection> iterator = idle.descendingIterator();
+                while (iterator.hasNext()) {
+                    PooledConnection candidate = iterator.next();
+                    if (now - candidate.lastUsed < candidate.keepAlive) {
+                        break;
+                    }
+                    iterator.remove();
+                    expired.add(candidate);
+                }
+                if (idle.isEmpty()) {
+                    idleIterator.remove();
+                }
+            }
+        }
+        for (PooledConnection connection : expired) {
+            close(connection);
+        }
+    }
+
+    /**
+     * Get the statistics of the pool, to be logged.
+     *
+     * @return String
+     */
+    String getStatistics() {
+        int idle = 0;
+        synchronized (idleConnections) {
+            for (Deque<PooledConnection> connections : idleConnections.values()) {
+                idle += connections.size();
+            }
+        }
+        return "opened: " + opened.get() + ", reused: " + reused.get() + ", closed: " + closed.get()
+                + ", idle: " + idle;
+    }
+
+    long getOpened() {
+        return opened.get();
+    }
+
+    long getReused() {
+        return reused.get();
+    }
+
+    private Response send(PooledConnection connection, URL url, String accept, int readTimeout,
+            HttpRequestHandle handle) throws IOException {
+        boolean reusable = false;
+        try {
+            if (handle != null) {
+                handle.setConnection(connection.socket);
+                handle.markConnected();
+            }
+            connection.socket.setSoTimeout(readTimeout);
+            writeRequest(connection, url, accept);
+            Response response = readResponse(connection.in, handle);
+            reusable = isReusable(connection, response);
+            return response;
+        } finally {
+            // A cancelled connection is closed.
+            if (handle != null && !handle.releaseConnection()) {
+                reusable = false;
+            }
+            release(connection, reusable);
+        }
+    }
+
+    private PooledConnection acquire(URL url, int connectionTimeout, int readTimeout, boolean useIdle)
+            throws IOException {
+        String scheme = url.getProtocol().toLowerCase(Locale.ROOT);
+        String host = url.getHost();
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        String key = scheme + "://" + host + ":" + port;
+
+        if (useIdle) {
+            List<PooledConnection> expired = new ArrayList<>();
+            PooledConnection connection = null;
+            long now = System.currentTimeMillis();
+            synchronized (idleConnections) {
+                Deque<PooledConnection> idle = idleConnections.get(key);
+                while (idle != null && !idle.isEmpty()) {
+                    PooledConnection candidate = idle.pollFirst();
+                    if (now - candidate.lastUsed < candidate.keepAlive && !candidate.socket.isClosed()) {
+                        connection = candidate;
+                        break;
+                    }
+                    expired.add(candidate);
+                }
+            }
+            for (PooledConnection candidate : expired) {
+                close(candidate);
+            }
+            if (connection != null) {
+                reused.incrementAndGet();
+                return connection;
+            }
+        }
+
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), connectionTimeout);
+            if (scheme.equals("https")) {
+                SSLSocket sslSocket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                        .createSocket(socket, host, port, true);
+                SSLParameters sslParameters = sslSocket.getSSLParameters();
+                sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+                sslSocket.setSSLParameters(sslParameters);
+                sslSocket.setSoTimeout(readTimeout);
+                sslSocket.startHandshake();
+                socket = sslSocket;
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        opened.incrementAndGet();
+        return new PooledConnection(key, socket);
+    }
+
+    private void release(PooledConnection connection, boolean reusable) {
+        if (!reusable || maxIdleConnections <= 0) {
+            close(connection);
+            return;
+        }
+
+        connection.lastUsed = System.currentTimeMillis();
+        List<PooledConnection> exceeding = new ArrayList<>();
+        synchronized (idleConnections) {
+            Deque<PooledConnection> idle = idleConnections.get(connection.key);
+            if (idle == null) {
+                idle = new ArrayDeque<>();
+                idleConnections.put(connection.key, idle);
+            }
+            idle.offerFirst(connection);
+            while (idle.size() > maxIdleConnections) {
+                exceeding.add(idle.pollLast());
+            }
+            // Remove the connections idle for too long.
+            Iterator<PooledConnection> iterator = idle.descendingIterator();
+            while (iterator.hasNext()) {
+                PooledConnection candidate = iterator.next();
+                if (connection.lastUsed - candidate.lastUsed < candidate.keepAlive) {
+                    break;
+                }
+                iterator.remove();
+                exceeding.add(candidate);
+            }
+        }
+        for (PooledConnection candidate : exceeding) {
+            close(candidate);
+        }
+    }
+
+    private void close(PooledConnection connection) {
+        try {
+            connection.socket.close();
+        } catch (IOException e) {
+            // Nothing to do.
+        }
+        closed.incrementAndGet();
+    }
+
+    private void writeRequest(PooledConnection connection, URL url, String accept) throws IOException {
+        String path = url.getFile();
+        if (path.isEmpty()) {
+            path = "/";
+        }
+        String host = url.getPort() == -1 || url.getPort() == url.getDefaultPort()
+                ? url.getHost()
+                : url.getHost() + ":" + url.getPort();
+        String request = "GET " + path + " HTTP/1.1\r\n"
+                + "Host: " + host + "\r\n"
+                + "Accept: " + accept + "\r\n"
+                + (acceptGzip ? "Accept-Encoding: gzip\r\n" : "")
+                + "User-Agent: " + userAgent + "\r\n"
+                + "Connection: keep-alive\r\n"
+                + "\r\n";
+        connection.out.write(request.getBytes(ASCII));
+        connection.out.flush();
+    }
+
+    /**
+     * Read a response from a stream, skipping the informational responses.
+     *
+     * @param in
+     * @param handle
+     *            Receives the timings of the response. May be null.
+     * @return The response, whatever the status code.
+     * @throws IOException
+     */
+    static Response readResponse(InputStream in, HttpRequestHandle handle) throws IOException {
+        // Skip the informational responses, if any.
+        String statusLine;
+        Map<String, String> headers;
+        int statusCode;
+        do {
+            statusLine = readLine(in);
+            if (statusLine == null) {
+                throw new EOFException("Connection closed by the remote system.");
+            }
+            if (handle != null) {
+                handle.markFirstByte();
+            }
+            String[] parts = statusLine.split(" ", 3);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Malformed status line: " + statusLine);
+            }
+            try {
+                statusCode = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed status line: " + statusLine);
+            }
+            headers = readHeaders(in);
+        } while (statusCode >= 100 && statusCode < 200);
+        headers.put(":version", statusLine.substring(0, statusLine.indexOf(' ')));
+
+        byte[] body;
+        String transferEncoding = headers.get("transfer-encoding");
+        String contentLength = headers.get("content-length");
+        if (statusCode == 204 || statusCode == 304) {
+            body = new byte[0];
+        }
+        else if (transferEncoding != null && transferEncoding.toLowerCase(Locale.ROOT).contains("chunked")) {
+            body = readChunkedBody(in);
+        }
+        else if (contentLength != null) {
+            int length;
+            try {
+                length = Integer.parseInt(contentLength.trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed content length: " + contentLength);
+            }
+            if (length > MAX_BODY_LENGTH) {
+                throw new IOException("Response too large: " + length + " bytes.");
+            }
+            body = readFully(in, length);
+        }
+        else {
+            // The end of the body is the end of the connection.
+            headers.put("connection", "close");
+            body = readToEnd(in);
+        }
+        if (handle != null) {
+            handle.markBodyRead(body.length);
+        }
+
+        return new Response(statusCode, headers, body);
+    }
+
+    private boolean isReusable(PooledConnection connection, Response response) {
+        String connectionHeader = response.getHeader("connection");
+        boolean keepAlive = "HTTP/1.1".equals(response.getHeader(":version"))
+                ? connectionHeader == null || !connectionHeader.toLowerCase(Locale.ROOT).contains("close")
+                : connectionHeader != null && connectionHeader.toLowerCase(Locale.ROOT).contains("keep-alive");
+        if (!keepAlive) {
+            return false;
+        }
+
+        // The remote system may close the connection before our timeout.
+        connection.keepAlive = idleTimeout;
+        String keepAliveHeader = response.getHeader("keep-alive");
+        if (keepAliveHeader != null) {
+            for (String param : keepAliveHeader.split(",")) {
+                param = param.trim();
+                if (param.regionMatches(true, 0, "timeout=", 0, 8)) {
+                    try {
+                        long timeout = Long.parseLong(param.substring(8).trim()) * 1000L;
+                        // Keep a margin to avoid to use a connection that is
+                        // being closed.
+                        connection.keepAlive = Math.min(idleTimeout, timeout - 500L);
+                    } catch (NumberFormatException e) {
+                        // Use the default.
+                    }
+                }
+            }
+        }
+        return connection.keepAlive > 0;
+    }
+
+    private static Map<String, String> readHeaders(InputStream in) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        if (line == null) {
+            throw new EOFException("Connection closed while reading headers.");
+        }
+        return headers;
+    }
+
+    private static byte[] readChunkedBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while (true) {
+            String line = readLine(in);
+            if (line == null) {
+                throw new EOFException("Connection closed while reading a chunk.");
+            }
+            int semicolon = line.indexOf(';');
+            int size;
+            try {
+                size = Integer.parseInt((semicolon < 0 ? line : line.substring(0, semicolon)).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed chunk size: " + line);
+            }
+            if (size == 0) {
+                break;
+            }
+            if (size > MAX_BODY_LENGTH - body.size()) {
+                throw new IOException("Response too large: more than " + MAX_BODY_LENGTH + " bytes.");
+            }
+            while (size > 0) {
+                int read = in.read(buffer, 0, Math.min(buffer.length, size));
+                if (read < 0) {
+                    throw new EOFException("Connection closed while reading a chunk.");
+                }
+                body.write(buffer, 0, read);
+                size -= read;
+            }
+            // End of the chunk.
+            readLine(in);
+        }
+        // Trailers.
+        readHeaders(in);
+        return body.toByteArray();
+    }
+
+    private static byte[] readFully(InputStream in, int length) throws IOException {
+        byte[] body = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int read = in.read(body, offset, length - offset);
+            if (read < 0) {
+                throw new EOFException("Connection closed while reading the body.");
+            }
+            offset += read;
+        }
+        return body;
+    }
+
+    private static byte[] readToEnd(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            if (read > MAX_BODY_LENGTH - body.size()) {
+                throw new IOException("Response too large: more than " + MAX_BODY_LENGTH + " bytes.");
+            }
+            body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * Read a line of the http protocol, without the end of line.
+     *
+     * @return The line, or null at the end of the stream.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+}
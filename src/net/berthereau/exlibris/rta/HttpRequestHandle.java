@@ -0,0 +1,236 @@
+package net.berthereau.exlibris.rta;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+
+/**
+ * Allows to cancel a request in progress from another thread, closing its
+ * connection, because a blocked read can't be interrupted.
+ *
+ * It keeps the timeouts, the timings and the outcome of the request too. They
+ * are set and read by the thread of the request only.
+ */
+class HttpRequestHandle {
+
+    /**
+     * The result of a request, when it is known.
+     */
+    enum Outcome {
+        SUCCESS, HTTP_ERROR, TIMEOUT, FAILURE, UNPARSEABLE
+    }
+
+    private Closeable connection;
+    private boolean cancelled;
+
+    private int connectTimeout;
+    private int readTimeout;
+
+    private long started;
+    private long connected;
+    private long firstByte;
+    private long bodyRead;
+    private long bodyLength;
+    private Outcome outcome;
+
+    /**
+     * Set the connection of the request.
+     *
+     * @param connection
+     * @return void
+     * @throws IOException
+     *             If the request is already cancelled. The connection is
+     *             closed.
+     */
+    synchronized void setConnection(Closeable connection) throws IOException {
+        if (cancelled) {
+            connection.close();
+            throw new IOException("Request cancelled.");
+        }
+        this.connection = connection;
+    }
+
+    /**
+     * Detach the connection from the request, so it can be reused.
+     *
+     * @return False if the request was cancelled.
+     */
+    synchronized boolean releaseConnection() {
+        connection = null;
+        return !cancelled;
+    }
+
+    /**
+     * Cancel the request, closing its connection if any.
+     *
+     * @return void
+     */
+    synchronized void cancel() {
+        cancelled = true;
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // Nothing to do.
+            }
+            connection = null;
+        }
+    }
+
+    synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Set the timeouts of the request, in milliseconds.
+     *
+     * @param connectTimeout
+     * @param readTimeout
+     * @return void
+     */
+    void setTimeouts(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Mark the start of the request.
+     *
+     * @return void
+     */
+    void markStarted() {
+        started = System.nanoTime();
+        connected = 0;
+        firstByte = 0;
+        bodyRead = 0;
+        bodyLength = -1;
+        outcome = null;
+    }
+
+    void markConnected() {
+        connected = System.nanoTime();
+    }
+
+    void markFirstByte() {
+        firstByte = System.nanoTime();
+    }
+
+    /**
+     * Mark the end of the read of the body.
+     *
+     * @param length
+     *            The number of bytes received, or -1 if unknown.
+     * @return void
+     */
+    void markBodyRead(long length) {
+        bodyRead = System.nanoTime();
+        if (length >= 0) {
+            bodyLength = length;
+        }
+    }
+
+    /**
+     * Count the bytes of the body read from a stream, when the client doesn't
+     * give them.
+     *
+     * @param in
+     * @return InputStream
+     */
+    InputStream countBody(InputStream in) {
+        bodyLength = 0;
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int c = super.read();
+                if (c >= 0) {
+                    bodyLength++;
+                }
+                return c;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) {
+                    bodyLength += read;
+                }
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Get the time to get a connection, in nanoseconds.
+     *
+     * @return The duration, or -1 if unknown.
+     */
+    long getConnectTime() {
+        return duration(started, connected);
+    }
+
+    /**
+     * Get the time between the connection and the first byte of the response,
+     * in nanoseconds.
+     *
+     * @return The duration, or -1 if unknown.
+     */
+    long getFirstByteTime() {
+        return duration(connected, firstByte);
+    }
+
+    /**
+     * Get the time to read the body of the response, in nanoseconds.
+     *
+     * @return The duration, or -1 if unknown.
+     */
+    long getBodyReadTime() {
+        return duration(firstByte, bodyRead);
+    }
+
+    /**
+     * Get the number of bytes of the body received.
+     *
+     * @return The length, or -1 if unknown.
+     */
+    long getBodyLength() {
+        return bodyLength;
+    }
+
+    void setOutcome(Outcome outcome) {
+        this.outcome = outcome;
+    }
+
+    /**
+     * Set the outcome of a request that failed with an exception.
+     *
+     * @param e
+     * @return void
+     */
+    void setFailure(Exception e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException) {
+                outcome = Outcome.TIMEOUT;
+                return;
+            }
+        }
+        outcome = e instanceof IOException ? Outcome.FAILURE : Outcome.UNPARSEABLE;
+    }
+
+    Outcome getOutcome() {
+        return outcome;
+    }
+
+    private static long duration(long from, long to) {
+        return from == 0 || to == 0 ? -1L : to - from;
+    }
+}
@@ -0,0 +1,323 @@
+package net.berthereau.exlibris.rta;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.stream.XMLStreamException;
+
+import org.xml.sax.SAXException;
+
+import com.exlibris.primo.api.common.IPrimoLogger;
+import com.exlibris.primo.api.plugins.rta.HoldingStatus;
+
+/**
+ * Blocking http client of the remote systems, via a new connection for each
+ * request or via the pool of the connections kept open.
+ *
+ * The failures are logged and return null, except when the request is
+ * cancelled by another thread.
+ */
+class IlsdiHttpClient {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final IPrimoLogger logger;
+    private final PluginConfig config;
+
+    // Connections kept open to the remote systems, if enabled.
+    private final HttpConnectionPool connectionPool;
+
+    // Used to decode the responses while they are received.
+    private final AvailabilityResponseParser parser;
+
+    /**
+     * @param logger
+     * @param config
+     * @param connectionPool
+     *            The pool of the connections kept open, or null.
+     * @param parser
+     */
+    IlsdiHttpClient(IPrimoLogger logger, PluginConfig config, HttpConnectionPool connectionPool,
+            AvailabilityResponseParser parser) {
+        this.logger = logger;
+        this.config = config;
+        this.connectionPool = connectionPool;
+        this.parser = parser;
+    }
+
+    /**
+     * Get content from a remote system via http.
+     *
+     * @param pUrl
+     *            The url to fetch.
+     * @param handle
+     *            Allows to cancel the request from another thread.
+     * @return Content get from the remote system.
+     */
+    String httpGet(String pUrl, HttpRequestHandle handle) {
+        String output;
+
+        // TODO Because the Primo API is closed and proprietary, we don't know
+        // if we should throw an error or catch it.
+        // TODO For the same reason, we don't know which process to use to get
+        // remote content, so a very basic REST client is build.
+        // TODO Use java.nio2
+
+        URL url;
+        try {
+            url = new URL(pUrl);
+        } catch (MalformedURLException e) {
+            logger.error("Request url [" + pUrl + "] is malformed: " + e.getMessage(), e);
+            return null;
+        }
+
+        if (connectionPool != null) {
+            return httpGetKeepAlive(url, handle);
+        }
+
+        HttpURLConnection connection = openConnection(url, handle);
+        if (connection == null) {
+            return null;
+        }
+
+        try {
+            connection.connect();
+            handle.markConnected();
+            if (connection.getResponseCode() != 200) {
+                handle.setOutcome(HttpRequestHandle.Outcome.HTTP_ERROR);
+                logger.warn("Failed to receive correct response. HTTP error code: " + connection.getResponseCode());
+                // throw new RuntimeException("Failed : HTTP error code: "
+                // + conn.getResponseCode());
+                return null;
+            }
+            handle.markFirstByte();
+
+            BufferedReader br = new BufferedReader(new InputStreamReader(handle.countBody(
+                    connection.getInputStream())));
+            StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = br.readLine()) != null) {
+                sb.append(line);
+            }
+            br.close();
+            output = sb.toString();
+            handle.markBodyRead(-1L);
+        } catch (IOException e) {
+            handle.setFailure(e);
+            // A cancelled request is not an error.
+            if (handle.isCancelled()) {
+                return null;
+            }
+            logger.warn("Failed when fetching response: " + e.getMessage(), e);
+            return null;
+        } catch (RuntimeException e) {
+            // The connection may fail in any way when it is closed by another
+            // thread.
+            if (handle.isCancelled()) {
+                return null;
+            }
+            throw e;
+        } finally {
+            handle.releaseConnection();
+            connection.disconnect();
+        }
+
+        return output;
+    }
+
+    /**
+     * Get the availability of records from a remote system via http, decoding
+     * the response while it is received.
+     *
+     * @param pUrl
+     *            The url to fetch.
+     * @param handle
+     *            Allows to cancel the request from another thread.
+     * @return Availability of each record (record id -> holding status), or
+     *         null if there is no result.
+     */
+    Map<String, HoldingStatus> httpGetAvailability(String pUrl, HttpRequestHandle handle) {
+        URL url;
+        try {
+            url = new URL(pUrl);
+        } catch (MalformedURLException e) {
+            logger.error("Request url [" + pUrl + "] is malformed: " + e.getMessage(), e);
+            return null;
+        }
+
+        Map<String, HoldingStatus> results;
+
+        // The pool reads the whole body to reuse the connection, but it is
+        // kept compressed and is not converted into a string.
+        if (connectionPool != null) {
+            HttpConnectionPool.Response response = httpGetKeepAliveResponse(url, handle);
+            if (response == null) {
+                return null;
+            }
+            return parser.decodeResponse(pUrl, response, handle);
+        }
+
+        HttpURLConnection connection = openConnection(url, handle);
+        if (connection == null) {
+            return null;
+        }
+
+        try {
+            connection.connect();
+            handle.markConnected();
+            if (connection.getResponseCode() != 200) {
+                handle.setOutcome(HttpRequestHandle.Outcome.HTTP_ERROR);
+                logger.warn("Failed to receive correct response. HTTP error code: " + connection.getResponseCode());
+                return null;
+            }
+            handle.markFirstByte();
+
+            InputStream in = handle.countBody(connection.getInputStream());
+            if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+                in = new GZIPInputStream(in);
+            }
+            Charset charset = HttpConnectionPool.parseCharset(connection.getContentType(), UTF_8);
+            try (Reader reader = new InputStreamReader(in, charset)) {
+                results = parser.decodeAvailability(reader);
+            }
+            handle.markBodyRead(-1L);
+        } catch (IOException | SAXException | XMLStreamException e) {
+            handle.setFailure(e);
+            // A cancelled request is not an error.
+            if (handle.isCancelled()) {
+                return null;
+            }
+            logger.warn("Failed when fetching response: " + e.getMessage(), e);
+            return null;
+        } catch (RuntimeException e) {
+            // The connection may fail in any way when it is closed by another
+            // thread.
+            if (handle.isCancelled()) {
+                return null;
+            }
+            throw e;
+        } finally {
+            handle.releaseConnection();
+            connection.disconnect();
+        }
+
+        if (config.debug) {
+            logger.info("Received response via [" + pUrl + "], decoded while streaming.");
+        }
+        return results;
+    }
+
+    /**
+     * Prepare a http connection to a remote system.
+     *
+     * @param url
+     * @param handle
+     *            Allows to cancel the request from another thread.
+     * @return The connection, or null.
+     */
+    private HttpURLConnection openConnection(URL url, HttpRequestHandle handle) {
+        // Secured https url can be used, because we don't use specific method
+        // of HttpsURLConnection.
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) url.openConnection();
+            final HttpURLConnection cancellable = connection;
+            handle.setConnection(new Closeable() {
+                @Override
+                public void close() {
+                    cancellable.disconnect();
+                }
+            });
+            connection.setConnectTimeout(handle.getConnectTimeout());
+            connection.setReadTimeout(handle.getReadTimeout());
+            connection.setRequestMethod("GET");
+            // Currently, only accept DLF SimpleAvailability xml format.
+            switch (config.returnFmt) {
+                default:
+                    connection.setRequestProperty("Accept", "text/xml");
+            }
+            // The response is decompressed only when it is streamed.
+            if (config.streaming) {
+                connection.setRequestProperty("Accept-Encoding", "gzip");
+            }
+        } catch (IOException e) {
+            handle.setFailure(e);
+            if (!handle.isCancelled()) {
+                logger.error("Cannot connect to remote system: " + e.getMessage(), e);
+            }
+            if (connection != null) {
+                connection.disconnect();
+            }
+            return null;
+        }
+
+        return connection;
+    }
+
+    /**
+     * Get content from a remote system via a connection kept open.
+     *
+     * @param url
+     *            The url to fetch.
+     * @param handle
+     *            Allows to cancel the request from another thread.
+     * @return Content get from the remote system.
+     */
+    private String httpGetKeepAlive(URL url, HttpRequestHandle handle) {
+        HttpConnectionPool.Response response = httpGetKeepAliveResponse(url, handle);
+        if (response == null) {
+            return null;
+        }
+
+        return new String(response.body, response.getCharset(UTF_8));
+    }
+
+    /**
+     * Get a successful response from a remote system via a connection kept
+     * open.
+     *
+     * @param url
+     *            The url to fetch.
+     * @param handle
+     *            Allows to cancel the request from another thread.
+     * @return The response, or null.
+     */
+    private HttpConnectionPool.Response httpGetKeepAliveResponse(URL url, HttpRequestHandle handle) {
+        HttpConnectionPool.Response response;
+        try {
+            // Currently, only accept DLF SimpleAvailability xml format.
+            response = connectionPool.get(url, "text/xml", handle.getConnectTimeout(), handle.getReadTimeout(),
+                    handle);
+        } catch (IOException e) {
+            handle.setFailure(e);
+            // A cancelled request is not an error.
+            if (handle.isCancelled()) {
+                return null;
+            }
+            logger.warn("Failed when fetching response: " + e.getMessage(), e);
+            return null;
+        } finally {
+            if (config.debug) {
+                logger.info("Connection pool: " + connectionPool.getStatistics() + ".");
+            }
+        }
+
+        if (response.statusCode != 200) {
+            handle.setOutcome(HttpRequestHandle.Outcome.HTTP_ERROR);
+            logger.warn("Failed to receive correct response. HTTP error code: " + response.statusCode);
+            return null;
+        }
+
+        return response;
+    }
+}
@@ -0,0 +1,229 @@
+package net.berthereau.exlibris.rta;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+
+import org.diglib.ilsdi.Service;
+
+import com.exlibris.primo.api.common.IPrimoLogger;
+
+/**
+ * Builds the urls of the ILS-DI services with the params of the plugin, and
+ * splits the records that cannot be sent in one url.
+ */
+class IlsdiUrls {
+
+    private final IPrimoLogger logger;
+    private final PluginConfig config;
+
+    /**
+     * @param logger
+     * @param config
+     */
+    IlsdiUrls(IPrimoLogger logger, PluginConfig config) {
+        this.logger = logger;
+        this.config = config;
+    }
+
+    /**
+     * Build the url of the ILS-DI service "GetAvailability" for a list of
+     * records.
+     *
+     * @param recordIds
+     * @param rtaBaseUrl
+     * @return The checked url, or null if it is malformed.
+     */
+    String buildAvailabilityUrl(Set<String> recordIds, String rtaBaseUrl) {
+        // Build the query.
+        // TODO Use a query builder.
+        // URLEncoder is currently useless because args are controlled during
+        // init and simple alphanumeric Ascii. The full url is re-checked below
+        // too.
+        String pUrl = rtaBaseUrl
+                + "?service=" + Service.GET_AVAILABILITY
+                + "&id=" + joinList(recordIds, "+")
+                + "&id_type=" + config.idType;
+
+        if (!config.returnType.equals("bib")) {
+            pUrl += "&return_type=" + config.returnType;
+        }
+
+        // Currently, only accept DLF SimpleAvailability xml format.
+        if (!config.returnFmt.isEmpty()) {
+            pUrl += "&return_fmt=" + config.returnFmt;
+        }
+
+        if (config.debug) {
+            logger.info("Request for [" + config.idType + "] records " + recordIds + " for response at ["
+                    + config.returnType + "] level via [" + pUrl + "].");
+        }
+
+        // Quick way to secure the url because it is created with a builder.
+        return checkUrl(pUrl);
+    }
+
+    /**
+     * Build the url of the ILS-DI service "HarvestHoldingsRecords" for the
+     * records changed since a date.
+     *
+     * The response is requested with the same id type, return type and format
+     * than "GetAvailability", so it is processed the same way.
+     *
+     * @param rtaBaseUrl
+     * @param from
+     *            The date of the previous harvest, or null for all records.
+     * @return The checked url, or null if it is malformed.
+     */
+    String buildHarvestUrl(String rtaBaseUrl, Date from) {
+        String pUrl = rtaBaseUrl
+                + "?service=" + Service.HARVEST_HOLDINGS_RECORDS
+                + "&id_type=" + config.idType;
+
+        if (!config.returnType.equals("bib")) {
+            pUrl += "&return_type=" + config.returnType;
+        }
+
+        if (!config.returnFmt.isEmpty()) {
+            pUrl += "&return_fmt=" + config.returnFmt;
+        }
+
+        // Iso 8601, in utc, as the other dates of ILS-DI.
+        if (from != null) {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ROOT);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            pUrl += "&from=" + format.format(from);
+        }
+
+        if (config.debug) {
+            logger.info("Harvest of [" + config.idType + "] records for response at [" + config.returnType
+                    + "] level via [" + pUrl + "].");
+        }
+
+        return checkUrl(pUrl);
+    }
+
+    /**
+     * Split a list of record ids, so each list can be sent in one request.
+     *
+     * The length of the url is estimated with the encoded record ids.
+     *
+     * @param recordIds
+     * @param rtaBaseUrl
+     * @return List of record ids by request.
+     */
+    List<Set<String>> splitRecordIds(Set<String> recordIds, String rtaBaseUrl) {
+        List<Set<String>> chunks = new ArrayList<>();
+        // The other args of the query are less than 80 bytes.
+        int baseLength = rtaBaseUrl.length() + 80;
+        Set<String> chunk = new LinkedHashSet<>();
+        int length = baseLength;
+        for (String recordId : recordIds) {
+            int recordLength = encodedLength(recordId) + 1;
+            if (!chunk.isEmpty()
+                    && ((config.maxRecordsByRequest > 0 && chunk.size() >= config.maxRecordsByRequest)
+                    || (config.maxUrlLength > 0 && length + recordLength > config.maxUrlLength))) {
+                chunks.add(chunk);
+                chunk = new LinkedHashSet<>();
+                length = baseLength;
+            }
+            chunk.add(recordId);
+            length += recordLength;
+        }
+        chunks.add(chunk);
+        return chunks;
+    }
+
+    /**
+     * Get the length of a string encoded in an url.
+     *
+     * @param string
+     * @return Number of bytes.
+     */
+    private int encodedLength(String string) {
+        int length = 0;
+        for (int i = 0, num = string.length(); i < num; i++) {
+            char c = string.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                    || c == '-' || c == '.' || c == '_' || c == '~') {
+                length += 1;
+            }
+            else if (c < 0x80) {
+                length += 3;
+            }
+            else if (c < 0x800) {
+                length += 6;
+            }
+            else if (Character.isHighSurrogate(c)) {
+                length += 12;
+                i++;
+            }
+            else {
+                length += 9;
+            }
+        }
+        return length;
+    }
+
+    /** Some tools and helpers needed because there is no access to Primo Api */
+
+    /**
+     * Join elements of a collection, set or list of strings with a delimiter.
+     *
+     * TODO Use Apache commons?
+     *
+     * @param str
+     * @param delimiter
+     * @return
+     */
+    String joinList(Collection<String> str, String delimiter) {
+        if (str == null || str.isEmpty()) {
+            return "";
+        }
+        StringBuilder builder = new StringBuilder();
+        // Add the delimiter before the string, except for the first.
+        String delim = "";
+        for (String s : str) {
+            builder.append(delim).append(s);
+            delim = delimiter;
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Provides a quick way to secure the format of a url.
+     *
+     * @param pUrl
+     * @return Checked and cleaned url.
+     */
+    String checkUrl(String pUrl) {
+        URL url;
+        try {
+            url = new URL(pUrl);
+        } catch (MalformedURLException e) {
+            logger.error("Request url [" + pUrl + "] is malformed: " + e.getMessage(), e);
+            return null;
+        }
+
+        URI uri;
+        try {
+            uri = new URI(url.getProtocol(), url.getUserInfo(), url.getHost(),
+                    url.getPort(), url.getPath(), url.getQuery(), url.getRef());
+        } catch (URISyntaxException e) {
+            logger.error("Request URI is malformed: " + e.getMessage(), e);
+            return null;
+        }
+
+        return uri.toASCIIString();
+    }
+}
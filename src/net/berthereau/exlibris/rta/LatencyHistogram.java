@@ -0,0 +1,98 @@
+package net.berthereau.exlibris.rta;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in buckets of increasing size, without lock, so the
+ * percentiles can be computed at any time.
+ *
+ * The durations are recorded in microseconds. Each power of two is divided in
+ * eight buckets, so a percentile is precise to 12.5%, whatever the duration.
+ */
+class LatencyHistogram {
+
+    // Number of buckets by power of two, as a power of two.
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+
+    /**
+     * Record a duration.
+     *
+     * @param nanos
+     *            The duration in nanoseconds. Negative durations are ignored.
+     * @return void
+     */
+    void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        counts.incrementAndGet(index(nanos / 1000));
+    }
+
+    /**
+     * Get the number of recorded durations.
+     *
+     * @return long
+     */
+    long count() {
+        long count = 0;
+        for (int i = 0, num = counts.length(); i < num; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Get a percentile of the recorded durations.
+     *
+     * The counts may be updated during the computation, so the result is an
+     * approximation when there are concurrent requests.
+     *
+     * @param percentile
+     *            Between 0 and 100.
+     * @return The upper bound of the bucket of the percentile, in
+     *         milliseconds, or 0 if there is no duration.
+     */
+    double percentile(double percentile) {
+        int num = counts.length();
+        long[] snapshot = new long[num];
+        long total = 0;
+        for (int i = 0; i < num; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1L, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < num; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return lowerBound(i + 1) / 1000.0;
+            }
+        }
+        return lowerBound(num) / 1000.0;
+    }
+
+    private static int index(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long lowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+}
@@ -0,0 +1,157 @@
+package net.berthereau.exlibris.rta;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps in memory the records that are absent from the successful responses of
+ * a remote system, so they are not requested again for a while.
+ *
+ * These records are usually withdrawn items or ids extracted with a bad path,
+ * so they are requested by each view. The number of skipped requests is kept
+ * by record, even when the record is checked again, so the most frequent ones
+ * can be listed to fix the data.
+ *
+ * The keys are the same than the ones of {@link AvailabilityCache}, and the
+ * records are split in segments locked separately too.
+ */
+class MissingRecordsCache {
+
+    private final long ttl;
+
+    private final StripedLruMap<MissingRecord> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * A missing record, the last time it was missing and the number of
+     * requests skipped for it.
+     */
+    private static class MissingRecord {
+        private final String rtaBaseUrl;
+        private final String recordId;
+        private volatile long timestamp;
+        private final AtomicLong hits = new AtomicLong();
+
+        private MissingRecord(String rtaBaseUrl, String recordId) {
+            this.rtaBaseUrl = rtaBaseUrl;
+            this.recordId = recordId;
+        }
+    }
+
+    /**
+     * @param ttl
+     *            Time to skip a missing record, in milliseconds.
+     * @param maxEntries
+     *            Maximum number of missing records to keep.
+     */
+    MissingRecordsCache(long ttl, int maxEntries) {
+        this.ttl = ttl;
+        this.entries = new StripedLruMap<>(maxEntries);
+    }
+
+    /**
+     * Check if a record was recently missing, counting a hit if so.
+     *
+     * @param rtaBaseUrl
+     * @param idType
+     * @param returnType
+     * @param recordId
+     * @return boolean
+     */
+    boolean isMissing(String rtaBaseUrl, String idType, String returnType, String recordId) {
+        String key = key(rtaBaseUrl, idType, returnType, recordId);
+        long now = System.currentTimeMillis();
+        MissingRecord missingRecord = entries.get(key);
+        // An expired record is kept to keep its hits.
+        if (missingRecord == null || now - missingRecord.timestamp >= ttl) {
+            return false;
+        }
+        missingRecord.hits.incrementAndGet();
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Store the records that are absent from a successful response and forget
+     * the ones that are present.
+     *
+     * @param rtaBaseUrl
+     * @param idType
+     * @param returnType
+     * @param recordIds
+     *            The requested records.
+     * @param results
+     *            Availability of each record (record id -> holding status).
+     * @return void
+     */
+    void putAll(String rtaBaseUrl, String idType, String returnType, Set<String> recordIds,
+            Map<String, ?> results) {
+        long now = System.currentTimeMillis();
+        for (String recordId : recordIds) {
+            String key = key(rtaBaseUrl, idType, returnType, recordId);
+            if (results.containsKey(recordId)) {
+                entries.remove(key);
+                continue;
+            }
+            MissingRecord missingRecord = entries.get(key);
+            if (missingRecord == null) {
+                missingRecord = entries.putIfAbsent(key, new MissingRecord(rtaBaseUrl, recordId));
+            }
+            missingRecord.timestamp = now;
+        }
+    }
+
+    /**
+     * List the records that have the most skipped requests, to be logged or
+     * displayed.
+     *
+     * @param max
+     *            Maximum number of records to list.
+     * @return String
+     */
+    String getMostSkipped(int max) {
+        List<MissingRecord> missingRecords = new ArrayList<>(entries.copyEntries().values());
+        // The hits are copied, because they may change during the sort.
+        final Map<MissingRecord, Long> skipped = new HashMap<>();
+        for (MissingRecord missingRecord : missingRecords) {
+            skipped.put(missingRecord, missingRecord.hits.get());
+        }
+        Collections.sort(missingRecords, new Comparator<MissingRecord>() {
+            @Override
+            public int compare(MissingRecord a, MissingRecord b) {
+                return skipped.get(b).compareTo(skipped.get(a));
+            }
+        });
+        StringBuilder builder = new StringBuilder();
+        for (MissingRecord missingRecord : missingRecords.subList(0, Math.min(max, missingRecords.size()))) {
+            long count = skipped.get(missingRecord);
+            if (count == 0) {
+                break;
+            }
+            builder.append(builder.length() == 0 ? "" : ", ")
+                    .append(missingRecord.rtaBaseUrl).append(' ').append(missingRecord.recordId)
+                    .append(": ").append(count);
+        }
+        return "[" + builder + "]";
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    private static String key(String rtaBaseUrl, String idType, String returnType, String recordId) {
+        // The new line can't be used in an url nor in an id.
+        return rtaBaseUrl + '\n' + idType + '\n' + returnType + '\n' + recordId;
+    }
+}
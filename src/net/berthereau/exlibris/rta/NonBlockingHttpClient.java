@@ -0,0 +1,502 @@
+package net.berthereau.exlibris.rta;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Very basic http client that sends the requests without blocking a thread
+ * during the connection and the wait of the response, so a few threads can
+ * serve many concurrent requests.
+ *
+ * Each request uses its own connection, that is closed at the end of the
+ * response. The response is fully received before being processed, then it is
+ * parsed like the ones of {@link HttpConnectionPool}, with the same maximum
+ * size. The read timeout applies to each read, so a whole request is limited
+ * by its own timeout too, whatever the speed of the remote system.
+ *
+ * @internal Only plain http is supported, because the asynchronous channels
+ *           don't manage tls. The host name is resolved by the calling thread.
+ */
+class NonBlockingHttpClient {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * Process called once at the end of a request, by a thread of the client.
+     */
+    interface Callback {
+        void completed(HttpConnectionPool.Response response);
+
+        void failed(Exception e);
+    }
+
+    private final AsynchronousChannelGroup group;
+    private final ScheduledExecutorService scheduler;
+    private final String userAgent;
+    private final boolean acceptGzip;
+
+    /**
+     * @param threads
+     *            Number of threads used to process the connections.
+     * @param threadFactory
+     * @param scheduler
+     *            Thread used to stop the connections that are too long.
+     * @param userAgent
+     * @param acceptGzip
+     *            Request compressed responses. They are decompressed via
+     *            {@link HttpConnectionPool.Response#openBody()}.
+     * @throws IOException
+     */
+    NonBlockingHttpClient(int threads, ThreadFactory threadFactory, ScheduledExecutorService scheduler,
+            String userAgent, boolean acceptGzip) throws IOException {
+        this.group = AsynchronousChannelGroup.withFixedThreadPool(threads, threadFactory);
+        this.scheduler = scheduler;
+        this.userAgent = userAgent;
+        this.acceptGzip = acceptGzip;
+    }
+
+    /**
+     * Check if an url can be requested by this client.
+     *
+     * @param url
+     * @return boolean
+     */
+    static boolean supports(String url) {
+        return url.regionMatches(true, 0, "http:", 0, 5);
+    }
+
+    /**
+     * Send a request to a remote system and return immediately.
+     *
+     * @param url
+     * @param accept
+     *            The content type to request.
+     * @param connectionTimeout
+     *            In milliseconds.
+     * @param readTimeout
+     *            In milliseconds.
+     * @param timeout
+     *            Maximum duration of the whole request, in milliseconds, or 0
+     *            for none.
+     * @param handle
+     *            Allows to cancel the request from another thread.
+     * @param callback
+     *            Receives the response, whatever the status code, or the
+     *            failure.
+     * @return void
+     */
+    void get(URL url, String accept, int connectionTimeout, int readTimeout, int timeout,
+            HttpRequestHandle handle, Callback callback) {
+        Exchange exchange = new Exchange(url, readTimeout, handle, callback);
+        try {
+            exchange.start(accept, connectionTimeout, timeout);
+        } catch (IOException | RuntimeException e) {
+            exchange.fail(e);
+        }
+    }
+
+    /**
+     * Stop the threads and close the connections in progress.
+     *
+     * @return void
+     */
+    void close() {
+        try {
+            group.shutdownNow();
+        } catch (IOException e) {
+            // Nothing to do.
+        }
+    }
+
+    /**
+     * A request and its response.
+     */
+    private class Exchange {
+        private final URL url;
+        private final int readTimeout;
+        private final HttpRequestHandle handle;
+        private final Callback callback;
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private AsynchronousSocketChannel channel;
+        private volatile boolean connectTimedOut;
+        private ScheduledFuture<?> connectTimer;
+        private ScheduledFuture<?> requestTimer;
+
+        private ByteBuffer request;
+        private final ByteBuffer buffer = ByteBuffer.allocate(8192);
+        private byte[] received = new byte[8192];
+        private int size;
+        private int scanned;
+        private int bodyStart = -1;
+        // Start of the size of the next chunk, when the body is chunked.
+        private int chunkStart = -1;
+        private int statusCode;
+        private long contentLength = -1;
+        private boolean chunked;
+
+        private Exchange(URL url, int readTimeout, HttpRequestHandle handle, Callback callback) {
+            this.url = url;
+            this.readTimeout = readTimeout;
+            this.handle = handle;
+            this.callback = callback;
+        }
+
+        private void start(String accept, int connectionTimeout, final int timeout) throws IOException {
+            String host = url.getHost();
+            int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+            request = ByteBuffer.wrap(buildRequest(accept).getBytes(ASCII));
+
+            channel = AsynchronousSocketChannel.open(group);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            handle.setConnection(channel);
+
+            // The asynchronous connection has no timeout.
+            if (connectionTimeout > 0) {
+                try {
+                    connectTimer = scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            connectTimedOut = true;
+                            closeChannel();
+                        }
+                    }, connectionTimeout, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // The plugin is reinitialized: the read timeout remains.
+                }
+            }
+
+            // A remote system that sends its response slowly is stopped too.
+            if (timeout > 0) {
+                try {
+                    requestTimer = scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            fail(new SocketTimeoutException("Request timed out after " + timeout + " ms"));
+                        }
+                    }, timeout, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // The plugin is reinitialized: the read timeout remains.
+                }
+            }
+
+            channel.connect(new InetSocketAddress(host, port), null, new CompletionHandler<Void, Void>() {
+                @Override
+                public void completed(Void result, Void attachment) {
+                    if (connectTimer != null) {
+                        connectTimer.cancel(false);
+                    }
+                    if (connectTimedOut) {
+                        fail(new SocketTimeoutException("Connect timed out"));
+                        return;
+                    }
+                    handle.markConnected();
+                    write();
+                }
+
+                @Override
+                public void failed(Throwable e, Void attachment) {
+                    if (connectTimer != null) {
+                        connectTimer.cancel(false);
+                    }
+                    fail(connectTimedOut ? new SocketTimeoutException("Connect timed out") : e);
+                }
+            });
+        }
+
+        private String buildRequest(String accept) {
+            String path = url.getFile();
+            if (path.isEmpty()) {
+                path = "/";
+            }
+            String host = url.getPort() == -1 || url.getPort() == url.getDefaultPort()
+                    ? url.getHost()
+                    : url.getHost() + ":" + url.getPort();
+            return "GET " + path + " HTTP/1.1\r\n"
+                    + "Host: " + host + "\r\n"
+                    + "Accept: " + accept + "\r\n"
+                    + (acceptGzip ? "Accept-Encoding: gzip\r\n" : "")
+                    + "User-Agent: " + userAgent + "\r\n"
+                    + "Connection: close\r\n"
+                    + "\r\n";
+        }
+
+        private void write() {
+            channel.write(request, readTimeout, TimeUnit.MILLISECONDS, null, new CompletionHandler<Integer, Void>() {
+                @Override
+                public void completed(Integer written, Void attachment) {
+                    if (request.hasRemaining()) {
+                        write();
+                    }
+                    else {
+                        read();
+                    }
+                }
+
+                @Override
+                public void failed(Throwable e, Void attachment) {
+                    fail(e);
+                }
+            });
+        }
+
+        private void read() {
+            buffer.clear();
+            channel.read(buffer, readTimeout, TimeUnit.MILLISECONDS, null, new CompletionHandler<Integer, Void>() {
+                @Override
+                public void completed(Integer read, Void attachment) {
+                    if (read < 0) {
+                        finish();
+                        return;
+                    }
+                    if (size == 0 && read > 0) {
+                        handle.markFirstByte();
+                    }
+                    buffer.flip();
+                    try {
+                        append(buffer);
+                        if (isComplete()) {
+                            finish();
+                            return;
+                        }
+                    } catch (IOException e) {
+                        fail(e);
+                        return;
+                    }
+                    read();
+                }
+
+                @Override
+                public void failed(Throwable e, Void attachment) {
+                    fail(e);
+                }
+            });
+        }
+
+        /**
+         * Add the data of a read to the response.
+         *
+         * @param data
+         * @return void
+         * @throws IOException
+         *             The response is larger than the maximum size, headers
+         *             included until they are received.
+         */
+        private void append(ByteBuffer data) throws IOException {
+            int length = data.remaining();
+            if (length > HttpConnectionPool.MAX_BODY_LENGTH - (size - Math.max(bodyStart, 0))) {
+                throw new IOException("Response too large: more than " + HttpConnectionPool.MAX_BODY_LENGTH
+                        + " bytes.");
+            }
+            if (size + length > received.length) {
+                received = Arrays.copyOf(received, Math.max(received.length * 2, size + length));
+            }
+            data.get(received, size, length);
+            size += length;
+        }
+
+        /**
+         * Check if the full response is received, so the connection can be
+         * closed without waiting for the remote system to close it.
+         *
+         * @return boolean
+         * @throws IOException
+         */
+        private boolean isComplete() throws IOException {
+            while (bodyStart < 0) {
+                int end = indexOfHeadersEnd();
+                if (end < 0) {
+                    return false;
+                }
+                readHeaders(scanned, end);
+                if (contentLength > HttpConnectionPool.MAX_BODY_LENGTH) {
+                    throw new IOException("Response too large: " + contentLength + " bytes.");
+                }
+                scanned = end;
+                // Skip the informational responses, if any.
+                if (statusCode < 100 || statusCode >= 200) {
+                    bodyStart = end;
+                    chunkStart = end;
+                }
+            }
+            if (statusCode == 204 || statusCode == 304) {
+                return true;
+            }
+            if (chunked) {
+                return isLastChunkReceived();
+            }
+            return contentLength >= 0 && size - bodyStart >= contentLength;
+        }
+
+        /**
+         * Skip the chunks received since the last check, reading their size,
+         * because the data of a chunk may contain anything.
+         *
+         * @return True if the last chunk and the trailers are received.
+         * @throws IOException
+         */
+        private boolean isLastChunkReceived() throws IOException {
+            while (true) {
+                int lineEnd = indexOfLineEnd(chunkStart);
+                if (lineEnd < 0) {
+                    return false;
+                }
+                String line = new String(received, chunkStart, lineEnd - 2 - chunkStart, ASCII);
+                int semicolon = line.indexOf(';');
+                long chunkSize;
+                try {
+                    chunkSize = Long.parseLong((semicolon < 0 ? line : line.substring(0, semicolon)).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed chunk size: " + line);
+                }
+                if (chunkSize == 0) {
+                    // The trailers, if any, end with an empty line.
+                    int start = lineEnd;
+                    while (true) {
+                        int end = indexOfLineEnd(start);
+                        if (end < 0) {
+                            return false;
+                        }
+                        if (end - start == 2) {
+                            return true;
+                        }
+                        start = end;
+                    }
+                }
+                // The data of the chunk is followed by a new line.
+                long next = lineEnd + chunkSize + 2;
+                if (next > size) {
+                    return false;
+                }
+                chunkStart = (int) next;
+            }
+        }
+
+        private int indexOfLineEnd(int start) {
+            for (int i = start + 1; i < size; i++) {
+                if (received[i] == '\n' && received[i - 1] == '\r') {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        private int indexOfHeadersEnd() {
+            for (int i = Math.max(scanned, 3); i < size; i++) {
+                if (received[i] == '\n' && received[i - 1] == '\r' && received[i - 2] == '\n'
+                        && received[i - 3] == '\r') {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        private void readHeaders(int start, int end) throws IOException {
+            String[] lines = new String(received, start, end - start, ASCII).split("\r\n");
+            String[] parts = lines[0].split(" ", 3);
+            try {
+                statusCode = parts.length < 2 ? -1 : Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                statusCode = -1;
+            }
+            if (statusCode < 0 || !parts[0].startsWith("HTTP/")) {
+                throw new IOException("Malformed status line: " + lines[0]);
+            }
+            contentLength = -1;
+            chunked = false;
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = lines[i].substring(colon + 1).trim();
+                if (name.equals("content-length")) {
+                    try {
+                        contentLength = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Malformed content length: " + value);
+                    }
+                }
+                else if (name.equals("transfer-encoding")) {
+                    chunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+                }
+            }
+        }
+
+        private void finish() {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            cancelRequestTimer();
+            handle.releaseConnection();
+            closeChannel();
+
+            HttpConnectionPool.Response response;
+            try {
+                response = HttpConnectionPool.readResponse(new ByteArrayInputStream(received, 0, size), null);
+            } catch (IOException e) {
+                callback.failed(e);
+                return;
+            }
+            handle.markBodyRead(response.body.length);
+            callback.completed(response);
+        }
+
+        private void fail(Throwable e) {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+            cancelRequestTimer();
+            handle.releaseConnection();
+            closeChannel();
+
+            Exception failure;
+            if (e instanceof InterruptedByTimeoutException) {
+                failure = new SocketTimeoutException("Read timed out");
+                failure.initCause(e);
+            }
+            else if (e instanceof Exception) {
+                failure = (Exception) e;
+            }
+            else {
+                failure = new IOException(e);
+            }
+            callback.failed(failure);
+        }
+
+        private void cancelRequestTimer() {
+            if (requestTimer != null) {
+                requestTimer.cancel(false);
+            }
+        }
+
+        private void closeChannel() {
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing to do.
+            }
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package net.berthereau.exlibris.rta;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.exlibris.primo.api.common.IPrimoLogger;
+
+/**
+ * The checked params of the plugin.
+ *
+ * A new configuration is built by each init, from the defaults, and it is
+ * never modified, so the concurrent checks can read it without lock.
+ */
+final class PluginConfig {
+
+    final int connectionTimeout;
+    final int readTimeout;
+    final int adaptiveTimeoutPercentile;
+    final double adaptiveTimeoutMultiplier;
+    final int adaptiveTimeoutMin;
+    final int adaptiveTimeoutMax;
+    final int traceSize;
+    final int traceSampleRate;
+    final String captureFile;
+    final boolean debug;
+    final boolean parallel;
+    final int parallelThreads;
+    final int maxRecordsByRequest;
+    final int maxUrlLength;
+    final boolean coalesceRequests;
+    final int circuitBreakerFailureRate;
+    final int circuitBreakerWindow;
+    final int circuitBreakerProbeInterval;
+    final int hedgePercentile;
+    final int hedgeMaxRate;
+    final boolean keepAlive;
+    final int maxIdleConnections;
+    final int idleConnectionTimeout;
+    final int cacheTtl;
+    final int cacheMaxEntries;
+    final int cacheStaleTtl;
+    final String cacheSnapshotFile;
+    final int cacheSnapshotInterval;
+    final int negativeCacheTtl;
+    final int harvestInterval;
+    final Map<String, Double> rateLimits;
+    final int rateLimitWait;
+    final int maxPendingRequests;
+    final int maxPendingRequestsByInstitution;
+    final boolean streaming;
+    final boolean nonBlocking;
+
+    // Plugins params that are specific to ILS-DI.
+    final String idType;
+    final String returnType;
+    // Only the default format is implemented.
+    final String returnFmt;
+    // Process of the responses: "xpath" or "stax".
+    final String parser;
+
+    /**
+     * Check the params.
+     *
+     * @param logger
+     *            Receives the warnings about the wrong params.
+     * @param params
+     *            List of the plugin parameters set in the admin interface.
+     */
+    PluginConfig(IPrimoLogger logger, Map<String, Object> params) {
+
+        String param;
+
+        connectionTimeout = getInt(logger, params, "ConnectionTimeout", 1000, "a number of milliseconds");
+        readTimeout = getInt(logger, params, "ReadTimeout", 1000, "a number of milliseconds");
+        traceSize = getInt(logger, params, "TraceSize", 0, "a number of requests");
+        traceSampleRate = getInt(logger, params, "TraceSampleRate", 1, "a percentage");
+
+        param = (String) params.get("CaptureFile");
+        captureFile = param == null ? "" : param.trim();
+
+        int percentile = getInt(logger, params, "AdaptiveTimeoutPercentile", 0, "a number between 1 and 100");
+        if (percentile > 100) {
+            logger.warn("AdaptiveTimeoutPercentile param should be a number between 1 and 100."
+                    + " The plugin will use fixed timeouts.");
+            percentile = 0;
+        }
+        adaptiveTimeoutPercentile = percentile;
+
+        double multiplier = 3;
+        param = (String) params.get("AdaptiveTimeoutMultiplier");
+        if (param != null && !param.isEmpty()) {
+            try {
+                multiplier = Double.valueOf(param);
+            } catch (NumberFormatException e) {
+                logger.warn("AdaptiveTimeoutMultiplier param should be a number.");
+            }
+        }
+        adaptiveTimeoutMultiplier = multiplier;
+
+        adaptiveTimeoutMin = getInt(logger, params, "AdaptiveTimeoutMin", 100, "a number of milliseconds");
+        adaptiveTimeoutMax = getInt(logger, params, "AdaptiveTimeoutMax", 5000, "a number of milliseconds");
+
+        // Only two possible values for id_type: "bib" or "item".
+        param = (String) params.get("IdType");
+        if (param == null || !param.equals("bib")) {
+            idType = "item";
+            if (!(param == null || param.isEmpty() || param.equals("item"))) {
+                logger.warn("idType is malformed. The plugin will use the default [item].");
+            }
+        }
+        else {
+            idType = "bib";
+        }
+
+        // Only two possible values for id_type: "bib" or "item".
+        param = (String) params.get("ReturnType");
+        if (param == null || !param.equals("bib")) {
+            returnType = "item";
+            if (!(param == null || param.isEmpty() || param.equals("item"))) {
+                logger.warn("ReturnType is malformed. The plugin will use the default [item].");
+            }
+        }
+        else {
+            returnType = "bib";
+            if (idType == "item") {
+                logger.warn("To use [item] as IdType and [bib] as ReturnType is currently unsupported.");
+            }
+        }
+
+        // Any value is possible, so it should be url encoded if not pure ascii.
+        param = (String) params.get("ReturnFmt");
+        if (!(param == null || param.equals(""))) {
+            logger.warn("ReturnFmt is currently unmanaged. The plugin will use the default.");
+        }
+        returnFmt = "";
+
+        // Only two possible values for parser: "xpath" or "stax".
+        param = (String) params.get("Parser");
+        if (param == null || !param.equals("stax")) {
+            parser = "xpath";
+            if (!(param == null || param.isEmpty() || param.equals("xpath"))) {
+                logger.warn("Parser is malformed. The plugin will use the default [xpath].");
+            }
+        }
+        else {
+            parser = "stax";
+        }
+
+        streaming = Boolean.parseBoolean((String) params.get("Streaming"));
+
+        debug = Boolean.parseBoolean((String) params.get("Debug"));
+
+        parallel = Boolean.parseBoolean((String) params.get("Parallel"));
+
+        int threads = getInt(logger, params, "ParallelThreads", 4, "a number of threads");
+        if (threads < 1) {
+            logger.warn("ParallelThreads param should be a positive number. The plugin will use [1].");
+            threads = 1;
+        }
+        parallelThreads = threads;
+
+        maxRecordsByRequest = getInt(logger, params, "MaxRecordsByRequest", 0, "a number of records");
+        maxUrlLength = getInt(logger, params, "MaxUrlLength", 4000, "a number of bytes");
+
+        coalesceRequests = Boolean.parseBoolean((String) params.get("CoalesceRequests"));
+
+        circuitBreakerFailureRate = getInt(logger, params, "CircuitBreakerFailureRate", 0, "a percentage");
+        circuitBreakerWindow = getInt(logger, params, "CircuitBreakerWindow", 10, "a number of requests");
+        circuitBreakerProbeInterval = getInt(logger, params, "CircuitBreakerProbeInterval", 5000,
+                "a number of milliseconds");
+
+        percentile = getInt(logger, params, "HedgePercentile", 0, "a percentile");
+        if (percentile < 0 || percentile > 100) {
+            logger.warn("HedgePercentile param should be a percentile. The plugin will use [0].");
+            percentile = 0;
+        }
+        hedgePercentile = percentile;
+        hedgeMaxRate = getInt(logger, params, "HedgeMaxRate", 10, "a percentage");
+
+        keepAlive = Boolean.parseBoolean((String) params.get("KeepAlive"));
+        maxIdleConnections = getInt(logger, params, "MaxIdleConnections", 5, "a number of connections");
+        idleConnectionTimeout = getInt(logger, params, "IdleConnectionTimeout", 10000, "a number of milliseconds");
+
+        cacheTtl = getInt(logger, params, "CacheTtl", 0, "a number of seconds");
+        cacheMaxEntries = getInt(logger, params, "CacheMaxEntries", 10000, "a number of records");
+        cacheStaleTtl = getInt(logger, params, "CacheStaleTtl", 0, "a number of seconds");
+
+        param = (String) params.get("CacheSnapshotFile");
+        cacheSnapshotFile = param == null ? "" : param.trim();
+
+        int interval = getInt(logger, params, "CacheSnapshotInterval", 300, "a number of seconds");
+        if (interval < 1) {
+            logger.warn("CacheSnapshotInterval param should be a positive number. The plugin will use [300].");
+            interval = 300;
+        }
+        cacheSnapshotInterval = interval;
+
+        negativeCacheTtl = getInt(logger, params, "NegativeCacheTtl", 0, "a number of seconds");
+        harvestInterval = getInt(logger, params, "HarvestInterval", 0, "a number of seconds");
+
+        // List of "rta base url=requests by second", with "*" for the other
+        // remote systems.
+        param = (String) params.get("RateLimits");
+        Map<String, Double> rates = new HashMap<>();
+        if (param != null && !param.trim().isEmpty()) {
+            for (String rateLimit : param.trim().split("[\\s,]+")) {
+                // The url may contain "=".
+                int pos = rateLimit.lastIndexOf('=');
+                try {
+                    if (pos <= 0) {
+                        throw new NumberFormatException();
+                    }
+                    rates.put(rateLimit.substring(0, pos), Double.valueOf(rateLimit.substring(pos + 1)));
+                } catch (NumberFormatException e) {
+                    logger.warn("RateLimits param should be a list of \"rta base url=requests by second\". ["
+                            + rateLimit + "] is skipped.");
+                }
+            }
+        }
+        rateLimits = Collections.unmodifiableMap(rates);
+        rateLimitWait = getInt(logger, params, "RateLimitWait", 0, "a number of milliseconds");
+
+        maxPendingRequests = getInt(logger, params, "MaxPendingRequests", 0, "a number of requests");
+        maxPendingRequestsByInstitution = getInt(logger, params, "MaxPendingRequestsByInstitution", 0,
+                "a number of requests");
+
+        // The features that send requests in the current thread are not
+        // compatible with the non-blocking requests.
+        boolean isNonBlocking = Boolean.parseBoolean((String) params.get("NonBlocking"));
+        if (isNonBlocking && (keepAlive || coalesceRequests || hedgePercentile > 0)) {
+            logger.warn("NonBlocking cannot be used with KeepAlive, CoalesceRequests or HedgePercentile."
+                    + " The plugin will use blocking requests.");
+            isNonBlocking = false;
+        }
+        nonBlocking = isNonBlocking;
+    }
+
+    /**
+     * Get a numeric param.
+     *
+     * @param logger
+     *            Receives the warning when the param is not a number.
+     * @param params
+     * @param name
+     * @param defaultValue
+     *            Used when the param is not set or is not a number.
+     * @param expected
+     *            Description of the value, for the warning.
+     * @return int
+     */
+    private static int getInt(IPrimoLogger logger, Map<String, Object> params, String name, int defaultValue,
+            String expected) {
+        String param = (String) params.get(name);
+        if (param == null || param.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.valueOf(param);
+        } catch (NumberFormatException e) {
+            logger.warn(name + " param should be " + expected + ".");
+            return defaultValue;
+        }
+    }
+}
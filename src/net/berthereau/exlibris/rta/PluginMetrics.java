@@ -0,0 +1,313 @@
+package net.berthereau.exlibris.rta;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.exlibris.primo.api.common.IPrimoLogger;
+
+/**
+ * Publishes the metrics of the plugin via JMX, globally and by remote system.
+ *
+ * The metrics of a remote system are registered when it is requested for the
+ * first time. The names of the beans contain the instance of the plugin, so
+ * multiple instances don't replace the beans of the other ones. All the beans
+ * of an instance are removed when it is initialized again.
+ */
+class PluginMetrics implements PluginMetricsMBean {
+
+    static final String DOMAIN = "net.berthereau.exlibris.rta";
+
+    private final IPrimoLogger logger;
+    private final MBeanServer server;
+    private final String type;
+    private final String instance;
+
+    // No more bean is registered after the close, because the ones of the
+    // next init use the same names.
+    private volatile boolean closed;
+
+    private final AvailabilityCache cache;
+    private final CacheRevalidator cacheRevalidator;
+    private final MissingRecordsCache missingRecordsCache;
+    private final AvailabilityMirror mirror;
+    private final RateLimiters rateLimiters;
+    private final AdmissionControl admissionControl;
+    private final SingleFlightRequests singleFlightRequests;
+    private final HedgedRequests hedgedRequests;
+    private final HttpConnectionPool connectionPool;
+    private final CircuitBreakers circuitBreakers;
+    private final RequestTraces requestTraces;
+
+    private final ConcurrentMap<String, EndpointMetrics> endpoints = new ConcurrentHashMap<>();
+
+    /**
+     * @param logger
+     * @param type
+     *            The name of the plugin, used in the names of the beans.
+     * @param instance
+     *            The instance of the plugin, used in the names of the beans.
+     * @param cache
+     *            May be null, as the other features.
+     * @param cacheRevalidator
+     * @param missingRecordsCache
+     * @param mirror
+     * @param rateLimiters
+     * @param admissionControl
+     * @param singleFlightRequests
+     * @param hedgedRequests
+     * @param connectionPool
+     * @param circuitBreakers
+     * @param requestTraces
+     */
+    PluginMetrics(IPrimoLogger logger, String type, String instance, AvailabilityCache cache, CacheRevalidator cacheRevalidator,
+            MissingRecordsCache missingRecordsCache, AvailabilityMirror mirror, RateLimiters rateLimiters,
+            AdmissionControl admissionControl, SingleFlightRequests singleFlightRequests,
+            HedgedRequests hedgedRequests, HttpConnectionPool connectionPool, CircuitBreakers circuitBreakers,
+            RequestTraces requestTraces) {
+        this.logger = logger;
+        this.server = ManagementFactory.getPlatformMBeanServer();
+        this.type = type;
+        this.instance = instance;
+        this.cache = cache;
+        this.cacheRevalidator = cacheRevalidator;
+        this.missingRecordsCache = missingRecordsCache;
+        this.mirror = mirror;
+        this.rateLimiters = rateLimiters;
+        this.admissionControl = admissionControl;
+        this.singleFlightRequests = singleFlightRequests;
+        this.hedgedRequests = hedgedRequests;
+        this.connectionPool = connectionPool;
+        this.circuitBreakers = circuitBreakers;
+        this.requestTraces = requestTraces;
+    }
+
+    /**
+     * Register the global bean, replacing the ones of a previous init of the
+     * same instance.
+     *
+     * @return void
+     */
+    void register() {
+        try {
+            ObjectName name = new ObjectName(getPrefix() + ",name=Metrics");
+            unregisterAll();
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            logger.warn("Cannot register the metrics of the plugin: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Unregister the global bean and the ones of the remote systems of this
+     * instance, if any.
+     *
+     * @return void
+     */
+    void unregisterAll() {
+        try {
+            for (ObjectName name : server.queryNames(new ObjectName(getPrefix() + ",*"), null)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            logger.warn("Cannot unregister the metrics of the plugin: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Stop to register the beans of the remote systems, because the next init
+     * of the instance registers its own ones.
+     *
+     * @return void
+     */
+    void close() {
+        closed = true;
+    }
+
+    /**
+     * Get the metrics of a remote system, registered when needed.
+     *
+     * @param rtaBaseUrl
+     * @return EndpointMetrics
+     */
+    EndpointMetrics get(String rtaBaseUrl) {
+        EndpointMetrics metrics = endpoints.get(rtaBaseUrl);
+        if (metrics != null) {
+            return metrics;
+        }
+
+        metrics = new EndpointMetrics(rtaBaseUrl);
+        EndpointMetrics existing = endpoints.putIfAbsent(rtaBaseUrl, metrics);
+        if (existing != null) {
+            return existing;
+        }
+        if (closed) {
+            return metrics;
+        }
+        try {
+            ObjectName name = new ObjectName(getPrefix() + ",name=Endpoint,url=" + ObjectName.quote(rtaBaseUrl));
+            try {
+                server.registerMBean(metrics, name);
+            } catch (InstanceAlreadyExistsException e) {
+                // Registered by the previous init just before its close.
+                server.unregisterMBean(name);
+                server.registerMBean(metrics, name);
+            }
+        } catch (JMException e) {
+            logger.warn("Cannot register the metrics of [" + rtaBaseUrl + "]: " + e.getMessage(), e);
+        }
+        return metrics;
+    }
+
+    @Override
+    public long getRequests() {
+        long requests = 0;
+        for (EndpointMetrics metrics : endpoints.values()) {
+            requests += metrics.getRequests();
+        }
+        return requests;
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        if (cache == null) {
+            return -1;
+        }
+        long hits = cache.getHits() + cache.getStaleHits();
+        return ratio(hits, hits + cache.getMisses());
+    }
+
+    @Override
+    public long getCacheStaleHits() {
+        return cache == null ? 0 : cache.getStaleHits();
+    }
+
+    @Override
+    public long getCacheSnapshotHits() {
+        return cache == null ? 0 : cache.getSnapshotHits();
+    }
+
+    @Override
+    public long getCacheRefreshes() {
+        return cacheRevalidator == null ? 0 : cacheRevalidator.getBatches();
+    }
+
+    @Override
+    public int getCacheEntries() {
+        return cache == null ? 0 : cache.size();
+    }
+
+    @Override
+    public long getMissingRecordsSkipped() {
+        return missingRecordsCache == null ? 0 : missingRecordsCache.getHits();
+    }
+
+    @Override
+    public int getMissingRecordsEntries() {
+        return missingRecordsCache == null ? 0 : missingRecordsCache.size();
+    }
+
+    @Override
+    public String getMostSkippedMissingRecords() {
+        return missingRecordsCache == null ? "[]" : missingRecordsCache.getMostSkipped(20);
+    }
+
+    @Override
+    public double getMirrorHitRatio() {
+        return mirror == null ? -1 : ratio(mirror.getHits(), mirror.getHits() + mirror.getMisses());
+    }
+
+    @Override
+    public int getMirrorEntries() {
+        return mirror == null ? 0 : mirror.size();
+    }
+
+    @Override
+    public long getMirrorHarvests() {
+        return mirror == null ? 0 : mirror.getHarvests();
+    }
+
+    @Override
+    public long getMirrorAge() {
+        long age = mirror == null ? -1L : mirror.getAge();
+        return age < 0 ? -1L : TimeUnit.MILLISECONDS.toSeconds(age);
+    }
+
+    @Override
+    public int getMirrorStaleInstitutions() {
+        return mirror == null ? 0 : mirror.getStaleInstitutions();
+    }
+
+    @Override
+    public long getRateLimitDelayedRequests() {
+        return rateLimiters == null ? 0 : rateLimiters.getDelayed();
+    }
+
+    @Override
+    public long getRateLimitSkippedRequests() {
+        return rateLimiters == null ? 0 : rateLimiters.getRejected();
+    }
+
+    @Override
+    public long getAdmissionShedRequests() {
+        return admissionControl == null ? 0 : admissionControl.getShed();
+    }
+
+    @Override
+    public long getAdmissionShedInstitutionRequests() {
+        return admissionControl == null ? 0 : admissionControl.getShedByEndpoint();
+    }
+
+    @Override
+    public long getAdmissionLastKnownRecords() {
+        return admissionControl == null ? 0 : admissionControl.getLastKnownRecords();
+    }
+
+    @Override
+    public int getAdmissionPendingRequests() {
+        return admissionControl == null ? 0 : admissionControl.getRequests();
+    }
+
+    @Override
+    public double getCoalescedRatio() {
+        return singleFlightRequests == null
+                ? -1
+                : ratio(singleFlightRequests.getCoalesced(), singleFlightRequests.getRequested());
+    }
+
+    @Override
+    public double getHedgedRatio() {
+        return hedgedRequests == null ? -1 : ratio(hedgedRequests.getHedged(), hedgedRequests.getRequests());
+    }
+
+    @Override
+    public double getConnectionReuseRatio() {
+        return connectionPool == null
+                ? -1
+                : ratio(connectionPool.getReused(), connectionPool.getReused() + connectionPool.getOpened());
+    }
+
+    @Override
+    public String getOpenCircuitBreakers() {
+        return circuitBreakers == null ? "[]" : circuitBreakers.getOpenBreakers();
+    }
+
+    @Override
+    public String dumpTraces() {
+        return requestTraces == null ? "" : requestTraces.dump();
+    }
+
+    private String getPrefix() {
+        return DOMAIN + ":type=" + type + ",instance=" + instance;
+    }
+
+    private static double ratio(long part, long total) {
+        return total == 0 ? 0 : (double) part / total;
+    }
+}
@@ -0,0 +1,106 @@
+package net.berthereau.exlibris.rta;
+
+/**
+ * Management interface of the global metrics of the plugin.
+ *
+ * The ratios are -1 when the related feature is disabled.
+ */
+public interface PluginMetricsMBean {
+
+    long getRequests();
+
+    double getCacheHitRatio();
+
+    int getCacheEntries();
+
+    long getCacheStaleHits();
+
+    /**
+     * The number of records read from the snapshot of a previous run.
+     */
+    long getCacheSnapshotHits();
+
+    /**
+     * The number of background requests of stale records.
+     */
+    long getCacheRefreshes();
+
+    long getMissingRecordsSkipped();
+
+    int getMissingRecordsEntries();
+
+    /**
+     * The 20 missing records with the most skipped requests, with their rta
+     * base url and their number of skipped requests.
+     */
+    String getMostSkippedMissingRecords();
+
+    double getMirrorHitRatio();
+
+    int getMirrorEntries();
+
+    /**
+     * The number of successful harvests of the institutions.
+     */
+    long getMirrorHarvests();
+
+    /**
+     * The time since the last successful harvest of the oldest copy, in
+     * seconds, or -1 if no institution is harvested.
+     */
+    long getMirrorAge();
+
+    /**
+     * The number of institutions whose copy is too old to be used, because
+     * their last harvests failed.
+     */
+    int getMirrorStaleInstitutions();
+
+    /**
+     * The number of requests that waited for the rate limit of their remote
+     * system.
+     */
+    long getRateLimitDelayedRequests();
+
+    /**
+     * The number of requests not sent because of the rate limit of their
+     * remote system.
+     */
+    long getRateLimitSkippedRequests();
+
+    /**
+     * The number of requests not sent because too many requests were in
+     * progress.
+     */
+    long getAdmissionShedRequests();
+
+    /**
+     * The number of requests not sent because too many requests to their
+     * remote system were in progress.
+     */
+    long getAdmissionShedInstitutionRequests();
+
+    /**
+     * The number of records of the requests not sent that got their last
+     * known status from the cache.
+     */
+    long getAdmissionLastKnownRecords();
+
+    /**
+     * The number of requests in progress, when MaxPendingRequests is set.
+     */
+    int getAdmissionPendingRequests();
+
+    double getCoalescedRatio();
+
+    double getHedgedRatio();
+
+    double getConnectionReuseRatio();
+
+    String getOpenCircuitBreakers();
+
+    /**
+     * The summaries of the last requests kept, the oldest first.
+     */
+    String dumpTraces();
+}
@@ -0,0 +1,138 @@
+package net.berthereau.exlibris.rta;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads of one init of the plugin: the ones of the requests, the one of the
+ * timers and the ones of the background requests.
+ *
+ * All of them are daemons, and the pools release their threads when idle,
+ * because Primo doesn't notify the plugin when it is unloaded.
+ */
+final class PluginThreads {
+
+    private final String name;
+
+    // Executor used to send requests to multiple institutions at the same
+    // time when the parallel mode is set, the requests of the records split
+    // in multiple urls and the blocking requests of the asynchronous checks.
+    final ThreadPoolExecutor executor;
+
+    // Thread used for the short timer tasks of the background, if any.
+    final ScheduledThreadPoolExecutor scheduler;
+
+    // Threads used for the background requests, the refreshes of the cache and
+    // the checks of the failing remote systems, if any.
+    final ThreadPoolExecutor backgroundExecutor;
+
+    /**
+     * Prepare the threads required by the params. No thread is started until
+     * it is used.
+     *
+     * @param config
+     * @param name
+     *            The name of the plugin, used as prefix of the threads.
+     */
+    PluginThreads(PluginConfig config, String name) {
+        this.name = name;
+        executor = newExecutor(config);
+        scheduler = newScheduler(config);
+        backgroundExecutor = newBackgroundExecutor(config);
+    }
+
+    /**
+     * Stop the threads. The queued requests are still processed.
+     *
+     * @return void
+     */
+    void close() {
+        executor.shutdown();
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (backgroundExecutor != null) {
+            backgroundExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Prepare the bounded pool of threads used to request institutions in
+     * parallel, to send the split requests and the second requests, and to do
+     * the blocking requests of the asynchronous checks.
+     *
+     * @param config
+     * @return ThreadPoolExecutor
+     */
+    private ThreadPoolExecutor newExecutor(PluginConfig config) {
+        ThreadPoolExecutor threads = new ThreadPoolExecutor(config.parallelThreads, config.parallelThreads,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), newThreadFactory("request"));
+        threads.allowCoreThreadTimeOut(true);
+        return threads;
+    }
+
+    /**
+     * Prepare the thread used for the background tasks, if any is needed.
+     *
+     * @param config
+     * @return The scheduler, or null if it is not needed.
+     */
+    private ScheduledThreadPoolExecutor newScheduler(PluginConfig config) {
+        // The non-blocking requests use it for timeouts and rate limits, and the
+        // pool of connections to close the idle ones.
+        boolean isNeeded = config.circuitBreakerFailureRate > 0 || config.hedgePercentile > 0
+                || config.nonBlocking || config.keepAlive
+                || (config.cacheTtl > 0 && (config.cacheStaleTtl > 0 || !config.cacheSnapshotFile.isEmpty()));
+        if (!isNeeded) {
+            return null;
+        }
+
+        return new ScheduledThreadPoolExecutor(1, newThreadFactory("background"));
+    }
+
+    /**
+     * Prepare the threads used for the requests of the background, so the
+     * scheduler, used for the timeouts of the requests too, is never blocked
+     * by a slow remote system.
+     *
+     * @param config
+     * @return The executor, or null if it is not needed.
+     */
+    private ThreadPoolExecutor newBackgroundExecutor(PluginConfig config) {
+        boolean isNeeded = config.circuitBreakerFailureRate > 0
+                || (config.cacheTtl > 0 && config.cacheMaxEntries > 0 && config.cacheStaleTtl > 0);
+        if (!isNeeded) {
+            return null;
+        }
+
+        ThreadPoolExecutor threads = new ThreadPoolExecutor(config.parallelThreads, config.parallelThreads,
+                60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), newThreadFactory("refresh"));
+        threads.allowCoreThreadTimeOut(true);
+        return threads;
+    }
+
+    /**
+     * Create the threads of the plugin as daemons, so they never prevent Primo
+     * to stop.
+     *
+     * @param threadName
+     * @return ThreadFactory
+     */
+    ThreadFactory newThreadFactory(String threadName) {
+        final String prefix = name + "-" + threadName + "-";
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
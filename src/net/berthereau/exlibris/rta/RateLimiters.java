@@ -0,0 +1,143 @@
+package net.berthereau.exlibris.rta;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate of the requests sent to each remote system, for the
+ * institutions that require it.
+ *
+ * A token bucket is managed by rta base url: it is refilled continuously at
+ * the allowed rate and contains at most one second of requests, so a short
+ * burst is allowed. When the bucket is empty, a request may wait for its token
+ * a short time, or it is not sent.
+ */
+class RateLimiters {
+
+    // The rate of the remote systems that are not listed.
+    static final String DEFAULT = "*";
+
+    /**
+     * The tokens available for a remote system.
+     */
+    private static class Bucket {
+        private final double rate;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill;
+
+        private Bucket(double rate) {
+            this.rate = rate;
+            this.capacity = Math.max(1, rate);
+            this.tokens = capacity;
+            this.lastRefill = System.nanoTime();
+        }
+    }
+
+    private final Map<String, Double> rates;
+    private final long maxWait;
+
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    private final AtomicLong delayed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param rates
+     *            Maximum number of requests by second, by rta base url, with
+     *            the default one for the key "*", if any.
+     * @param maxWait
+     *            Maximum time to wait for a token, in milliseconds. 0 means
+     *            that the request is not sent when the bucket is empty.
+     */
+    RateLimiters(Map<String, Double> rates, long maxWait) {
+        this.rates = rates;
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * Take a token to send a request to a remote system, waiting for it if
+     * needed.
+     *
+     * @param rtaBaseUrl
+     * @return False if the request should not be sent.
+     */
+    boolean acquire(String rtaBaseUrl) {
+        long delay = reserve(rtaBaseUrl);
+        if (delay <= 0) {
+            return delay == 0;
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep(delay);
+        } catch (InterruptedException e) {
+            // The token is lost, so the rate remains respected.
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Take a token to send a request to a remote system, without waiting.
+     *
+     * @param rtaBaseUrl
+     * @return The time to wait before the request, in milliseconds, or -1 if
+     *         the request should not be sent.
+     */
+    long reserve(String rtaBaseUrl) {
+        Bucket bucket = getBucket(rtaBaseUrl);
+        if (bucket == null) {
+            return 0;
+        }
+
+        synchronized (bucket) {
+            long now = System.nanoTime();
+            bucket.tokens = Math.min(bucket.capacity,
+                    bucket.tokens + (now - bucket.lastRefill) * bucket.rate / TimeUnit.SECONDS.toNanos(1));
+            bucket.lastRefill = now;
+            if (bucket.tokens >= 1) {
+                bucket.tokens--;
+                return 0;
+            }
+            // The token is reserved, so the waiting requests are sent in
+            // order.
+            long delay = (long) Math.ceil((1 - bucket.tokens) * 1000 / bucket.rate);
+            if (delay > maxWait) {
+                rejected.incrementAndGet();
+                return -1;
+            }
+            bucket.tokens--;
+            delayed.incrementAndGet();
+            return delay;
+        }
+    }
+
+    long getDelayed() {
+        return delayed.get();
+    }
+
+    long getRejected() {
+        return rejected.get();
+    }
+
+    private Bucket getBucket(String rtaBaseUrl) {
+        Bucket bucket = buckets.get(rtaBaseUrl);
+        if (bucket != null) {
+            return bucket;
+        }
+
+        Double rate = rates.get(rtaBaseUrl);
+        if (rate == null) {
+            rate = rates.get(DEFAULT);
+        }
+        if (rate == null || rate <= 0) {
+            return null;
+        }
+        bucket = new Bucket(rate);
+        Bucket existing = buckets.putIfAbsent(rtaBaseUrl, bucket);
+        return existing == null ? bucket : existing;
+    }
+}
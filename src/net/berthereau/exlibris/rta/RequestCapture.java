@@ -0,0 +1,187 @@
+package net.berthereau.exlibris.rta;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.exlibris.primo.api.common.IPrimoLogger;
+import com.exlibris.primo.api.plugins.rta.Library;
+import com.exlibris.primo.api.plugins.rta.RTARequest;
+
+/**
+ * Records the batches of rta requests sent by Primo and the responses of the
+ * remote systems in a file, so the real traffic can be replayed offline by the
+ * load generator.
+ *
+ * The file is a text file in utf-8, appended, with one event by line and the
+ * fields separated by tabs:
+ * <ul>
+ * <li>batch, time in milliseconds, number of rta requests;</li>
+ * <li>record, primo record id, record identifier, for each rta request of the
+ * previous batch;</li>
+ * <li>library, institution, library code, rta base url, for each library of
+ * the previous record;</li>
+ * <li>response, time in milliseconds, url, body, for each response of a
+ * remote system.</li>
+ * </ul>
+ * The tabs, the line breaks and the backslashes of the fields are escaped with
+ * a backslash. The body is not recorded when the responses are decoded while
+ * they are received (Streaming).
+ */
+class RequestCapture {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final String BATCH = "batch";
+    static final String RECORD = "record";
+    static final String LIBRARY = "library";
+    static final String RESPONSE = "response";
+
+    private final IPrimoLogger logger;
+    private final Path file;
+    private final Writer writer;
+
+    private volatile boolean failed;
+
+    /**
+     * @param logger
+     * @param file
+     *            Created if needed, else appended.
+     * @throws IOException
+     */
+    RequestCapture(IPrimoLogger logger, Path file) throws IOException {
+        this.logger = logger;
+        this.file = file;
+        this.writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE), UTF_8));
+    }
+
+    /**
+     * Record a batch of rta requests, before any update.
+     *
+     * @param rtaRequests
+     * @return void
+     */
+    void addBatch(List<RTARequest> rtaRequests) {
+        StringBuilder builder = new StringBuilder();
+        appendLine(builder, BATCH, String.valueOf(System.currentTimeMillis()), String.valueOf(rtaRequests.size()));
+        for (RTARequest rtaRequest : rtaRequests) {
+            appendLine(builder, RECORD, rtaRequest.getPrimoRecordId(), rtaRequest.getRecordIdentifier());
+            if (rtaRequest.getLibraries() == null) {
+                continue;
+            }
+            for (Library library : rtaRequest.getLibraries()) {
+                appendLine(builder, LIBRARY, library.getInstitution(), library.getLibraryCode(),
+                        library.getRtaBaseURL());
+            }
+        }
+        write(builder);
+    }
+
+    /**
+     * Record the response of a remote system.
+     *
+     * @param pUrl
+     * @param body
+     * @return void
+     */
+    void addResponse(String pUrl, String body) {
+        StringBuilder builder = new StringBuilder();
+        appendLine(builder, RESPONSE, String.valueOf(System.currentTimeMillis()), pUrl, body);
+        write(builder);
+    }
+
+    /**
+     * Close the file.
+     *
+     * @return void
+     */
+    void close() {
+        synchronized (writer) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                logger.warn("Cannot close the capture [" + file + "]: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Split a line of a capture into its unescaped fields.
+     *
+     * @param line
+     * @return List of fields, the first one being the type of event.
+     */
+    static List<String> parseLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\t') {
+                fields.add(field.toString());
+                field.setLength(0);
+            }
+            else if (c == '\\' && i + 1 < line.length()) {
+                char next = line.charAt(++i);
+                field.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            }
+            else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private static void appendLine(StringBuilder builder, String... fields) {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                builder.append('\t');
+            }
+            String field = fields[i] == null ? "" : fields[i];
+            for (int j = 0; j < field.length(); j++) {
+                char c = field.charAt(j);
+                switch (c) {
+                    case '\t':
+                        builder.append("\\t");
+                        break;
+                    case '\n':
+                        builder.append("\\n");
+                        break;
+                    case '\r':
+                        builder.append("\\r");
+                        break;
+                    case '\\':
+                        builder.append("\\\\");
+                        break;
+                    default:
+                        builder.append(c);
+                }
+            }
+        }
+        builder.append('\n');
+    }
+
+    private void write(StringBuilder builder) {
+        // The lines of a batch are not mixed with the ones of other threads.
+        synchronized (writer) {
+            try {
+                writer.write(builder.toString());
+                writer.flush();
+            } catch (IOException e) {
+                // Logged once, because the capture is not essential.
+                if (!failed) {
+                    failed = true;
+                    logger.warn("Cannot write the capture [" + file + "]: " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+}
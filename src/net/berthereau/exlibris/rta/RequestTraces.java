@@ -0,0 +1,151 @@
+package net.berthereau.exlibris.rta;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.exlibris.primo.api.common.IPrimoLogger;
+import com.exlibris.primo.api.plugins.rta.HoldingStatus;
+
+/**
+ * Keeps the summaries of the last requests in memory, so they can be read
+ * when there is a problem, without logging all the responses as the debug
+ * mode.
+ *
+ * Only a sample of the successful requests is kept, but all the failed ones
+ * are, and the summaries are logged when a request fails, no more than once
+ * a minute. The oldest summaries are replaced by the new ones.
+ */
+class RequestTraces {
+
+    // Maximum number of characters of the body kept in a summary.
+    static final int MAX_BODY_LENGTH = 500;
+
+    private static final long ERROR_LOG_INTERVAL = 60000L;
+
+    private final IPrimoLogger logger;
+    private final int sampleRate;
+
+    // The ring of the summaries, the oldest one being at the index.
+    private final String[] traces;
+    private int index;
+
+    private final AtomicLong lastErrorLog = new AtomicLong();
+
+    /**
+     * @param logger
+     * @param sampleRate
+     *            Percentage of the successful requests to keep.
+     * @param size
+     *            Number of summaries to keep.
+     */
+    RequestTraces(IPrimoLogger logger, int sampleRate, int size) {
+        this.logger = logger;
+        this.sampleRate = sampleRate;
+        this.traces = new String[Math.max(1, size)];
+    }
+
+    /**
+     * Check if a request should be kept, so nothing is built for the other
+     * ones.
+     *
+     * @param handle
+     *            A finished request.
+     * @return boolean
+     */
+    boolean isSampled(HttpRequestHandle handle) {
+        // A cancelled request is not an error.
+        if (handle.isCancelled()) {
+            return false;
+        }
+        return handle.getOutcome() != HttpRequestHandle.Outcome.SUCCESS
+                || ThreadLocalRandom.current().nextInt(100) < sampleRate;
+    }
+
+    /**
+     * Keep the summary of a request, and log the last ones if it failed.
+     *
+     * @param pUrl
+     * @param handle
+     *            A finished request.
+     * @param results
+     *            The availability of each record, or null if none.
+     * @param body
+     *            The response, or null if unknown.
+     * @param size
+     *            The size of the response, or -1 if unknown.
+     * @param duration
+     *            In nanoseconds.
+     * @return void
+     */
+    void add(String pUrl, HttpRequestHandle handle, Map<String, HoldingStatus> results, String body, long size,
+            long duration) {
+        StringBuilder builder = new StringBuilder();
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        builder.append(format.format(new Date()))
+                .append(' ').append(handle.getOutcome())
+                .append(' ').append(pUrl)
+                .append(" in ").append(TimeUnit.NANOSECONDS.toMillis(duration)).append(" ms")
+                .append(" (connect: ").append(millis(handle.getConnectTime()))
+                .append(", first byte: ").append(millis(handle.getFirstByteTime()))
+                .append(", body: ").append(millis(handle.getBodyReadTime())).append(')');
+        if (size >= 0) {
+            builder.append(", ").append(size).append(" bytes");
+        }
+        if (results != null) {
+            Map<HoldingStatus, Integer> counts = new EnumMap<>(HoldingStatus.class);
+            for (HoldingStatus holdingStatus : results.values()) {
+                Integer count = counts.get(holdingStatus);
+                counts.put(holdingStatus, count == null ? 1 : count + 1);
+            }
+            builder.append(", statuses: ").append(counts);
+        }
+        if (body != null) {
+            builder.append(", body: ")
+                    .append(body.length() > MAX_BODY_LENGTH ? body.substring(0, MAX_BODY_LENGTH) + "..." : body);
+        }
+
+        synchronized (traces) {
+            traces[index] = builder.toString();
+            index = (index + 1) % traces.length;
+        }
+
+        if (handle.getOutcome() == HttpRequestHandle.Outcome.SUCCESS) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long last = lastErrorLog.get();
+        if (now - last >= ERROR_LOG_INTERVAL && lastErrorLog.compareAndSet(last, now)) {
+            logger.warn("Last requests before the failure of [" + pUrl + "]:\n" + dump());
+        }
+    }
+
+    /**
+     * Get the kept summaries, the oldest first.
+     *
+     * @return One summary by line.
+     */
+    String dump() {
+        StringBuilder builder = new StringBuilder();
+        synchronized (traces) {
+            for (int i = 0; i < traces.length; i++) {
+                String trace = traces[(index + i) % traces.length];
+                if (trace != null) {
+                    builder.append(trace).append('\n');
+                }
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String millis(long nanos) {
+        return nanos < 0 ? "-" : TimeUnit.NANOSECONDS.toMillis(nanos) + " ms";
+    }
+}
@@ -0,0 +1,130 @@
+package net.berthereau.exlibris.rta;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.exlibris.primo.api.plugins.rta.HoldingStatus;
+
+/**
+ * Merges the concurrent requests of the same records to the same remote
+ * system, so only one request is sent by record at a time.
+ *
+ * The first caller of a record sends the request and the other callers wait
+ * for its result, but never more than their own timeout.
+ */
+class SingleFlightRequests {
+
+    /**
+     * Process that requests the availability of records to a remote system.
+     */
+    interface Fetcher {
+        Map<String, HoldingStatus> fetch(Set<String> recordIds);
+    }
+
+    /**
+     * A request of a record in progress.
+     */
+    private static class InFlight {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile HoldingStatus holdingStatus;
+    }
+
+    private final ConcurrentMap<String, InFlight> inFlights = new ConcurrentHashMap<>();
+
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    /**
+     * Get the availability of records, requesting only the ones that are not
+     * already requested by another thread.
+     *
+     * @param rtaBaseUrl
+     * @param recordIds
+     * @param timeout
+     *            Maximum time to wait for the requests of other threads, in
+     *            milliseconds.
+     * @param fetcher
+     * @return Availability of each record (record id -> holding status), or
+     *         null if there is no result.
+     */
+    Map<String, HoldingStatus> fetch(String rtaBaseUrl, Set<String> recordIds, long timeout, Fetcher fetcher) {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        Map<String, InFlight> owned = new HashMap<>();
+        Map<String, InFlight> waited = new HashMap<>();
+        for (String recordId : recordIds) {
+            InFlight inFlight = new InFlight();
+            InFlight existing = inFlights.putIfAbsent(key(rtaBaseUrl, recordId), inFlight);
+            if (existing == null) {
+                owned.put(recordId, inFlight);
+            }
+            else {
+                waited.put(recordId, existing);
+            }
+        }
+        requested.addAndGet(recordIds.size());
+        coalesced.addAndGet(waited.size());
+
+        Map<String, HoldingStatus> fetched = null;
+        if (!owned.isEmpty()) {
+            Map<String, HoldingStatus> results = null;
+            try {
+                results = fetcher.fetch(new LinkedHashSet<>(owned.keySet()));
+                fetched = results;
+            } finally {
+                // The waiting threads are released even on failure.
+                for (Entry<String, InFlight> entry : owned.entrySet()) {
+                    InFlight inFlight = entry.getValue();
+                    inFlight.holdingStatus = results == null ? null : results.get(entry.getKey());
+                    inFlights.remove(key(rtaBaseUrl, entry.getKey()), inFlight);
+                    inFlight.done.countDown();
+                }
+            }
+        }
+
+        Map<String, HoldingStatus> results = fetched;
+        for (Entry<String, InFlight> entry : waited.entrySet()) {
+            InFlight inFlight = entry.getValue();
+            try {
+                long wait = Math.max(0L, deadline - System.currentTimeMillis());
+                if (!inFlight.done.await(wait, TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (inFlight.holdingStatus != null) {
+                // The results of the fetcher are not modified.
+                if (results == fetched) {
+                    results = fetched == null
+                            ? new HashMap<String, HoldingStatus>()
+                            : new HashMap<>(fetched);
+                }
+                results.put(entry.getKey(), inFlight.holdingStatus);
+            }
+        }
+
+        return results;
+    }
+
+    long getRequested() {
+        return requested.get();
+    }
+
+    long getCoalesced() {
+        return coalesced.get();
+    }
+
+    private static String key(String rtaBaseUrl, String recordId) {
+        return rtaBaseUrl + '\n' + recordId;
+    }
+}
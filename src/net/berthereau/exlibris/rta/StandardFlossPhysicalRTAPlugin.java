@@ -1,42 +1,15 @@
 package net.berthereau.exlibris.rta;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.StringReader;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.net.URL;
-import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-
-import org.diglib.ilsdi.Service;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 import com.exlibris.primo.api.common.IMappingTablesFetcher;
 import com.exlibris.primo.api.common.IPrimoLogger;
-import com.exlibris.primo.api.plugins.rta.HoldingStatus;
-import com.exlibris.primo.api.plugins.rta.Library;
 import com.exlibris.primo.api.plugins.rta.PhysicalRTAPlugin;
 import com.exlibris.primo.api.plugins.rta.RTARequest;
 
@@ -57,14 +30,103 @@ import com.exlibris.primo.api.plugins.rta.RTARequest;
  * <li>IdentifierXpath: The path in the PNX record to the id of this record on
  * the remote system, for example "record/control/sourcerecordid".</li>
  * <li>Debug: If true, more log will be written in Primo logs.</li>
+ * <li>TraceSize: Number of summaries of the last requests kept in memory (url,
+ * durations, size, statuses and beginning of the response). They are logged
+ * when a request fails and can be read via JMX. Default is 0 (no trace).</li>
+ * <li>TraceSampleRate: Percentage of the successful requests that are kept,
+ * the failed ones being always kept. Default is 1.</li>
+ * <li>CaptureFile: Path of a file where the batches of rta requests and the
+ * responses of the remote systems are appended, so they can be replayed by the
+ * load generator. Default is empty (no capture).</li>
  * <li>ConnectionTimeout: Default is 1000 milliseconds.</li>
  * <li>ReadTimeout: Default is 1000 milliseconds.</li>
+ * <li>AdaptiveTimeoutPercentile: If set, the timeouts of each remote system
+ * are this percentile of its last durations to connect and to get the first
+ * byte, multiplied by AdaptiveTimeoutMultiplier, for example 99. The timeouts
+ * above are used until 20 requests succeeded. Default is 0 (fixed timeouts).
+ * </li>
+ * <li>AdaptiveTimeoutMultiplier: Default is 3.</li>
+ * <li>AdaptiveTimeoutMin: Minimum adaptive timeout, in milliseconds. Default
+ * is 100.</li>
+ * <li>AdaptiveTimeoutMax: Maximum adaptive timeout, in milliseconds. Default
+ * is 5000.</li>
+ * <li>Parallel: If true, the requests to the different institutions are sent
+ * at the same time. Default is false.</li>
+ * <li>ParallelThreads: Maximum number of simultaneous requests when Parallel
+ * is set. Default is 4.</li>
+ * <li>MaxRecordsByRequest: Maximum number of record ids sent in one request.
+ * The other ones are sent in other requests, at the same time when Parallel
+ * is set. Default is 0 (no limit).</li>
+ * <li>MaxUrlLength: Maximum length of the url of a request, in bytes. Default
+ * is 4000.</li>
+ * <li>CoalesceRequests: If true, the concurrent checks of the same record are
+ * merged into one request to the remote system. Default is false.</li>
+ * <li>CircuitBreakerFailureRate: Percentage of failed requests to a remote
+ * system that stops to request it. Default is 0 (always request).</li>
+ * <li>CircuitBreakerWindow: Number of last requests used to compute the
+ * failure rate. Default is 10.</li>
+ * <li>CircuitBreakerProbeInterval: Time between two checks of a remote system
+ * that is not requested, in milliseconds. Default is 5000.</li>
+ * <li>HedgePercentile: If set, a second request is sent when the response of
+ * a remote system is slower than this percentile of its last response times,
+ * for example 95. The first response is used. Default is 0 (no second
+ * request).</li>
+ * <li>HedgeMaxRate: Maximum percentage of second requests. Default is 10.</li>
+ * <li>KeepAlive: If true, the connections to the remote systems are kept open
+ * between requests. Default is false.</li>
+ * <li>MaxIdleConnections: Maximum number of idle connections kept by remote
+ * system when KeepAlive is set. Default is 5.</li>
+ * <li>IdleConnectionTimeout: Time after which an idle connection is closed, in
+ * milliseconds. Default is 10000.</li>
+ * <li>CacheTtl: Time to keep in memory the availability of a record, in
+ * seconds. Default is 0 (no cache).</li>
+ * <li>CacheMaxEntries: Maximum number of records kept in memory. The least
+ * recently used ones are removed first. Default is 10000.</li>
+ * <li>CacheStaleTtl: Time to use the availability of a record after CacheTtl,
+ * in seconds, while it is requested again in the background. Default is 0
+ * (request immediately).</li>
+ * <li>CacheSnapshotFile: Path of a file where the cache is saved regularly and
+ * when Primo stops, so it is reused after a restart. Default is empty (no
+ * file).</li>
+ * <li>CacheSnapshotInterval: Time between two saves of the cache, in seconds.
+ * Default is 300.</li>
+ * <li>NegativeCacheTtl: Time to skip the records that are absent from a
+ * successful response of the remote system, in seconds. The number of records
+ * is limited by CacheMaxEntries too. Default is 0 (always request).</li>
+ * <li>HarvestInterval: Time between two harvests of the holdings of an
+ * institution, in seconds. When set, the availability of all the records is
+ * harvested in the background via the ILS-DI service "HarvestHoldingsRecords",
+ * then the records changed since the previous harvest, and the views use this
+ * local copy. The remote system is requested only for unknown records. Default
+ * is 0 (no harvest).</li>
+ * <li>RateLimits: Maximum number of requests by second to some remote systems,
+ * as a list of "rta base url=rate" separated by spaces or commas, with "*" as
+ * url for the other ones. Default is empty (no limit).</li>
+ * <li>RateLimitWait: Maximum time to wait when the rate of a remote system is
+ * reached, in milliseconds. When the wait would be longer, the records are not
+ * requested and their status is unchanged. Default is 0 (no wait).</li>
+ * <li>MaxPendingRequests: Maximum number of requests in progress to all the
+ * remote systems. Over it, a request is not sent: the records get their last
+ * known status in the cache, whatever its age, or keep their status. Default is
+ * 0 (no limit).</li>
+ * <li>MaxPendingRequestsByInstitution: Maximum number of requests in progress to
+ * each remote system, with the same behavior. Default is 0 (no limit).</li>
  * <li>IdType: Define if the record id passed to the remote system is a "bib" or
  * an "item" (default). It depends on the IdentifierXpath.</li>
  * <li>ReturnType: Define the level of the response of the remote system. It can
  * be "bib" or "item" (default). It can't be "bib" if IdType is "item".</li>
  * <li>ReturnFmt: Empty is the default, for Simple Availability. Any supported
  * format can be used. This parameter is currently unmanaged.</li>
+ * <li>Parser: "xpath" (default) to process the responses via a xml document,
+ * or "stax" to process them in one pass, that is quicker for big responses.</li>
+ * <li>Streaming: If true, the responses are requested compressed and decoded
+ * while they are received, with the charset they declare, without building
+ * the full response as a string. The response is not logged in debug mode.
+ * Default is false.</li>
+ * <li>NonBlocking: If true, the requests to the http remote systems don't use a
+ * thread while waiting for the responses, and the ParallelThreads process all
+ * of them. It cannot be used with KeepAlive, CoalesceRequests or
+ * HedgePercentile. Default is false.</li>
  * </ul>
  * </p>
  *
@@ -79,33 +141,15 @@ import com.exlibris.primo.api.plugins.rta.RTARequest;
  */
 public class StandardFlossPhysicalRTAPlugin implements PhysicalRTAPlugin {
 
-    private IPrimoLogger logger;
+    private volatile IPrimoLogger logger;
     // private HashMap<String, String> institutionCodes = new HashMap<>();
-    private HashMap<String, String> libraryCodes = new HashMap<>();
-
-    // TODO Check if these params are already defined in the interface.
-    // Plugin parameters.
-    private int connectionTimeout = 1000;
-    private int readTimeout = 1000;
-    private boolean debug = false;
+    private volatile Map<String, String> libraryCodes = Collections.emptyMap();
 
-    // Plugins params that are specific to ILS-DI.
-    private String idType = "item";
-    private String returnType = "item";
-    // Only the default format is implemented.
-    private String returnFmt = "";
-
-    // Prepare XPath during init so xml tools will be available quickly to
-    // process each response.
-    private XPathExpression exprRecordsList;
-    private XPathExpression exprRecordId;
-    private XPathExpression exprAvailability;
-    private XPathExpression exprCountItems;
-    private XPathExpression exprCountItemsAvailable;
-    private XPathExpression exprCountItemsUnavailable;
-    private XPathExpression exprItemsList;
-    private XPathExpression exprItemId;
-    // private XPathExpression exprLocation;
+    // Checked params of the plugin and the components they require, replaced
+    // as a whole by each init. Primo calls updateAvailability from multiple
+    // threads, so each check reads it once and keeps the same one until its
+    // end.
+    private volatile AvailabilityChecker checker;
 
     /**
      * Primo invokes this empty constructor to creates this RTA plugin.
@@ -147,123 +191,43 @@ public class StandardFlossPhysicalRTAPlugin implements PhysicalRTAPlugin {
         // List of library codes to get from Primo codes.
         // TODO Library codes are currently not used, because IlS-DI doesn't
         // require to reply with it.
+        Map<String, String> codes = new HashMap<>();
         rows = mtFetcher.getTableRows("ILS Library Codes");
         for (Map<String, String> row : rows) {
             String libraryCode = row.get("Library Code");
             String primoCode = row.get("Primo Code");
-            libraryCodes.put(libraryCode, primoCode);
+            codes.put(libraryCode, primoCode);
         }
+        libraryCodes = Collections.unmodifiableMap(codes);
 
-        // Params of the plugin.
-        initPluginParams(params);
+        // The cache of a previous init is saved before the new one reads the
+        // snapshot.
+        AvailabilityChecker previous = checker;
+        if (previous != null) {
+            previous.closeCacheSnapshot();
+        }
 
-        // Prepare xml tools used to process each response.
+        // Params of the plugin and the components they require.
+        AvailabilityChecker current;
         try {
-            initXPathProcessor();
+            current = new AvailabilityChecker(logger, new PluginConfig(logger, params), getClass().getSimpleName(),
+                    Integer.toHexString(System.identityHashCode(this)));
+        } catch (ParserConfigurationException e) {
+            logger.error("Cannot initialize " + getClass() + ": " + e.getMessage(), e);
+            return;
         } catch (XPathExpressionException e) {
             logger.error("Cannot initialize " + getClass() + ": " + e.getMessage(), e);
             return;
         }
 
-        logger.info("Plugin " + getClass() + " is initialized.");
-    }
-
-    /**
-     * Check and set plugins params.
-     *
-     * @param params
-     *            List of the plugin parameters set in the admin interface.
-     * @return void
-     */
-    private void initPluginParams(Map<String, Object> params) {
-        String param = "";
-
-        param = (String) params.get("ConnectionTimeout");
-        if (param != null && !param.isEmpty()) {
-            try {
-                connectionTimeout = Integer.valueOf(param);
-            } catch (NumberFormatException e) {
-                logger.warn("ConnectionTimeout param should be a number of milliseconds.");
-            }
-        }
-
-        param = (String) params.get("ReadTimeout");
-        if (param != null && !param.isEmpty()) {
-            try {
-                readTimeout = Integer.valueOf(param);
-            } catch (NumberFormatException e) {
-                logger.warn("ReadTimeout param should be a number of milliseconds.");
-            }
+        // Published at once to the request threads, then the previous threads
+        // are released.
+        checker = current;
+        if (previous != null) {
+            previous.close();
         }
 
-        // Only two possible values for id_type: "bib" or "item".
-        param = (String) params.get("IdType");
-        if (param == null || !param.equals("bib")) {
-            idType = "item";
-            if (!(param == null || param.isEmpty() || param.equals("item"))) {
-                logger.warn("idType is malformed. The plugin will use the default [item].");
-            }
-        }
-        else {
-            idType = "bib";
-        }
-
-        // Only two possible values for id_type: "bib" or "item".
-        param = (String) params.get("ReturnType");
-        if (param == null || !param.equals("bib")) {
-            returnType = "item";
-            if (!(param == null || param.isEmpty() || param.equals("item"))) {
-                logger.warn("ReturnType is malformed. The plugin will use the default [item].");
-            }
-        }
-        else {
-            returnType = "bib";
-            if (idType == "item") {
-                logger.warn("To use [item] as IdType and [bib] as ReturnType is currently unsupported.");
-            }
-        }
-
-        // Any value is possible, so it should be url encoded if not pure ascii.
-        param = (String) params.get("ReturnFmt");
-        if (param == null || param.equals("")) {
-            returnFmt = "";
-        }
-        else {
-            // returnType = param;
-            logger.warn("ReturnFmt is currently unmanaged. The plugin will use the default.");
-            returnFmt = "";
-        }
-
-        debug = Boolean.parseBoolean((String) params.get("Debug"));
-    }
-
-    /**
-     * Prepare XPath processor to speed up process..
-     *
-     * @return void
-     * @throws XPathExpressionException
-     */
-    private void initXPathProcessor() throws XPathExpressionException {
-        XPathFactory xpathFactory = XPathFactory.newInstance();
-        XPath xpath = xpathFactory.newXPath();
-        SimpleNamespaceContext ctx = new SimpleNamespaceContext();
-        ctx.addNamespace("dlf", "http://diglib.org/ilsdi/1.1");
-        // ctx.addNamespace("ncip", "http://ncip.envisionware.com/documentation/ncip_v1_0.xsd");
-        // ctx.addNamespace("holdings", "http://www.loc.gov/standards/iso20775/");
-        xpath.setNamespaceContext(ctx);
-
-        // Currently, only accept DLF Simple Availability xml format.
-        exprRecordsList = xpath.compile("/dlf:collection/dlf:record");
-        exprRecordId = xpath.compile("dlf:bibliographic/@id");
-        exprAvailability = xpath.compile("normalize-space(dlf:simpleavailability/dlf:availabilitystatus)");
-        exprCountItems = xpath.compile("count(dlf:items/dlf:item)");
-        exprCountItemsAvailable =
-                xpath.compile("count(dlf:items/dlf:item/dlf:simpleavailability/dlf:availabilitystatus[normalize-space(text())='available'])");
-        exprCountItemsUnavailable =
-                xpath.compile("count(dlf:items/dlf:item/dlf:simpleavailability/dlf:availabilitystatus[normalize-space(text())='not available'])");
-        exprItemsList = xpath.compile("dlf:items/dlf:item");
-        exprItemId = xpath.compile("normalize-space(dlf:simpleavailability/dlf:identifier)");
-        // exprLocation = xpath.compile("normalize-space(dlf:simpleavailability/dlf:location)");
+        logger.info("Plugin " + getClass() + " is initialized.");
     }
 
     /**
@@ -279,471 +243,49 @@ public class StandardFlossPhysicalRTAPlugin implements PhysicalRTAPlugin {
      */
     @Override
     public void updateAvailability(List<RTARequest> rtaRequests) {
-        // TODO Check if a check has been done inside the closed Primo API.
-        if (rtaRequests == null || rtaRequests.isEmpty()) {
-            logger.warn("An empty rta request has been sent.");
+        AvailabilityChecker current = checker;
+        if (current == null) {
+            logger.error("Plugin " + getClass() + " is not initialized.");
             return;
         }
-
-        // The remote API can manage multiple records by request, so
-        // the requests to same institution, identified by the rta base url, are
-        // merged.
-        // TODO Institution is not used, because the rta base url is enough.
-        Map<String, Map<String, List<Library>>> recordsByInstitution = sortRecordsByInstitution(rtaRequests);
-        // Check if there is at least one library to request.
-        if (recordsByInstitution.isEmpty()) {
-            logger.error("No RTA request can be processed.");
-            return;
-        }
-
-        // TODO Use java.nio2 to make parallel threads.
-        for (Entry<String, Map<String, List<Library>>> entry : recordsByInstitution.entrySet()) {
-            String rtaBaseUrl = entry.getKey();
-            Map<String, List<Library>> recordsToRequest = entry.getValue();
-            if (recordsToRequest.isEmpty()) {
-                logger.warn("No records for this institution [rta base url: " + rtaBaseUrl + "].");
-                continue;
-            }
-
-            // Before update of status by library for each record, we should get
-            // availability...
-            Set<String> recordIds = recordsToRequest.keySet();
-            Map<String, HoldingStatus> results = checkAvailabilityForRecords(recordIds, rtaBaseUrl);
-            if (results == null) {
-                logger.warn("No results for record identifiers: " + recordIds + " with rta base url: [" + rtaBaseUrl
-                        + "].");
-                continue;
-            }
-            if (debug) {
-                logger.info("Updated holding status of records: " + results);
-            }
-
-            // Set status for each record in each library.
-            for (Entry<String, List<Library>> recordsToUpdate : recordsToRequest.entrySet()) {
-                String recordIdentifier = recordsToUpdate.getKey();
-                HoldingStatus holdingStatus = results.get(recordIdentifier);
-                // No result for this record.
-                if (holdingStatus == null) {
-                    logger.warn("No response for record id [" + recordIdentifier + "].");
-                }
-                // Update all libraries for this record.
-                else {
-                    for (Library library : recordsToUpdate.getValue()) {
-                        // TODO To be removed.
-                        if (debug) {
-                            logger.info("Update of record [" + recordIdentifier + "] for library ["
-                                    + library.getLibraryCode() + "]: " + library.getHoldingStatus() + " => "
-                                    + holdingStatus + ".");
-                        }
-                        // Update only if needed.
-                        if (library.getHoldingStatus() != holdingStatus) {
-                            library.setHoldingStatus(holdingStatus);
-                        }
-                    }
-                }
-            }
-        }
+        current.updateAvailability(rtaRequests);
     }
 
     /**
-     * Re-map rta requests by institution, remote record ids and libraries.
+     * Get the up-to-date availability status of a list or records in a list of
+     * libraries that are set in a list of RTA requests, without waiting for
+     * the remote systems.
      *
-     * The institution is identified by its rta base url, because we don't know
-     * if there is an Institution class that can be used.
+     * The returned future is complete when all the libraries are updated, or
+     * when no more update is possible. The libraries of an institution are
+     * updated as soon as its response is received. When the future is
+     * cancelled, the requests in progress are cancelled and no more library is
+     * updated.
      *
-     * This helper is useful to manage update of multiple records for multiple
-     * libraries. The Primo record id is not needed for that.
+     * When NonBlocking is set, the requests to the http remote systems don't
+     * use any thread during the wait. Else, they are sent by the threads of
+     * the plugin, so the current thread is never blocked.
      *
      * @param rtaRequests
-     * @return
+     * @return The updated rta requests, when complete.
      */
-    Map<String, Map<String, List<Library>>> sortRecordsByInstitution(List<RTARequest> rtaRequests) {
-        Map<String, Map<String, List<Library>>> recordsByInstitution = new HashMap<>();
-        Map<String, List<Library>> records;
-        // TODO Check if a Set of libraries can be used instead of a List.
-        List<Library> recordsLibraries;
-
-        for (RTARequest request : rtaRequests) {
-            List<Library> libraries = request.getLibraries();
-            // Quick check of libraries because we don't know if Primo do it.
-            if (libraries == null) {
-                logger.warn("No library is set in the rta request for primoRecordId ["
-                        + request.getPrimoRecordId() + "].");
-                continue;
-            }
-            // Quick check of record ids because we don't know if Primo do it.
-            String recordIdentifier = request.getRecordIdentifier();
-            if (recordIdentifier == null || recordIdentifier.isEmpty()) {
-                logger.warn("The record primoRecordId [" + request.getPrimoRecordId()
-                        + "] has no record identifier.");
-                continue;
-            }
-
-            for (Library library : libraries) {
-                String rtaBaseUrl = library.getRtaBaseURL();
-                // Quick check of base url because we don't know if Primo do it.
-                if (rtaBaseUrl == null || rtaBaseUrl.isEmpty()) {
-                    logger.warn("RTA base url is not defined in the request for library ["
-                            + library.getLibraryCode() + "] and primoRecordId ["
-                            + request.getPrimoRecordId() + "].");
-                    continue;
-                }
-
-                // Store the record for the library for the institution.
-                if (!recordsByInstitution.containsKey(rtaBaseUrl)) {
-                    records = new HashMap<String, List<Library>>();
-                    recordsByInstitution.put(rtaBaseUrl, records);
-                }
-                else {
-                    records = recordsByInstitution.get(rtaBaseUrl);
-                }
-
-                if (!records.containsKey(recordIdentifier)) {
-                    recordsLibraries = new ArrayList<Library>();
-                    records.put(recordIdentifier, recordsLibraries);
-                }
-                else {
-                    recordsLibraries = records.get(recordIdentifier);
-                }
-                recordsLibraries.add(library);
-            }
+    public AvailabilityFuture<List<RTARequest>> updateAvailabilityAsync(List<RTARequest> rtaRequests) {
+        AvailabilityChecker current = checker;
+        if (current == null) {
+            logger.error("Plugin " + getClass() + " is not initialized.");
+            AvailabilityFuture<List<RTARequest>> update = new AvailabilityFuture<>();
+            update.complete(rtaRequests);
+            return update;
         }
-
-        return recordsByInstitution;
+        return current.updateAvailabilityAsync(rtaRequests);
     }
 
-    /* Specific methods for the xml standard ILS-DI */
-
     /**
-     * Calls ILS-DI service "GetAvailability", passing it the record ids and
-     * receiving back information for each library of the institution.
-     *
-     * The standard ILS-DI allows to pass multiple record ids by query.
+     * Get the checker built by the last init, for the benchmarks.
      *
-     * @param recordIds
-     *            The list of unique identifiers of the records to check on the
-     *            remote system.
-     * @return Availability of each record (record id -> holding status).
+     * @return AvailabilityChecker
      */
-    private Map<String, HoldingStatus> checkAvailabilityForRecords(Set<String> recordIds, String rtaBaseUrl) {
-        // Build the query.
-        // TODO Use a query builder.
-        // URLEncoder is currently useless because args are controlled during
-        // init and simple alphanumeric Ascii. The full url is re-checked below
-        // too.
-        String pUrl = rtaBaseUrl
-                + "?service=" + Service.GET_AVAILABILITY
-                + "&id=" + joinList(recordIds, "+")
-                + "&id_type=" + idType;
-
-        if (!returnType.equals("bib")) {
-            pUrl += "&return_type=" + returnType;
-        }
-
-        // Currently, only accept DLF SimpleAvailability xml format.
-        if (!returnFmt.isEmpty()) {
-            pUrl += "&return_fmt=" + returnFmt;
-        }
-
-        if (debug) {
-            logger.info("Request for [" + idType + "] records " + recordIds + " for response at [" + returnType
-                    + "] level via [" + pUrl + "].");
-        }
-
-        // Quick way to secure the url because it is created with a builder.
-        pUrl = checkUrl(pUrl);
-        if (pUrl == null) {
-            return null;
-        }
-
-        String output = httpGet(pUrl);
-
-        if (debug) {
-            logger.info("Received response: " + output);
-        }
-
-        // Convert the result and return it.
-        // Currently, only accept DLF SimpleAvailability xml format.
-        return extractSimpleAvailability(output);
-    }
-
-    /**
-     * Helper to convert returned string as xml standard of DLF for ILS-DI into
-     * a java map, that can manage bib and item level.
-     *
-     * @internal Currently, process is done via a simple XPath and not via a
-     *           StAX model, because ILS-DI responses with the default format
-     *           (SimpleAvailability) are light.
-     *
-     * @see http://diglib.org/ilsdi/1.1
-     *
-     * @param xmlString
-     * @return Extracted availability.
-     */
-    private Map<String, HoldingStatus> extractSimpleAvailability(String output) {
-
-        Map<String, HoldingStatus> results = new HashMap<>();
-
-        // TODO Institution is not used, because the query is done for one
-        // institution only.
-
-        Document doc = convertStringToXml(output);
-        if (doc == null) {
-            logger.warn("Cannot process response as XML: " + output);
-            return null;
-        }
-
-        NodeList records;
-        Node record;
-        String recordId;
-        String status;
-        HoldingStatus statusPrimo;
-        int countItems, countAvailable, countUnavailable;
-        try {
-            // Prepare process for each record.
-            records = (NodeList) exprRecordsList.evaluate(doc, XPathConstants.NODESET);
-            for (int i = 0, num = records.getLength(); i < num; i++) {
-                record = records.item(i);
-
-                switch (idType) {
-                    case "bib":
-                        switch (returnType) {
-                            case "bib":
-                                recordId = (String) exprRecordId.evaluate(record, XPathConstants.STRING);
-                                status = (String) exprAvailability.evaluate(record, XPathConstants.STRING);
-                                statusPrimo = AvailabilityILSDI2Primo.convert(status);
-                                if (statusPrimo == null) {
-                                    throw new Exception("Response contains an unknown status for bib: " + status + ".");
-                                }
-                                results.put(recordId, statusPrimo);
-                                break;
-
-                            case "item":
-                                recordId = (String) exprRecordId.evaluate(record, XPathConstants.STRING);
-                                // If one is available, returns available. If
-                                // all are not available, returns unavailable;
-                                // else returns check holdings.
-                                countItems = ((Double) exprCountItems.evaluate(record, XPathConstants.NUMBER))
-                                        .intValue();
-                                countAvailable =
-                                        ((Double) exprCountItemsAvailable.evaluate(record, XPathConstants.NUMBER))
-                                                .intValue();
-                                if (countAvailable > 0) {
-                                    statusPrimo = HoldingStatus.AVAILABLE;
-                                }
-                                // None available.
-                                // TODO Add a response check as for bib?
-                                else {
-                                    countUnavailable =
-                                            ((Double) exprCountItemsUnavailable.evaluate(record, XPathConstants.NUMBER))
-                                                    .intValue();
-                                    statusPrimo = (countUnavailable == countItems)
-                                            ? HoldingStatus.UNAVAILABLE
-                                            : HoldingStatus.CHECKHOLDING;
-                                }
-                                results.put(recordId, statusPrimo);
-                                break;
-                        }
-                        break;
-
-                    case "item":
-                        switch (returnType) {
-                            case "bib":
-                                throw new Exception(
-                                        "To use [item] as IdType and [bib] as ReturnType is currently unsupported.");
-
-                            case "item":
-                                NodeList items;
-                                Node item;
-                                String itemId;
-                                // In ILS-DI, the location may not be the
-                                // library name, so mapping may be difficult.
-                                // Furthermore, the location is not a required
-                                // element. So we can't check it against Primo
-                                // list.
-                                items = (NodeList) exprItemsList.evaluate(record, XPathConstants.NODESET);
-                                countItems = items.getLength();
-                                for (int j = 0; j < countItems; j++) {
-                                    item = items.item(j);
-                                    itemId = (String) exprItemId.evaluate(item, XPathConstants.STRING);
-                                    status = (String) exprAvailability.evaluate(item, XPathConstants.STRING);
-                                    statusPrimo = AvailabilityILSDI2Primo.convert(status.trim());
-                                    if (statusPrimo == null) {
-                                        throw new Exception("Response contains an unknown status for item: " + status
-                                                + ".");
-                                    }
-                                    results.put(itemId, statusPrimo);
-                                }
-                                break;
-                        }
-                        break;
-                }
-            }
-        } catch (XPathExpressionException xpe) {
-            logger.warn("Cannot process records of the response: " + xpe.getMessage(), xpe);
-            return null;
-        } catch (Exception e) {
-            logger.warn("Cannot process response: " + e.getMessage(), e);
-            return null;
-        }
-
-        return results;
-    }
-
-    /** Some tools and helpers needed because there is no access to Primo Api */
-
-    /**
-     * Join elements of a collection, set or list of strings with a delimiter.
-     *
-     * TODO Use Apache commons?
-     *
-     * @param str
-     * @param delimiter
-     * @return
-     */
-    private String joinList(Collection<String> str, String delimiter) {
-        if (str == null || str.isEmpty()) {
-            return "";
-        }
-        StringBuilder builder = new StringBuilder();
-        // Add the delimiter before the string, except for the first.
-        String delim = "";
-        for (String s : str) {
-            builder.append(delim).append(s);
-            delim = delimiter;
-        }
-        return builder.toString();
-    }
-
-    /**
-     * Provides a quick way to secure the format of a url.
-     *
-     * @param pUrl
-     * @return Checked and cleaned url.
-     */
-    private String checkUrl(String pUrl) {
-        URL url;
-        try {
-            url = new URL(pUrl);
-        } catch (MalformedURLException e) {
-            logger.error("Request url [" + pUrl + "] is malformed: " + e.getMessage(), e);
-            return null;
-        }
-
-        URI uri;
-        try {
-            uri = new URI(url.getProtocol(), url.getUserInfo(), url.getHost(),
-                    url.getPort(), url.getPath(), url.getQuery(), url.getRef());
-        } catch (URISyntaxException e) {
-            logger.error("Request URI is malformed: " + e.getMessage(), e);
-            return null;
-        }
-
-        return uri.toASCIIString();
-    }
-
-    /**
-     * Get content from a remote system via http.
-     *
-     * @param pUrl
-     *            The url to fetch.
-     * @return Content get from the remote system.
-     */
-    private String httpGet(String pUrl) {
-        String output;
-
-        // TODO Because the Primo API is closed and proprietary, we don't know
-        // if we should throw an error or catch it.
-        // TODO For the same reason, we don't know which process to use to get
-        // remote content, so a very basic REST client is build.
-        // TODO Use or reset http.keepAlive? During init?
-        // TODO Use java.nio2
-
-        URL url;
-        try {
-            url = new URL(pUrl);
-        } catch (MalformedURLException e) {
-            logger.error("Request url [" + pUrl + "] is malformed: " + e.getMessage(), e);
-            return null;
-        }
-
-        // Secured https url can be used, because we don't use specific method
-        // of HttpsURLConnection.
-        HttpURLConnection connection = null;
-        try {
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setConnectTimeout(connectionTimeout);
-            connection.setReadTimeout(readTimeout);
-            connection.setRequestMethod("GET");
-            // Currently, only accept DLF SimpleAvailability xml format.
-            switch (returnFmt) {
-                default:
-                    connection.setRequestProperty("Accept", "text/xml");
-            }
-        } catch (IOException e) {
-            logger.error("Cannot connect to remote system: " + e.getMessage(), e);
-            if (connection != null) {
-                connection.disconnect();
-            }
-            return null;
-        }
-
-        try {
-            if (connection.getResponseCode() != 200) {
-                logger.warn("Failed to receive correct response. HTTP error code: " + connection.getResponseCode());
-                // throw new RuntimeException("Failed : HTTP error code: "
-                // + conn.getResponseCode());
-                return null;
-            }
-
-            BufferedReader br = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-            StringBuilder sb = new StringBuilder();
-            String line;
-            while ((line = br.readLine()) != null) {
-                sb.append(line);
-            }
-            br.close();
-            output = sb.toString();
-        } catch (IOException e) {
-            logger.warn("Failed when fetching response: " + e.getMessage(), e);
-            return null;
-        } finally {
-            connection.disconnect();
-        }
-
-        return output;
-    }
-
-    /**
-     * Check and convert a string into an xml document.
-     *
-     * @param xmlString
-     * @return XML Document.
-     */
-    private Document convertStringToXml(String xmlString) {
-        DocumentBuilderFactory xmlFactory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder builder;
-        Document document;
-        try {
-            xmlFactory.setNamespaceAware(true);
-            builder = xmlFactory.newDocumentBuilder();
-            document = builder.parse(new InputSource(new StringReader(xmlString)));
-        } catch (ParserConfigurationException pce) {
-            if (debug) {
-                logger.error("Error in Parser Configuration: " + pce.getMessage(), pce);
-            }
-            return null;
-        } catch (SAXException se) {
-            if (debug) {
-                logger.error("Error in SAX: " + se.getMessage(), se);
-            }
-            return null;
-        } catch (IOException ioe) {
-            if (debug) {
-                logger.error("Error In/Out: " + ioe.getMessage(), ioe);
-            }
-            return null;
-        }
-        return document;
+    AvailabilityChecker getChecker() {
+        return checker;
     }
 }
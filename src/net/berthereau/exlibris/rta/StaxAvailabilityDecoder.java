@@ -0,0 +1,406 @@
+package net.berthereau.exlibris.rta;
+
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.diglib.ilsdi.AvailabilityStatus;
+
+import com.exlibris.primo.api.plugins.rta.HoldingStatus;
+
+/**
+ * Extracts the availability of records from a response of ILS-DI in the DLF
+ * SimpleAvailability format in one pass, without building the xml document.
+ *
+ * The results are the same than the XPath process of the plugin for each
+ * supported id type and return type. When the ids are bibs and the response is
+ * by item, the items of a record are skipped as soon as one is available.
+ *
+ * The statuses are matched directly in the characters of the parser, without
+ * creating strings.
+ *
+ * The decoder has no state, so it can be used by multiple threads.
+ *
+ * @see http://diglib.org/ilsdi/1.1
+ */
+class StaxAvailabilityDecoder {
+
+    static final String DLF_NAMESPACE = "http://diglib.org/ilsdi/1.1";
+
+    /**
+     * The identifier and the status of a simple availability, reused for all
+     * the items of a response.
+     */
+    private static class SimpleAvailability {
+        private String identifier;
+        // Null if the status is missing or unknown.
+        private AvailabilityStatus status;
+        // The text of an unknown status, for the messages.
+        private String unknownStatus;
+
+        private void reset() {
+            identifier = "";
+            status = null;
+            unknownStatus = "";
+        }
+    }
+
+    private final XMLInputFactory xmlInputFactory;
+    private final String idType;
+    private final String returnType;
+
+    /**
+     * @param idType
+     *            "bib" or "item".
+     * @param returnType
+     *            "bib" or "item".
+     */
+    StaxAvailabilityDecoder(String idType, String returnType) {
+        this.idType = idType;
+        this.returnType = returnType;
+
+        xmlInputFactory = XMLInputFactory.newInstance();
+        xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        // The responses don't need a dtd and they should not fetch anything.
+        xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    /**
+     * Extract the availability of each record of a response.
+     *
+     * @param reader
+     *            The response of the remote system.
+     * @return Availability of each record (record id -> holding status).
+     * @throws XMLStreamException
+     *             If the response is not a DLF SimpleAvailability collection
+     *             or if it contains an unknown status.
+     */
+    Map<String, HoldingStatus> decode(Reader reader) throws XMLStreamException {
+        if (idType.equals("item") && returnType.equals("bib")) {
+            throw new XMLStreamException("To use [item] as IdType and [bib] as ReturnType is currently unsupported.");
+        }
+
+        XMLStreamReader xml = xmlInputFactory.createXMLStreamReader(reader);
+        try {
+            return decodeCollection(xml);
+        } finally {
+            xml.close();
+        }
+    }
+
+    private Map<String, HoldingStatus> decodeCollection(XMLStreamReader xml) throws XMLStreamException {
+        Map<String, HoldingStatus> results = new HashMap<>();
+        SimpleAvailability availability = new SimpleAvailability();
+
+        xml.nextTag();
+        if (!isDlfElement(xml, "collection")) {
+            throw new XMLStreamException("Response is not a DLF collection.");
+        }
+
+        while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (isDlfElement(xml, "record")) {
+                decodeRecord(xml, results, availability);
+            }
+            else {
+                skipElement(xml);
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Extract the availability of a record or of its items.
+     *
+     * @param xml
+     *            The reader, positioned on the start of the record.
+     * @param results
+     * @param availability
+     *            The holder of the simple availabilities.
+     * @return void
+     * @throws XMLStreamException
+     */
+    private void decodeRecord(XMLStreamReader xml, Map<String, HoldingStatus> results,
+            SimpleAvailability availability) throws XMLStreamException {
+        String recordId = null;
+        boolean hasStatus = false;
+        AvailabilityStatus status = null;
+        String unknownStatus = "";
+        boolean byItem = returnType.equals("item");
+        boolean byBib = idType.equals("bib");
+        int countItems = 0;
+        int countAvailable = 0;
+        int countUnavailable = 0;
+        boolean recordDone = false;
+
+        while (!recordDone && xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (isDlfElement(xml, "bibliographic")) {
+                if (recordId == null) {
+                    recordId = xml.getAttributeValue(null, "id");
+                }
+                skipElement(xml);
+            }
+            else if (!byItem && isDlfElement(xml, "simpleavailability")) {
+                decodeSimpleAvailability(xml, availability);
+                if (!hasStatus) {
+                    hasStatus = true;
+                    status = availability.status;
+                    unknownStatus = availability.unknownStatus;
+                }
+            }
+            else if (byItem && isDlfElement(xml, "items")) {
+                while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    if (!isDlfElement(xml, "item")) {
+                        skipElement(xml);
+                        continue;
+                    }
+
+                    decodeItem(xml, availability);
+                    if (byBib) {
+                        countItems++;
+                        if (availability.status == AvailabilityStatus.AVAILABLE) {
+                            countAvailable++;
+                            // One available item is enough for the record,
+                            // so go to the end of the item, the items and
+                            // the record.
+                            skipElement(xml);
+                            skipElement(xml);
+                            skipElement(xml);
+                            recordDone = true;
+                            break;
+                        }
+                        if (availability.status == AvailabilityStatus.NOT_AVAILABLE) {
+                            countUnavailable++;
+                        }
+                    }
+                    else {
+                        HoldingStatus statusPrimo = AvailabilityILSDI2Primo.convert(availability.status);
+                        if (statusPrimo == null) {
+                            throw new XMLStreamException("Response contains an unknown status for item: "
+                                    + availability.unknownStatus + ".");
+                        }
+                        results.put(availability.identifier, statusPrimo);
+                    }
+                }
+            }
+            else {
+                skipElement(xml);
+            }
+        }
+
+        if (!byBib) {
+            return;
+        }
+
+        if (recordId == null) {
+            recordId = "";
+        }
+
+        if (byItem) {
+            // If one is available, returns available. If all are not
+            // available, returns unavailable; else returns check holdings.
+            if (countAvailable > 0) {
+                results.put(recordId, HoldingStatus.AVAILABLE);
+            }
+            else {
+                results.put(recordId, countUnavailable == countItems
+                        ? HoldingStatus.UNAVAILABLE
+                        : HoldingStatus.CHECKHOLDING);
+            }
+        }
+        else {
+            HoldingStatus statusPrimo = AvailabilityILSDI2Primo.convert(status);
+            if (statusPrimo == null) {
+                throw new XMLStreamException("Response contains an unknown status for bib: " + unknownStatus + ".");
+            }
+            results.put(recordId, statusPrimo);
+        }
+    }
+
+    /**
+     * Get the identifier and the status of an item.
+     *
+     * @param xml
+     *            The reader, positioned on the start of the item. It is
+     *            positioned on its end when the item is fully read, or on the
+     *            end of the simple availability when a status is available.
+     * @param availability
+     *            The holder filled with the normalized identifier and status.
+     * @return void
+     * @throws XMLStreamException
+     */
+    private void decodeItem(XMLStreamReader xml, SimpleAvailability availability) throws XMLStreamException {
+        availability.reset();
+        boolean found = false;
+        while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (!found && isDlfElement(xml, "simpleavailability")) {
+                found = true;
+                decodeSimpleAvailability(xml, availability);
+                // The caller can stop here.
+                if (idType.equals("bib") && availability.status == AvailabilityStatus.AVAILABLE) {
+                    return;
+                }
+            }
+            else {
+                skipElement(xml);
+            }
+        }
+    }
+
+    /**
+     * Get the identifier and the status of a simple availability.
+     *
+     * @param xml
+     *            The reader, positioned on the start of the simple
+     *            availability. It is positioned on its end after the process.
+     * @param availability
+     *            The holder filled with the normalized identifier and status.
+     * @return void
+     * @throws XMLStreamException
+     */
+    private void decodeSimpleAvailability(XMLStreamReader xml, SimpleAvailability availability)
+            throws XMLStreamException {
+        availability.reset();
+        boolean hasIdentifier = false;
+        boolean hasStatus = false;
+        while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            if (!hasIdentifier && isDlfElement(xml, "identifier")) {
+                hasIdentifier = true;
+                availability.identifier = normalizeSpace(readText(xml));
+            }
+            else if (!hasStatus && isDlfElement(xml, "availabilitystatus")) {
+                hasStatus = true;
+                readStatus(xml, availability);
+            }
+            else {
+                skipElement(xml);
+            }
+        }
+    }
+
+    private static boolean isDlfElement(XMLStreamReader xml, String localName) {
+        return localName.equals(xml.getLocalName()) && DLF_NAMESPACE.equals(xml.getNamespaceURI());
+    }
+
+    /**
+     * Get the text of an element, ignoring its sub-elements, if any.
+     */
+    private static String readText(XMLStreamReader xml) throws XMLStreamException {
+        StringBuilder text = null;
+        int depth = 1;
+        while (depth > 0) {
+            switch (xml.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    if (depth == 1) {
+                        if (text == null) {
+                            text = new StringBuilder();
+                        }
+                        text.append(xml.getTextCharacters(), xml.getTextStart(), xml.getTextLength());
+                    }
+                    break;
+                case XMLStreamConstants.END_DOCUMENT:
+                    throw new XMLStreamException("Unexpected end of response.");
+            }
+        }
+        return text == null ? "" : text.toString();
+    }
+
+    /**
+     * Get the status of an element, matched directly in the characters of the
+     * parser, ignoring its sub-elements, if any.
+     *
+     * The text is kept only when it is not a known status, for the messages.
+     */
+    private static void readStatus(XMLStreamReader xml, SimpleAvailability availability)
+            throws XMLStreamException {
+        int state = AvailabilityStatus.MATCH_START;
+        StringBuilder unknown = null;
+        int depth = 1;
+        while (depth > 0) {
+            switch (xml.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    if (depth == 1) {
+                        char[] buffer = xml.getTextCharacters();
+                        int start = xml.getTextStart();
+                        int length = xml.getTextLength();
+                        state = AvailabilityStatus.match(state, buffer, start, length);
+                        if (!AvailabilityStatus.canMatch(state)) {
+                            if (unknown == null) {
+                                unknown = new StringBuilder();
+                            }
+                            unknown.append(buffer, start, length);
+                        }
+                    }
+                    break;
+                case XMLStreamConstants.END_DOCUMENT:
+                    throw new XMLStreamException("Unexpected end of response.");
+            }
+        }
+        availability.status = AvailabilityStatus.getFromMatch(state);
+        availability.unknownStatus = unknown == null ? "" : normalizeSpace(unknown.toString());
+    }
+
+    /**
+     * Go to the end of the current element.
+     */
+    private static void skipElement(XMLStreamReader xml) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            switch (xml.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    depth--;
+                    break;
+                case XMLStreamConstants.END_DOCUMENT:
+                    throw new XMLStreamException("Unexpected end of response.");
+            }
+        }
+    }
+
+    /**
+     * Same as the XPath function normalize-space().
+     */
+    static String normalizeSpace(String string) {
+        StringBuilder builder = new StringBuilder(string.length());
+        boolean space = false;
+        for (int i = 0, length = string.length(); i < length; i++) {
+            char c = string.charAt(i);
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                space = builder.length() > 0;
+            }
+            else {
+                if (space) {
+                    builder.append(' ');
+                    space = false;
+                }
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+}
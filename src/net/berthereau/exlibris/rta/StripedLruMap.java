@@ -0,0 +1,171 @@
+package net.berthereau.exlibris.rta;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded map that removes the least recently used keys, split in segments
+ * that are locked separately, so concurrent views don't wait for each other
+ * on the same lock.
+ *
+ * The key of an entry sets its segment, and each segment keeps an equal part
+ * of the maximum number of entries, so the removed entry is the least recently
+ * used one of its segment, not of the whole map. A small map has only one
+ * segment, so it is a true LRU.
+ *
+ * @param <V>
+ *            The type of the values.
+ */
+final class StripedLruMap<V> {
+
+    private static final int MAX_SEGMENTS = 16;
+
+    // A segment keeps enough entries for the order of use to be meaningful.
+    private static final int MIN_SEGMENT_ENTRIES = 64;
+
+    private final List<LinkedHashMap<String, V>> segments;
+
+    /**
+     * @param maxEntries
+     *            Maximum number of entries of the whole map.
+     */
+    StripedLruMap(int maxEntries) {
+        int count = 1;
+        while (count < MAX_SEGMENTS && count * 2 * MIN_SEGMENT_ENTRIES <= maxEntries) {
+            count *= 2;
+        }
+        final int maxSegmentEntries = (maxEntries + count - 1) / count;
+        segments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            // The access order allows to remove the least recently used keys.
+            segments.add(new LinkedHashMap<String, V>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                    return size() > maxSegmentEntries;
+                }
+            });
+        }
+    }
+
+    /**
+     * Get a value and mark it as recently used.
+     *
+     * @param key
+     * @return The value, or null.
+     */
+    V get(String key) {
+        LinkedHashMap<String, V> segment = segment(key);
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    /**
+     * Store a value, removing the least recently used one of its segment if
+     * needed.
+     *
+     * @param key
+     * @param value
+     * @return void
+     */
+    void put(String key, V value) {
+        LinkedHashMap<String, V> segment = segment(key);
+        synchronized (segment) {
+            segment.put(key, value);
+        }
+    }
+
+    /**
+     * Store a value only if the key is unknown.
+     *
+     * @param key
+     * @param value
+     * @return The current value, or the new one if the key was unknown.
+     */
+    V putIfAbsent(String key, V value) {
+        LinkedHashMap<String, V> segment = segment(key);
+        synchronized (segment) {
+            V current = segment.get(key);
+            if (current != null) {
+                return current;
+            }
+            segment.put(key, value);
+            return value;
+        }
+    }
+
+    /**
+     * @param key
+     * @return void
+     */
+    void remove(String key) {
+        LinkedHashMap<String, V> segment = segment(key);
+        synchronized (segment) {
+            segment.remove(key);
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (LinkedHashMap<String, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Copy the entries, the most recently used first.
+     *
+     * The order is exact inside each segment only: the segments are copied one
+     * after the other and their entries are interleaved, so the first ones are
+     * the most recently used of each segment.
+     *
+     * @return The entries by key.
+     */
+    Map<String, V> copyEntries() {
+        List<List<Map.Entry<String, V>>> copies = new ArrayList<>(segments.size());
+        int maxSize = 0;
+        for (LinkedHashMap<String, V> segment : segments) {
+            List<Map.Entry<String, V>> copy;
+            synchronized (segment) {
+                copy = new ArrayList<Map.Entry<String, V>>(segment.size());
+                for (Map.Entry<String, V> entry : segment.entrySet()) {
+                    copy.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+                }
+            }
+            copies.add(copy);
+            maxSize = Math.max(maxSize, copy.size());
+        }
+
+        Map<String, V> entries = new LinkedHashMap<>();
+        for (int i = 1; i <= maxSize; i++) {
+            for (List<Map.Entry<String, V>> copy : copies) {
+                if (copy.size() >= i) {
+                    Map.Entry<String, V> entry = copy.get(copy.size() - i);
+                    entries.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Get the segment of a key. The high bits of the hash are mixed with the
+     * low ones, as in HashMap.
+     *
+     * @param key
+     * @return LinkedHashMap
+     */
+    private LinkedHashMap<String, V> segment(String key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return segments.get(hash & (segments.size() - 1));
+    }
+}
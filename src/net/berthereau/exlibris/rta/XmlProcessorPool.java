@@ -0,0 +1,146 @@
+package net.berthereau.exlibris.rta;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Provides the xml tools used to process the responses, prepared once by
+ * thread.
+ *
+ * The document builders and the compiled XPath expressions are not
+ * thread-safe, so each thread gets its own ones, without lock. The factories
+ * are looked up only once, during the init of the plugin.
+ */
+class XmlProcessorPool {
+
+    private final DocumentBuilderFactory documentBuilderFactory;
+    private final XPathFactory xpathFactory;
+
+    private final ThreadLocal<XmlProcessor> processors = new ThreadLocal<XmlProcessor>() {
+        @Override
+        protected XmlProcessor initialValue() {
+            try {
+                return newProcessor();
+            } catch (ParserConfigurationException | XPathExpressionException e) {
+                // Not possible, because the same processor is checked during
+                // the creation of the pool.
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /**
+     * The document builder and the XPath expressions of a thread.
+     */
+    static class XmlProcessor {
+        private final DocumentBuilder builder;
+
+        // Currently, only accept DLF Simple Availability xml format.
+        final XPathExpression exprRecordsList;
+        final XPathExpression exprRecordId;
+        final XPathExpression exprAvailability;
+        final XPathExpression exprCountItems;
+        final XPathExpression exprCountItemsAvailable;
+        final XPathExpression exprCountItemsUnavailable;
+        final XPathExpression exprItemsList;
+        final XPathExpression exprItemId;
+        // final XPathExpression exprLocation;
+
+        private XmlProcessor(DocumentBuilder builder, XPath xpath) throws XPathExpressionException {
+            this.builder = builder;
+            exprRecordsList = xpath.compile("/dlf:collection/dlf:record");
+            exprRecordId = xpath.compile("dlf:bibliographic/@id");
+            exprAvailability = xpath.compile("normalize-space(dlf:simpleavailability/dlf:availabilitystatus)");
+            exprCountItems = xpath.compile("count(dlf:items/dlf:item)");
+            exprCountItemsAvailable =
+                    xpath.compile("count(dlf:items/dlf:item/dlf:simpleavailability/dlf:availabilitystatus[normalize-space(text())='available'])");
+            exprCountItemsUnavailable =
+                    xpath.compile("count(dlf:items/dlf:item/dlf:simpleavailability/dlf:availabilitystatus[normalize-space(text())='not available'])");
+            exprItemsList = xpath.compile("dlf:items/dlf:item");
+            exprItemId = xpath.compile("normalize-space(dlf:simpleavailability/dlf:identifier)");
+            // exprLocation = xpath.compile("normalize-space(dlf:simpleavailability/dlf:location)");
+        }
+
+        /**
+         * Check and convert a string into an xml document.
+         *
+         * @param xmlString
+         * @return XML Document.
+         * @throws SAXException
+         * @throws IOException
+         */
+        Document parse(String xmlString) throws SAXException, IOException {
+            return parse(new StringReader(xmlString));
+        }
+
+        /**
+         * Check and convert a stream of characters into an xml document.
+         *
+         * @param reader
+         * @return XML Document.
+         * @throws SAXException
+         * @throws IOException
+         */
+        Document parse(Reader reader) throws SAXException, IOException {
+            try {
+                return builder.parse(new InputSource(reader));
+            } finally {
+                builder.reset();
+            }
+        }
+    }
+
+    /**
+     * Prepare the factories and check that the xml tools can be created.
+     *
+     * @throws ParserConfigurationException
+     * @throws XPathExpressionException
+     */
+    XmlProcessorPool() throws ParserConfigurationException, XPathExpressionException {
+        documentBuilderFactory = DocumentBuilderFactory.newInstance();
+        documentBuilderFactory.setNamespaceAware(true);
+        xpathFactory = XPathFactory.newInstance();
+        processors.set(newProcessor());
+    }
+
+    /**
+     * Get the xml tools of the current thread.
+     *
+     * @return XmlProcessor
+     */
+    XmlProcessor get() {
+        return processors.get();
+    }
+
+    private XmlProcessor newProcessor() throws ParserConfigurationException, XPathExpressionException {
+        DocumentBuilder builder;
+        XPath xpath;
+        // The factories are not thread-safe, but they are used only once by
+        // thread.
+        synchronized (this) {
+            builder = documentBuilderFactory.newDocumentBuilder();
+            xpath = xpathFactory.newXPath();
+        }
+
+        SimpleNamespaceContext ctx = new SimpleNamespaceContext();
+        ctx.addNamespace("dlf", "http://diglib.org/ilsdi/1.1");
+        // ctx.addNamespace("ncip", "http://ncip.envisionware.com/documentation/ncip_v1_0.xsd");
+        // ctx.addNamespace("holdings", "http://www.loc.gov/standards/iso20775/");
+        xpath.setNamespaceContext(ctx);
+
+        return new XmlProcessor(builder, xpath);
+    }
+}
@@ -0,0 +1,444 @@
+package net.berthereau.exlibris.rta.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.diglib.ilsdi.AvailabilityStatus;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded ILS-DI server that responds to the service "GetAvailability" for
+ * any record, so the tests don't need a remote system. The service
+ * "HarvestHoldingsRecords" returns the records whose status is set, in the
+ * same format.
+ *
+ * The responses are DLF SimpleAvailability. The status of each record can be
+ * set, and the server can simulate slow and faulty remote systems: latency,
+ * errors, bodies sent slowly and connections closed without response. The
+ * responses can be compressed when the client accepts it. The settings can be
+ * changed while the server is running.
+ *
+ * The responses recorded from a real remote system can be set too, so they
+ * are returned as is for the same query.
+ *
+ * This class is made for testing purpose only.
+ */
+public class IlsdiStubServer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    private final Map<String, AvailabilityStatus> statuses = new ConcurrentHashMap<>();
+    private final Map<String, String> recordedResponses = new ConcurrentHashMap<>();
+    private final Set<String> missingRecords = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile AvailabilityStatus defaultStatus = AvailabilityStatus.AVAILABLE;
+    private volatile int itemsByRecord = 1;
+    private volatile long latencyMedian = 0;
+    private volatile long latencyP99 = 0;
+    private volatile int errorRate = 0;
+    private volatile int slowDripRate = 0;
+    private volatile long slowDripInterval = 0;
+    private volatile int resetRate = 0;
+    private volatile boolean gzip = false;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong slowDrips = new AtomicLong();
+    private final AtomicLong resets = new AtomicLong();
+    private final AtomicLong gzipped = new AtomicLong();
+    private final AtomicLong harvests = new AtomicLong();
+    private volatile String lastHarvestFrom;
+
+    /**
+     * Start the server on a free port of the local host.
+     *
+     * @return void
+     * @throws IOException
+     */
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/ilsdi/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    respond(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        // Each request has its own thread, so the latency of a request
+        // doesn't delay the other ones.
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Stop the server and its threads.
+     *
+     * @return void
+     */
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Get the rta base url of the server.
+     *
+     * @return String
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/ilsdi/";
+    }
+
+    /**
+     * Set the status of a record (or of an item when the id type is "item").
+     *
+     * @param recordId
+     * @param status
+     * @return IlsdiStubServer
+     */
+    public IlsdiStubServer setStatus(String recordId, AvailabilityStatus status) {
+        statuses.put(recordId, status);
+        return this;
+    }
+
+    /**
+     * Set a record (or an item when the id type is "item") that is absent from
+     * the responses, as a withdrawn one.
+     *
+     * @param recordId
+     * @return IlsdiStubServer
+     */
+    public IlsdiStubServer setMissing(String recordId) {
+        missingRecords.add(recordId);
+        return this;
+    }
+
+    /**
+     * Set the response recorded for a query, returned instead of the built
+     * one.
+     *
+     * @param rawQuery
+     *            The query of the url, without "?" and not decoded.
+     * @param body
+     * @return IlsdiStubServer
+     */
+    public IlsdiStubServer setRecordedResponse(String rawQuery, String body) {
+        recordedResponses.put(rawQuery, body);
+        return this;
+    }
+
+    /**
+     * Set the status of the records without specific status.
+     *
+     * @param status
+     * @return IlsdiStubServer
+     */
+    public IlsdiStubServer setDefaultStatus(AvailabilityStatus status) {
+        defaultStatus = status;
+        return this;
+    }
+
+    /**
+     * Set the number of items by record in the responses at item level.
+     *
+     * @param itemsByRecord
+     * @return IlsdiStubServer
+     */
+    public IlsdiStubServer setItemsByRecord(int itemsByRecord) {
+        this.itemsByRecord = Math.max(1, itemsByRecord);
+        return this;
+    }
+
+    /**
+     * Set the latency before the response, as a log-normal distribution, that
+     * is the usual shape of the response times of a remote system.
+     *
+     * @param median
+     *            In milliseconds. 0 means no latency.
+     * @param p99
+     *            The 99th percentile, in milliseconds. If it is not greater
+     *            than the median, the latency is constant.
+     * @return IlsdiStubServer
+     */
+    public IlsdiStubServer setLatency(long median, long p99) {
+        latencyMedian = median;
+        latencyP99 = p99;
+        return this;
+    }
+
+    /**
+     * Set the percentage of requests that return a http error 500.
+     *
+     * @param errorRate
+     * @return IlsdiStubServer
+     */
+    public IlsdiStubServer setErrorRate(int errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * Set the percentage of responses whose body is sent slowly, by small
+     * chunks.
+     *
+     * @param slowDripRate
+     * @param interval
+     *            Time between two chunks, in milliseconds.
+     * @return IlsdiStubServer
+     */
+    public IlsdiStubServer setSlowDrip(int slowDripRate, long interval) {
+        this.slowDripRate = slowDripRate;
+        this.slowDripInterval = interval;
+        return this;
+    }
+
+    /**
+     * Set the percentage of requests whose connection is closed without
+     * response.
+     *
+     * @param resetRate
+     * @return IlsdiStubServer
+     */
+    public IlsdiStubServer setResetRate(int resetRate) {
+        this.resetRate = resetRate;
+        return this;
+    }
+
+    /**
+     * Compress the responses when the request accepts gzip.
+     *
+     * @param gzip
+     * @return IlsdiStubServer
+     */
+    public IlsdiStubServer setGzip(boolean gzip) {
+        this.gzip = gzip;
+        return this;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getSlowDrips() {
+        return slowDrips.get();
+    }
+
+    public long getResets() {
+        return resets.get();
+    }
+
+    public long getGzipped() {
+        return gzipped.get();
+    }
+
+    public long getHarvests() {
+        return harvests.get();
+    }
+
+    /**
+     * Get the param "from" of the last harvest.
+     *
+     * @return The date, or null if the last harvest was a full one.
+     */
+    public String getLastHarvestFrom() {
+        return lastHarvestFrom;
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        if (!sleep(latency(random))) {
+            return;
+        }
+
+        if (random.nextInt(100) < resetRate) {
+            // The exchange is closed without headers, so the connection is
+            // closed.
+            resets.incrementAndGet();
+            return;
+        }
+
+        if (random.nextInt(100) < errorRate) {
+            errors.incrementAndGet();
+            exchange.sendResponseHeaders(500, -1);
+            return;
+        }
+
+        String rawQuery = exchange.getRequestURI().getRawQuery();
+        // A recorded response is returned as is.
+        String response = rawQuery == null ? null : recordedResponses.get(rawQuery);
+        if (response == null) {
+            Map<String, String> query = parseQuery(rawQuery);
+            String[] ids;
+            if ("HarvestHoldingsRecords".equals(query.get("service"))) {
+                harvests.incrementAndGet();
+                lastHarvestFrom = query.get("from");
+                ids = statuses.keySet().toArray(new String[0]);
+            }
+            else if ("GetAvailability".equals(query.get("service")) && query.get("id") != null) {
+                ids = query.get("id").split("[+ ]");
+            }
+            else {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            response = buildResponse(ids,
+                    "item".equals(query.get("id_type")),
+                    "item".equals(query.get("return_type")));
+        }
+        byte[] body = response.getBytes(UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=UTF-8");
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (gzip && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            gzipped.incrementAndGet();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+                out.write(body);
+            }
+            body = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        if (random.nextInt(100) >= slowDripRate) {
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            return;
+        }
+
+        slowDrips.incrementAndGet();
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        for (int offset = 0; offset < body.length; offset += 64) {
+            out.write(body, offset, Math.min(64, body.length - offset));
+            out.flush();
+            if (!sleep(slowDripInterval)) {
+                return;
+            }
+        }
+    }
+
+    private long latency(ThreadLocalRandom random) {
+        if (latencyMedian <= 0) {
+            return 0;
+        }
+        if (latencyP99 <= latencyMedian) {
+            return latencyMedian;
+        }
+        // 2.326 is the z-score of the 99th percentile.
+        double mu = Math.log(latencyMedian);
+        double sigma = (Math.log(latencyP99) - mu) / 2.326;
+        return (long) Math.exp(mu + sigma * random.nextGaussian());
+    }
+
+    private boolean sleep(long duration) {
+        if (duration <= 0) {
+            return true;
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep(duration);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String param : rawQuery.split("&")) {
+            int pos = param.indexOf('=');
+            if (pos > 0) {
+                // The ids are separated by "+", so they are not decoded.
+                String name = param.substring(0, pos);
+                String value = param.substring(pos + 1);
+                query.put(name, name.equals("id") ? value : URLDecoder.decode(value, "UTF-8"));
+            }
+        }
+        return query;
+    }
+
+    private String buildResponse(String[] ids, boolean byItem, boolean returnItems) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n")
+                .append("<dlf:collection xmlns:dlf=\"http://diglib.org/ilsdi/1.1\">\n");
+        for (String id : ids) {
+            if (id.isEmpty() || missingRecords.contains(id)) {
+                continue;
+            }
+            AvailabilityStatus status = statuses.get(id);
+            if (status == null) {
+                status = defaultStatus;
+            }
+            builder.append("  <dlf:record>\n")
+                    .append("    <dlf:bibliographic id=\"").append(id).append("\" />\n");
+            if (returnItems) {
+                builder.append("    <dlf:items>\n");
+                // When the ids are items, each record is the requested item.
+                int items = byItem ? 1 : itemsByRecord;
+                for (int j = 1; j <= items; j++) {
+                    String itemId = byItem ? id : id + "-" + j;
+                    builder.append("      <dlf:item id=\"").append(itemId).append("\">\n");
+                    appendSimpleAvailability(builder, itemId, status, "        ");
+                    builder.append("      </dlf:item>\n");
+                }
+                builder.append("    </dlf:items>\n");
+            }
+            else {
+                appendSimpleAvailability(builder, id, status, "    ");
+            }
+            builder.append("  </dlf:record>\n");
+        }
+        builder.append("</dlf:collection>\n");
+        return builder.toString();
+    }
+
+    private void appendSimpleAvailability(StringBuilder builder, String id, AvailabilityStatus status,
+            String indent) {
+        builder.append(indent).append("<dlf:simpleavailability>\n")
+                .append(indent).append("  <dlf:identifier>").append(id).append("</dlf:identifier>\n")
+                .append(indent).append("  <dlf:availabilitystatus>").append(status)
+                .append("</dlf:availabilitystatus>\n")
+                .append(indent).append("  <dlf:location>Library</dlf:location>\n")
+                .append(indent).append("</dlf:simpleavailability>\n");
+    }
+}
@@ -1,17 +1,36 @@
 package net.berthereau.exlibris.rta.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import net.berthereau.exlibris.rta.AvailabilityFuture;
+import net.berthereau.exlibris.rta.AvailabilityILSDI2Primo;
 import net.berthereau.exlibris.rta.StandardFlossPhysicalRTAPlugin;
 
+import org.diglib.ilsdi.AvailabilityStatus;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -36,6 +55,9 @@ public class StandardFlossPhysicalRTAPluginTest {
     private MappingTablesFetcherTestUse mtFetcher = new MappingTablesFetcherTestUse();
     private Map<String, Object> params = new Hashtable<>();
 
+    // Embedded remote system, started by the tests that need it.
+    private IlsdiStubServer stubServer;
+
     @Before
     public void setUp() throws Exception {
         // TODO Load this config from a file.
@@ -71,6 +93,13 @@ public class StandardFlossPhysicalRTAPluginTest {
         params.put("Debug", "true");
     }
 
+    @After
+    public void tearDown() {
+        if (stubServer != null) {
+            stubServer.stop();
+        }
+    }
+
     @Test
     public void init() {
         // This allows to check init (this is reset just after the test).
@@ -198,6 +227,1031 @@ public class StandardFlossPhysicalRTAPluginTest {
         assertEquals(HoldingStatus.CHECKHOLDING, rtaRequest_99999.getLibraries().get(0).getHoldingStatus());
     }
 
+    @Test
+    public void updateAvailabilityParallel() {
+        params.put("IdType", "item");
+        params.put("ReturnType", "item");
+        params.put("Parallel", "true");
+        params.put("ParallelThreads", "2");
+        rta.init(logger, mtFetcher, params);
+
+        // Two different rta base urls, so two institutions.
+        List<RTARequest> rtaRequests = new ArrayList<>();
+        RTARequest rtaRequest = new RTARequest();
+        prepareRtaRequest(rtaRequest, "S01149512N", "item");
+        rtaRequests.add(rtaRequest);
+        RTARequest rtaRequest_1 = new RTARequest();
+        prepareRtaRequest(rtaRequest_1, "1", "item");
+        rtaRequests.add(rtaRequest_1);
+        RTARequest rtaRequest_99999 = new RTARequest();
+        prepareRtaRequest(rtaRequest_99999, "99999", "item");
+        rtaRequests.add(rtaRequest_99999);
+
+        rta.updateAvailability(rtaRequests);
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequest.getLibraries().get(0).getHoldingStatus());
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequest_1.getLibraries().get(0).getHoldingStatus());
+        assertEquals(HoldingStatus.CHECKHOLDING, rtaRequest_99999.getLibraries().get(0).getHoldingStatus());
+    }
+
+    @Test
+    public void updateAvailabilityCache() {
+        params.put("IdType", "item");
+        params.put("ReturnType", "item");
+        params.put("CacheTtl", "60");
+        rta.init(logger, mtFetcher, params);
+
+        // This allows to count the requests sent to the remote system.
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+
+        List<RTARequest> rtaRequests = new ArrayList<>();
+        RTARequest rtaRequest_1 = new RTARequest();
+        prepareRtaRequest(rtaRequest_1, "1", "item");
+        rtaRequests.add(rtaRequest_1);
+        rta.updateAvailability(rtaRequests);
+
+        rtaRequests = new ArrayList<>();
+        RTARequest rtaRequest_1bis = new RTARequest();
+        prepareRtaRequest(rtaRequest_1bis, "1", "item");
+        rtaRequests.add(rtaRequest_1bis);
+        rta.updateAvailability(rtaRequests);
+
+        System.setOut(stdout);
+        System.out.print(outContent);
+
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequest_1.getLibraries().get(0).getHoldingStatus());
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequest_1bis.getLibraries().get(0).getHoldingStatus());
+        assertEquals(1, outContent.toString().split("Logger Info: Request for ", -1).length - 1);
+    }
+
+    @Test
+    public void updateAvailabilityCacheStale() throws Exception {
+        stubServer = new IlsdiStubServer();
+        stubServer.start();
+
+        params.put("IdType", "item");
+        params.put("ReturnType", "item");
+        params.put("CacheTtl", "1");
+        params.put("CacheStaleTtl", "60");
+        rta.init(logger, mtFetcher, params);
+
+        RTARequest rtaRequest = new RTARequest();
+        prepareStubRtaRequest(rtaRequest, "1");
+        rta.updateAvailability(Collections.singletonList(rtaRequest));
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequest.getLibraries().get(0).getHoldingStatus());
+        assertEquals(1, stubServer.getRequests());
+
+        // The stale status is used immediately and refreshed in the background.
+        Thread.sleep(1100);
+        stubServer.setStatus("1", AvailabilityStatus.NOT_AVAILABLE);
+        rtaRequest = new RTARequest();
+        prepareStubRtaRequest(rtaRequest, "1");
+        rta.updateAvailability(Collections.singletonList(rtaRequest));
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequest.getLibraries().get(0).getHoldingStatus());
+
+        for (int i = 0; i < 100 && stubServer.getRequests() < 2; i++) {
+            Thread.sleep(20);
+        }
+        Thread.sleep(200);
+        assertEquals(2, stubServer.getRequests());
+
+        rtaRequest = new RTARequest();
+        prepareStubRtaRequest(rtaRequest, "1");
+        rta.updateAvailability(Collections.singletonList(rtaRequest));
+        assertEquals(HoldingStatus.UNAVAILABLE, rtaRequest.getLibraries().get(0).getHoldingStatus());
+        assertEquals(2, stubServer.getRequests());
+    }
+
+    @Test
+    public void updateAvailabilityCacheSnapshot() throws Exception {
+        stubServer = new IlsdiStubServer();
+        stubServer.setStatus("1", AvailabilityStatus.NOT_AVAILABLE);
+        stubServer.start();
+
+        Path dir = Files.createTempDirectory("rta");
+        Path file = dir.resolve("cache.bin");
+        params.put("IdType", "item");
+        params.put("ReturnType", "item");
+        params.put("CacheTtl", "60");
+        params.put("CacheSnapshotFile", file.toString());
+        rta.init(logger, mtFetcher, params);
+
+        RTARequest rtaRequest = new RTARequest();
+        prepareStubRtaRequest(rtaRequest, "1");
+        rta.updateAvailability(Collections.singletonList(rtaRequest));
+        assertEquals(1, stubServer.getRequests());
+
+        // The cache is saved when the plugin is initialized again, then it is
+        // used by another instance.
+        rta.init(logger, mtFetcher, params);
+        assertTrue(Files.size(file) > 0);
+        StandardFlossPhysicalRTAPlugin restarted = new StandardFlossPhysicalRTAPlugin();
+        restarted.init(logger, mtFetcher, params);
+        rtaRequest = new RTARequest();
+        prepareStubRtaRequest(rtaRequest, "1");
+        restarted.updateAvailability(Collections.singletonList(rtaRequest));
+        assertEquals(HoldingStatus.UNAVAILABLE, rtaRequest.getLibraries().get(0).getHoldingStatus());
+        assertEquals(1, stubServer.getRequests());
+
+        // Each instance keeps its own metrics.
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(server.isRegistered(getMetricsName(rta, "Metrics")));
+        assertTrue(server.isRegistered(getMetricsName(restarted, "Metrics")));
+        assertEquals(1L, server.getAttribute(getMetricsName(restarted, "Metrics"), "CacheSnapshotHits"));
+
+        params.remove("CacheSnapshotFile");
+        rta.init(logger, mtFetcher, params);
+        restarted.init(logger, mtFetcher, params);
+        Files.delete(file);
+        Files.delete(dir);
+    }
+
+    @Test
+    public void updateAvailabilityChunks() {
+        params.put("IdType", "item");
+        params.put("ReturnType", "item");
+        params.put("Parallel", "true");
+        params.put("MaxRecordsByRequest", "1");
+        rta.init(logger, mtFetcher, params);
+
+        List<RTARequest> rtaRequests = new ArrayList<>();
+        RTARequest rtaRequest_1 = new RTARequest();
+        prepareRtaRequest(rtaRequest_1, "1", "item");
+        rtaRequests.add(rtaRequest_1);
+        RTARequest rtaRequest_2 = new RTARequest();
+        prepareRtaRequest(rtaRequest_2, "2", "item");
+        rtaRequests.add(rtaRequest_2);
+        RTARequest rtaRequest_99999 = new RTARequest();
+        prepareRtaRequest(rtaRequest_99999, "99999", "item");
+        rtaRequests.add(rtaRequest_99999);
+
+        rta.updateAvailability(rtaRequests);
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequest_1.getLibraries().get(0).getHoldingStatus());
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequest_2.getLibraries().get(0).getHoldingStatus());
+        assertEquals(HoldingStatus.CHECKHOLDING, rtaRequest_99999.getLibraries().get(0).getHoldingStatus());
+    }
+
+    @Test
+    public void updateAvailabilityCoalesced() throws Exception {
+        stubServer = new IlsdiStubServer();
+        stubServer.setLatency(300, 300);
+        stubServer.start();
+
+        params.put("IdType", "item");
+        params.put("ReturnType", "item");
+        params.put("CoalesceRequests", "true");
+        rta.init(logger, mtFetcher, params);
+
+        // Concurrent checks of the same record, while the first request is
+        // in progress.
+        final List<RTARequest> rtaRequests = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final RTARequest rtaRequest = new RTARequest();
+            prepareStubRtaRequest(rtaRequest, "1");
+            rtaRequests.add(rtaRequest);
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    List<RTARequest> requests = new ArrayList<>();
+                    requests.add(rtaRequest);
+                    rta.updateAvailability(requests);
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (RTARequest rtaRequest : rtaRequests) {
+            assertEquals(HoldingStatus.AVAILABLE, rtaRequest.getLibraries().get(0).getHoldingStatus());
+        }
+        // Only one request is sent to the remote system.
+        assertEquals(1, stubServer.getRequests());
+    }
+
+    @Test
+    public void updateAvailabilityCircuitBreaker() {
+        params.put("IdType", "item");
+        params.put("ReturnType", "item");
+        params.put("CircuitBreakerFailureRate", "50");
+        params.put("CircuitBreakerWindow", "2");
+        rta.init(logger, mtFetcher, params);
+
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream outContent = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(outContent));
+
+        // The remote system is down, so it is not requested after two checks.
+        RTARequest rtaRequest = new RTARequest();
+        for (int i = 0; i < 3; i++) {
+            List<RTARequest> rtaRequests = new ArrayList<>();
+            rtaRequest = new RTARequest();
+            prepareRtaRequest(rtaRequest, "1", "item");
+            rtaRequest.getLibraries().get(0).setRtaBaseURL("http://localhost:1/ilsdi/");
+            rtaRequests.add(rtaRequest);
+            rta.updateAvailability(rtaRequests);
+        }
+
+        System.setOut(stdout);
+        System.out.print(outContent);
+
+        assertEquals(HoldingStatus.CHECKHOLDING, rtaRequest.getLibraries().get(0).getHoldingStatus());
+        assertEquals(true, outContent.toString().contains("Logger warn: Circuit breaker for [http://localhost:1/ilsdi/] is open"));
+        assertEquals(true, outContent.toString().contains("Logger Info: Circuit breaker for [http://localhost:1/ilsdi/] is open: records [1] are not requested."));
+    }
+
+    @Test
+    public void updateAvailabilityHedged() throws Exception {
+        stubServer = new IlsdiStubServer();
+        stubServer.setLatency(20, 20);
+        stubServer.start();
+
+        params.put("IdType", "item");
+        params.put("ReturnType", "item");
+        params.put("HedgePercentile", "50");
+        params.put("HedgeMaxRate", "100");
+        rta.init(logger, mtFetcher, params);
+
+        // Second requests are sent only when enough response times are known.
+        for (int i = 0; i < 20; i++) {
+            RTARequest rtaRequest = new RTARequest();
+            prepareStubRtaRequest(rtaRequest, "1");
+            rta.updateAvailability(Collections.singletonList(rtaRequest));
+            assertEquals(HoldingStatus.AVAILABLE, rtaRequest.getLibraries().get(0).getHoldingStatus());
+        }
+        assertEquals(20, stubServer.getRequests());
+
+        // A request slower than usual is sent a second time.
+        stubServer.setLatency(300, 300);
+        RTARequest rtaRequest = new RTARequest();
+        prepareStubRtaRequest(rtaRequest, "1");
+        rta.updateAvailability(Collections.singletonList(rtaRequest));
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequest.getLibraries().get(0).getHoldingStatus());
+        assertEquals(22, stubServer.getRequests());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(1.0 / 21, (Double) server.getAttribute(getMetricsName(rta, "Metrics"), "HedgedRatio"), 0.001);
+    }
+
+    @Test
+    public void updateAvailabilityKeepAlive() throws Exception {
+        stubServer = new IlsdiStubServer();
+        stubServer.setStatus("2", AvailabilityStatus.NOT_AVAILABLE);
+        stubServer.start();
+
+        params.put("IdType", "item");
+        params.put("ReturnType", "item");
+        params.put("KeepAlive", "true");
+        rta.init(logger, mtFetcher, params);
+
+        // The connection of the first request is reused by the next ones.
+        for (String recordId : new String[] { "1", "2", "3" }) {
+            RTARequest rtaRequest = new RTARequest();
+            prepareStubRtaRequest(rtaRequest, recordId);
+            rta.updateAvailability(Collections.singletonList(rtaRequest));
+            assertEquals(recordId.equals("2") ? HoldingStatus.UNAVAILABLE : HoldingStatus.AVAILABLE,
+                    rtaRequest.getLibraries().get(0).getHoldingStatus());
+        }
+        assertEquals(3, stubServer.getRequests());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(2.0 / 3, (Double) server.getAttribute(getMetricsName(rta, "Metrics"), "ConnectionReuseRatio"),
+                0.01);
+    }
+
+    @Test
+    public void updateAvailabilityStreaming() throws Exception {
+        stubServer = new IlsdiStubServer();
+        stubServer.setStatus("2", AvailabilityStatus.NOT_AVAILABLE).setGzip(true);
+        stubServer.start();
+
+        params.put("IdType", "item");
+        params.put("ReturnType", "item");
+        params.put("Streaming", "true");
+        rta.init(logger, mtFetcher, params);
+
+        // The compressed responses are decoded while they are received.
+        List<RTARequest> rtaRequests = new ArrayList<>();
+        for (String recordId : new String[] { "1", "2" }) {
+            RTARequest rtaRequest = new RTARequest();
+            prepareStubRtaRequest(rtaRequest, recordId);
+            rtaRequests.add(rtaRequest);
+        }
+        rta.updateAvailability(rtaRequests);
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequests.get(0).getLibraries().get(0).getHoldingStatus());
+        assertEquals(HoldingStatus.UNAVAILABLE, rtaRequests.get(1).getLibraries().get(0).getHoldingStatus());
+        assertEquals(1, stubServer.getGzipped());
+
+        // The same with the kept alive connections.
+        params.put("KeepAlive", "true");
+        rta.init(logger, mtFetcher, params);
+        RTARequest rtaRequest = new RTARequest();
+        prepareStubRtaRequest(rtaRequest, "2");
+        rta.updateAvailability(Collections.singletonList(rtaRequest));
+        assertEquals(HoldingStatus.UNAVAILABLE, rtaRequest.getLibraries().get(0).getHoldingStatus());
+        assertEquals(2, stubServer.getGzipped());
+    }
+
+    @Test
+    public void updateAvailabilityStubServer() throws IOException {
+        stubServer = new IlsdiStubServer();
+        stubServer.setStatus("1", AvailabilityStatus.AVAILABLE)
+                .setStatus("2", AvailabilityStatus.NOT_AVAILABLE)
+                .setStatus("3", AvailabilityStatus.POSSIBLY_AVAILABLE)
+                .setItemsByRecord(3);
+        stubServer.start();
+
+        params.put("IdType", "bib");
+        params.put("ReturnType", "item");
+        rta.init(logger, mtFetcher, params);
+
+        List<RTARequest> rtaRequests = new ArrayList<>();
+        for (String recordId : new String[] { "1", "2", "3" }) {
+            RTARequest rtaRequest = new RTARequest();
+            prepareStubRtaRequest(rtaRequest, recordId);
+            rtaRequests.add(rtaRequest);
+        }
+
+        rta.updateAvailability(rtaRequests);
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequests.get(0).getLibraries().get(0).getHoldingStatus());
+        assertEquals(HoldingStatus.UNAVAILABLE, rtaRequests.get(1).getLibraries().get(0).getHoldingStatus());
+        assertEquals(HoldingStatus.CHECKHOLDING, rtaRequests.get(2).getLibraries().get(0).getHoldingStatus());
+        assertEquals(1, stubServer.getRequests());
+    }
+
+    @Test
+    public void updateAvailabilityStubServerFaults() throws IOException {
+        stubServer = new IlsdiStubServer();
+        stubServer.setDefaultStatus(AvailabilityStatus.AVAILABLE);
+        stubServer.start();
+
+        params.put("IdType", "item");
+        params.put("ReturnType", "item");
+        rta.init(logger, mtFetcher, params);
+
+        // The response is sent slowly, but before the read timeout.
+        stubServer.setSlowDrip(100, 5);
+        RTARequest rtaRequest = new RTARequest();
+        prepareStubRtaRequest(rtaRequest, "1");
+        rta.updateAvailability(Collections.singletonList(rtaRequest));
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequest.getLibraries().get(0).getHoldingStatus());
+
+        // The status is not changed when the remote system fails.
+        stubServer.setSlowDrip(0, 0).setErrorRate(100);
+        rtaRequest = new RTARequest();
+        prepareStubRtaRequest(rtaRequest, "1");
+        rta.updateAvailability(Collections.singletonList(rtaRequest));
+        assertEquals(HoldingStatus.CHECKHOLDING, rtaRequest.getLibraries().get(0).getHoldingStatus());
+
+        stubServer.setErrorRate(0).setResetRate(100);
+        rtaRequest = new RTARequest();
+        prepareStubRtaRequest(rtaRequest, "1");
+        rta.updateAvailability(Collections.singletonList(rtaRequest));
+        assertEquals(HoldingStatus.CHECKHOLDING, rtaRequest.getLibraries().get(0).getHoldingStatus());
+
+        stubServer.setResetRate(0).setLatency(1000, 1000);
+        rtaRequest = new RTARequest();
+        prepareStubRtaRequest(rtaRequest, "1");
+        rta.updateAvailability(Collections.singletonList(rtaRequest));
+        assertEquals(HoldingStatus.CHECKHOLDING, rtaRequest.getLibraries().get(0).getHoldingStatus());
+
+        assertEquals(1, stubServer.getSlowDrips());
+        assertEquals(1, stubServer.getErrors());
+        assertEquals(1, stubServer.getResets());
+    }
+
+    @Test
+    public void updateAvailabilityAsync() throws Exception {
+        stubServer = new IlsdiStubServer();
+        stubServer.setStatus("2", AvailabilityStatus.NOT_AVAILABLE).setLatency(300, 300);
+        stubServer.start();
+
+        params.put("IdType", "item");
+        params.put("ReturnType", "item");
+        params.put("MaxRecordsByRequest", "1");
+        rta.init(logger, mtFetcher, params);
+
+        // Without Parallel, the requests are done by a thread of the plugin.
+        List<RTARequest> rtaRequests = new ArrayList<>();
+        for (String recordId : new String[] { "1", "2", "3", "4" }) {
+            RTARequest rtaRequest = new RTARequest();
+            prepareStubRtaRequest(rtaRequest, recordId);
+            rtaRequests.add(rtaRequest);
+        }
+        long start = System.currentTimeMillis();
+        AvailabilityFuture<List<RTARequest>> update = rta.updateAvailabilityAsync(rtaRequests);
+        assertTrue(System.currentTimeMillis() - start < 200);
+        update.get(3000, TimeUnit.MILLISECONDS);
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequests.get(0).getLibraries().get(0).getHoldingStatus());
+        assertEquals(HoldingStatus.UNAVAILABLE, rtaRequests.get(1).getLibraries().get(0).getHoldingStatus());
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequests.get(2).getLibraries().get(0).getHoldingStatus());
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequests.get(3).getLibraries().get(0).getHoldingStatus());
+
+        // Without Parallel, the split requests are sent at the same time too.
+        rtaRequests = new ArrayList<>();
+        for (String recordId : new String[] { "1", "2", "3", "4" }) {
+            RTARequest rtaRequest = new RTARequest();
+            prepareStubRtaRequest(rtaRequest, recordId);
+            rtaRequests.add(rtaRequest);
+        }
+        start = System.currentTimeMillis();
+        rta.updateAvailability(rtaRequests);
+        assertTrue(System.currentTimeMillis() - start < 900);
+        assertEquals(HoldingStatus.UNAVAILABLE, rtaRequests.get(1).getLibraries().get(0).getHoldingStatus());
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequests.get(3).getLibraries().get(0).getHoldingStatus());
+
+        // With one thread, the queued requests last more than one request,
+        // but they are waited for.
+        params.put("Parallel", "true");
+        params.put("ParallelThreads", "1");
+        rta.init(logger, mtFetcher, params);
+        rtaRequests = new ArrayList<>();
+        for (String recordId : new String[] { "1", "2", "3", "4" }) {
+            RTARequest rtaRequest = new RTARequest();
+            prepareStubRtaRequest(rtaRequest, recordId);
+            rtaRequests.add(rtaRequest);
+        }
+        rta.updateAvailability(rtaRequests);
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequests.get(0).getLibraries().get(0).getHoldingStatus());
+        assertEquals(HoldingStatus.UNAVAILABLE, rtaRequests.get(1).getLibraries().get(0).getHoldingStatus());
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequests.get(2).getLibraries().get(0).getHoldingStatus());
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequests.get(3).getLibraries().get(0).getHoldingStatus());
+    }
+
+    @Test
+    public void updateAvailabilityAsyncNonBlocking() throws Exception {
+        stubServer = new IlsdiStubServer();
+        stubServer.setStatus("2", AvailabilityStatus.NOT_AVAILABLE).setLatency(100, 100);
+        stubServer.start();
+
+        // Many requests are in progress at the same time with two threads.
+        params.put("IdType", "item");
+        params.put("ReturnType", "item");
+        params.put("NonBlocking", "true");
+        params.put("ParallelThreads", "2");
+        params.put("MaxRecordsByRequest", "2");
+        rta.init(logger, mtFetcher, params);
+
+        List<List<RTARequest>> lookups = new ArrayList<>();
+        List<AvailabilityFuture<List<RTARequest>>> updates = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            List<RTARequest> rtaRequests = new ArrayList<>();
+            for (String recordId : new String[] { "1", "2", "3" }) {
+                RTARequest rtaRequest = new RTARequest();
+                prepareStubRtaRequest(rtaRequest, recordId);
+                rtaRequests.add(rtaRequest);
+            }
+            lookups.add(rtaRequests);
+            updates.add(rta.updateAvailabilityAsync(rtaRequests));
+        }
+
+        for (int i = 0; i < 10; i++) {
+            List<RTARequest> rtaRequests = updates.get(i).get(1000, TimeUnit.MILLISECONDS);
+            assertEquals(lookups.get(i), rtaRequests);
+            assertEquals(HoldingStatus.AVAILABLE, rtaRequests.get(0).getLibraries().get(0).getHoldingStatus());
+            assertEquals(HoldingStatus.UNAVAILABLE, rtaRequests.get(1).getLibraries().get(0).getHoldingStatus());
+            assertEquals(HoldingStatus.AVAILABLE, rtaRequests.get(2).getLibraries().get(0).getHoldingStatus());
+        }
+        assertEquals(20, stubServer.getRequests());
+
+        // The end of a chunked response is found from the size of the chunks.
+        stubServer.setLatency(0, 0).setSlowDrip(100, 5);
+        RTARequest chunkedRequest = new RTARequest();
+        prepareStubRtaRequest(chunkedRequest, "2");
+        rta.updateAvailabilityAsync(Collections.singletonList(chunkedRequest)).get(1000, TimeUnit.MILLISECONDS);
+        assertEquals(HoldingStatus.UNAVAILABLE, chunkedRequest.getLibraries().get(0).getHoldingStatus());
+        assertEquals(1, stubServer.getSlowDrips());
+
+        // A response sent too slowly is stopped after the sum of the timeouts,
+        // even when each part is received before the read timeout.
+        stubServer.setSlowDrip(100, 200);
+        RTARequest slowRequest = new RTARequest();
+        prepareStubRtaRequest(slowRequest, "3");
+        long start = System.currentTimeMillis();
+        rta.updateAvailabilityAsync(Collections.singletonList(slowRequest)).get(3000, TimeUnit.MILLISECONDS);
+        assertTrue(System.currentTimeMillis() - start < 1500);
+        assertEquals(HoldingStatus.CHECKHOLDING, slowRequest.getLibraries().get(0).getHoldingStatus());
+        assertEquals(2, stubServer.getSlowDrips());
+        stubServer.setSlowDrip(0, 0);
+
+        // The synchronous process doesn't wait more than the timeouts.
+        stubServer.setLatency(2000, 2000);
+        RTARequest rtaRequest = new RTARequest();
+        prepareStubRtaRequest(rtaRequest, "1");
+        start = System.currentTimeMillis();
+        rta.updateAvailability(Collections.singletonList(rtaRequest));
+        assertTrue(System.currentTimeMillis() - start < 1500);
+        assertEquals(HoldingStatus.CHECKHOLDING, rtaRequest.getLibraries().get(0).getHoldingStatus());
+    }
+
+    @Test
+    public void updateAvailabilityMetrics() throws Exception {
+        stubServer = new IlsdiStubServer();
+        stubServer.start();
+
+        params.put("IdType", "item");
+        params.put("ReturnType", "item");
+        rta.init(logger, mtFetcher, params);
+
+        for (int errorRate : new int[] { 0, 100 }) {
+            stubServer.setErrorRate(errorRate);
+            List<RTARequest> rtaRequests = new ArrayList<>();
+            for (String recordId : new String[] { "1", "2" }) {
+                RTARequest rtaRequest = new RTARequest();
+                prepareStubRtaRequest(rtaRequest, recordId);
+                rtaRequests.add(rtaRequest);
+            }
+            rta.updateAvailability(rtaRequests);
+        }
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = getMetricsName(rta, "Endpoint,url=" + ObjectName.quote(stubServer.getBaseUrl()));
+        assertEquals(2L, server.getAttribute(name, "Requests"));
+        assertEquals(2.0, server.getAttribute(name, "RecordsByRequest"));
+        assertEquals(1L, server.getAttribute(name, "HttpErrors"));
+        assertEquals(0L, server.getAttribute(name, "UnparseableResponses"));
+        assertEquals(true, (Double) server.getAttribute(name, "TotalP99") > 0);
+    }
+
+    @Test
+    public void updateAvailabilityNegativeCache() throws Exception {
+        stubServer = new IlsdiStubServer();
+        stubServer.setMissing("9");
+        stubServer.start();
+
+        params.put("IdType", "item");
+        params.put("ReturnType", "item");
+        params.put("NegativeCacheTtl", "60");
+        rta.init(logger, mtFetcher, params);
+
+        List<RTARequest> rtaRequests = new ArrayList<>();
+        for (String recordId : new String[] { "1", "9" }) {
+            RTARequest rtaRequest = new RTARequest();
+            prepareStubRtaRequest(rtaRequest, recordId);
+            rtaRequests.add(rtaRequest);
+        }
+        rta.updateAvailability(rtaRequests);
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequests.get(0).getLibraries().get(0).getHoldingStatus());
+        assertEquals(HoldingStatus.CHECKHOLDING, rtaRequests.get(1).getLibraries().get(0).getHoldingStatus());
+        assertEquals(1, stubServer.getRequests());
+
+        // The missing record is not requested again.
+        for (int i = 0; i < 2; i++) {
+            RTARequest rtaRequest = new RTARequest();
+            prepareStubRtaRequest(rtaRequest, "9");
+            rta.updateAvailability(Collections.singletonList(rtaRequest));
+            assertEquals(HoldingStatus.CHECKHOLDING, rtaRequest.getLibraries().get(0).getHoldingStatus());
+        }
+        assertEquals(1, stubServer.getRequests());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = getMetricsName(rta, "Metrics");
+        assertEquals(2L, server.getAttribute(name, "MissingRecordsSkipped"));
+        assertEquals(1, server.getAttribute(name, "MissingRecordsEntries"));
+        assertEquals("[" + stubServer.getBaseUrl() + " 9: 2]", server.getAttribute(name, "MostSkippedMissingRecords"));
+    }
+
+    @Test
+    public void updateAvailabilityMirror() throws Exception {
+        stubServer = new IlsdiStubServer();
+        stubServer.setStatus("1", AvailabilityStatus.AVAILABLE);
+        stubServer.setStatus("2", AvailabilityStatus.NOT_AVAILABLE);
+        stubServer.start();
+
+        params.put("IdType", "item");
+        params.put("ReturnType", "item");
+        params.put("HarvestInterval", "1");
+        rta.init(logger, mtFetcher, params);
+
+        // The first request of an institution starts its harvest.
+        RTARequest rtaRequest = new RTARequest();
+        prepareStubRtaRequest(rtaRequest, "1");
+        rta.updateAvailability(Collections.singletonList(rtaRequest));
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequest.getLibraries().get(0).getHoldingStatus());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = getMetricsName(rta, "Metrics");
+        for (int i = 0; i < 100 && (Long) server.getAttribute(name, "MirrorHarvests") < 1; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1L, server.getAttribute(name, "MirrorHarvests"));
+        assertNull(stubServer.getLastHarvestFrom());
+        long requests = stubServer.getRequests();
+
+        // The harvested record is not requested, but the unknown one is.
+        rtaRequest = new RTARequest();
+        prepareStubRtaRequest(rtaRequest, "2");
+        rta.updateAvailability(Collections.singletonList(rtaRequest));
+        assertEquals(HoldingStatus.UNAVAILABLE, rtaRequest.getLibraries().get(0).getHoldingStatus());
+        assertEquals(requests, stubServer.getRequests());
+        rtaRequest = new RTARequest();
+        prepareStubRtaRequest(rtaRequest, "3");
+        rta.updateAvailability(Collections.singletonList(rtaRequest));
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequest.getLibraries().get(0).getHoldingStatus());
+        assertEquals(requests + 1, stubServer.getRequests());
+        assertEquals(3, server.getAttribute(name, "MirrorEntries"));
+
+        // The next harvest requests only the changed records.
+        for (int i = 0; i < 300 && stubServer.getHarvests() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertNotNull(stubServer.getLastHarvestFrom());
+        assertEquals(0, server.getAttribute(name, "MirrorStaleInstitutions"));
+
+        // When the harvests fail for a while, the copy is not used.
+        stubServer.setErrorRate(100);
+        for (int i = 0; i < 600 && (Integer) server.getAttribute(name, "MirrorStaleInstitutions") < 1; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, server.getAttribute(name, "MirrorStaleInstitutions"));
+        assertTrue((Long) server.getAttribute(name, "MirrorAge") >= 3L);
+        requests = stubServer.getRequests();
+        rtaRequest = new RTARequest();
+        prepareStubRtaRequest(rtaRequest, "1");
+        rta.updateAvailability(Collections.singletonList(rtaRequest));
+        assertEquals(HoldingStatus.CHECKHOLDING, rtaRequest.getLibraries().get(0).getHoldingStatus());
+        assertTrue(stubServer.getRequests() > requests);
+
+        // Stop the harvests.
+        params.remove("HarvestInterval");
+        rta.init(logger, mtFetcher, params);
+    }
+
+    @Test
+    public void updateAvailabilityRateLimit() throws Exception {
+        stubServer = new IlsdiStubServer();
+        stubServer.setDefaultStatus(AvailabilityStatus.NOT_AVAILABLE);
+        stubServer.start();
+
+        params.put("IdType", "item");
+        params.put("ReturnType", "item");
+        params.put("RateLimits", stubServer.getBaseUrl() + "=1, http://other.example.org/ilsdi=100");
+        rta.init(logger, mtFetcher, params);
+
+        // The second request is over the rate, so the status is unchanged.
+        List<RTARequest> rtaRequests = new ArrayList<>();
+        for (String recordId : new String[] { "1", "2" }) {
+            RTARequest rtaRequest = new RTARequest();
+            prepareStubRtaRequest(rtaRequest, recordId);
+            rta.updateAvailability(Collections.singletonList(rtaRequest));
+            rtaRequests.add(rtaRequest);
+        }
+        assertEquals(HoldingStatus.UNAVAILABLE, rtaRequests.get(0).getLibraries().get(0).getHoldingStatus());
+        assertEquals(HoldingStatus.CHECKHOLDING, rtaRequests.get(1).getLibraries().get(0).getHoldingStatus());
+        assertEquals(1, stubServer.getRequests());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = getMetricsName(rta, "Metrics");
+        assertEquals(1L, server.getAttribute(name, "RateLimitSkippedRequests"));
+
+        // With a wait, the second request is sent later.
+        params.put("RateLimitWait", "1500");
+        rta.init(logger, mtFetcher, params);
+        long start = System.nanoTime();
+        for (String recordId : new String[] { "3", "4" }) {
+            RTARequest rtaRequest = new RTARequest();
+            prepareStubRtaRequest(rtaRequest, recordId);
+            rta.updateAvailability(Collections.singletonList(rtaRequest));
+            assertEquals(HoldingStatus.UNAVAILABLE, rtaRequest.getLibraries().get(0).getHoldingStatus());
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 900);
+        assertEquals(3, stubServer.getRequests());
+        assertEquals(1L, server.getAttribute(name, "RateLimitDelayedRequests"));
+    }
+
+    @Test
+    public void updateAvailabilityAdmissionControl() throws Exception {
+        stubServer = new IlsdiStubServer();
+        stubServer.setDefaultStatus(AvailabilityStatus.NOT_AVAILABLE).setLatency(300, 300);
+        stubServer.start();
+
+        params.put("IdType", "item");
+        params.put("ReturnType", "item");
+        params.put("CacheTtl", "1");
+        params.put("MaxPendingRequestsByInstitution", "1");
+        rta.init(logger, mtFetcher, params);
+
+        RTARequest known = new RTARequest();
+        prepareStubRtaRequest(known, "1");
+        rta.updateAvailability(Collections.singletonList(known));
+        assertEquals(HoldingStatus.UNAVAILABLE, known.getLibraries().get(0).getHoldingStatus());
+        // Let the cached status expire.
+        Thread.sleep(1100);
+
+        // A slow request is in progress, so the next ones are shed.
+        final RTARequest pending = new RTARequest();
+        prepareStubRtaRequest(pending, "2");
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                rta.updateAvailability(Collections.singletonList(pending));
+            }
+        };
+        thread.start();
+        Thread.sleep(100);
+
+        long start = System.nanoTime();
+        known = new RTARequest();
+        prepareStubRtaRequest(known, "1");
+        rta.updateAvailability(Collections.singletonList(known));
+        RTARequest unknown = new RTARequest();
+        prepareStubRtaRequest(unknown, "3");
+        rta.updateAvailability(Collections.singletonList(unknown));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 250);
+        thread.join();
+
+        // The shed records get their last known status or keep their status.
+        assertEquals(HoldingStatus.UNAVAILABLE, known.getLibraries().get(0).getHoldingStatus());
+        assertEquals(HoldingStatus.CHECKHOLDING, unknown.getLibraries().get(0).getHoldingStatus());
+        assertEquals(HoldingStatus.UNAVAILABLE, pending.getLibraries().get(0).getHoldingStatus());
+        assertEquals(2, stubServer.getRequests());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = getMetricsName(rta, "Metrics");
+        assertEquals(2L, server.getAttribute(name, "AdmissionShedInstitutionRequests"));
+        assertEquals(0L, server.getAttribute(name, "AdmissionShedRequests"));
+        assertEquals(1L, server.getAttribute(name, "AdmissionLastKnownRecords"));
+    }
+
+    @Test
+    public void updateAvailabilityAdaptiveTimeouts() throws Exception {
+        stubServer = new IlsdiStubServer();
+        stubServer.setDefaultStatus(AvailabilityStatus.NOT_AVAILABLE);
+        stubServer.start();
+
+        params.put("IdType", "item");
+        params.put("ReturnType", "item");
+        params.put("AdaptiveTimeoutPercentile", "90");
+        params.put("AdaptiveTimeoutMin", "200");
+        rta.init(logger, mtFetcher, params);
+
+        // The fixed timeouts are used until the response times are known.
+        stubServer.setLatency(400, 400);
+        RTARequest rtaRequest = new RTARequest();
+        prepareStubRtaRequest(rtaRequest, "0");
+        rta.updateAvailability(Collections.singletonList(rtaRequest));
+        assertEquals(HoldingStatus.UNAVAILABLE, rtaRequest.getLibraries().get(0).getHoldingStatus());
+
+        stubServer.setLatency(0, 0);
+        for (int i = 1; i < 20; i++) {
+            rtaRequest = new RTARequest();
+            prepareStubRtaRequest(rtaRequest, String.valueOf(i));
+            rta.updateAvailability(Collections.singletonList(rtaRequest));
+        }
+
+        // A fast remote system that stalls is abandoned quickly.
+        stubServer.setLatency(5000, 5000);
+        rtaRequest = new RTARequest();
+        prepareStubRtaRequest(rtaRequest, "20");
+        long start = System.nanoTime();
+        rta.updateAvailability(Collections.singletonList(rtaRequest));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 900);
+        assertEquals(HoldingStatus.CHECKHOLDING, rtaRequest.getLibraries().get(0).getHoldingStatus());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = getMetricsName(rta, "Endpoint,url=" + ObjectName.quote(stubServer.getBaseUrl()));
+        assertEquals(1L, server.getAttribute(name, "Timeouts"));
+
+        // A remote system that becomes slower than the adapted timeouts is
+        // requested again with longer timeouts.
+        stubServer.setLatency(400, 400);
+        int failures = 0;
+        for (int i = 21; i < 31; i++) {
+            rtaRequest = new RTARequest();
+            prepareStubRtaRequest(rtaRequest, String.valueOf(i));
+            rta.updateAvailability(Collections.singletonList(rtaRequest));
+            if (rtaRequest.getLibraries().get(0).getHoldingStatus() == HoldingStatus.CHECKHOLDING) {
+                failures++;
+            }
+            else {
+                assertEquals(HoldingStatus.UNAVAILABLE, rtaRequest.getLibraries().get(0).getHoldingStatus());
+            }
+        }
+        assertTrue(failures <= 3);
+    }
+
+    @Test
+    public void updateAvailabilityTraces() throws Exception {
+        stubServer = new IlsdiStubServer();
+        stubServer.start();
+
+        params.put("IdType", "item");
+        params.put("ReturnType", "item");
+        params.put("TraceSize", "2");
+        params.put("TraceSampleRate", "100");
+        rta.init(logger, mtFetcher, params);
+
+        for (String recordId : new String[] { "1", "2", "3" }) {
+            // The last request fails.
+            if (recordId.equals("3")) {
+                stubServer.setErrorRate(100);
+            }
+            RTARequest rtaRequest = new RTARequest();
+            prepareStubRtaRequest(rtaRequest, recordId);
+            rta.updateAvailability(Collections.singletonList(rtaRequest));
+        }
+
+        // Only the last requests are kept.
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = getMetricsName(rta, "Metrics");
+        String[] traces = ((String) server.invoke(name, "dumpTraces", null, null)).split("\n");
+        assertEquals(2, traces.length);
+        assertTrue(traces[0].contains(" SUCCESS ") && traces[0].contains("id=2&"));
+        assertTrue(traces[0].contains("<dlf:identifier>2</dlf:identifier>"));
+        assertTrue(traces[0].matches(".*, \\d+ bytes, .*"));
+        assertTrue(traces[1].contains(" HTTP_ERROR ") && traces[1].contains("id=3&"));
+    }
+
+    @Test
+    public void updateAvailabilityCapture() throws Exception {
+        stubServer = new IlsdiStubServer();
+        stubServer.start();
+
+        Path dir = Files.createTempDirectory("rta");
+        Path file = dir.resolve("capture.txt");
+        params.put("IdType", "item");
+        params.put("ReturnType", "item");
+        params.put("CaptureFile", file.toString());
+        rta.init(logger, mtFetcher, params);
+
+        RTARequest rtaRequest = new RTARequest();
+        prepareStubRtaRequest(rtaRequest, "1");
+        rta.updateAvailability(Collections.singletonList(rtaRequest));
+
+        // The batch and the response can be replayed.
+        params.remove("CaptureFile");
+        rta.init(logger, mtFetcher, params);
+        List<String> lines = Files.readAllLines(file, Charset.forName("UTF-8"));
+        assertEquals(4, lines.size());
+        assertTrue(lines.get(0).matches("batch\t\\d+\t1"));
+        assertEquals("record\t1primo\t1", lines.get(1));
+        assertEquals("library\tNCSU\tDHHL\t" + stubServer.getBaseUrl(), lines.get(2));
+        assertTrue(lines.get(3).startsWith("response\t"));
+        assertTrue(lines.get(3).contains("\t" + stubServer.getBaseUrl() + "?service=GetAvailability&id=1&"));
+        assertTrue(lines.get(3).contains("<dlf:identifier>1</dlf:identifier>"));
+
+        Files.delete(file);
+        Files.delete(dir);
+    }
+
+    @Test
+    public void updateAvailabilityConcurrent() throws Exception {
+        stubServer = new IlsdiStubServer();
+        stubServer.setLatency(20, 20);
+        stubServer.start();
+        for (int i = 0; i < 50; i++) {
+            stubServer.setStatus(String.valueOf(i),
+                    i % 2 == 0 ? AvailabilityStatus.AVAILABLE : AvailabilityStatus.NOT_AVAILABLE);
+        }
+
+        params.put("IdType", "item");
+        params.put("ReturnType", "item");
+        params.put("Debug", "false");
+        rta.init(logger, mtFetcher, params);
+
+        // Warm up the connections and the xml tools of the plugin.
+        checkConcurrently(4, 5);
+
+        // The same plugin is shared by all the threads, so each one should get
+        // the status of its own records, without error, and the throughput
+        // should increase with their number, because the remote system is the
+        // bottleneck. It is near 8, so the ratio is loose enough for a busy
+        // test machine, but a global lock would keep it near 1.
+        long single = checkConcurrently(1, 20);
+        long multiple = checkConcurrently(8, 20);
+        assertTrue("8 threads should be at least 4 times quicker than 1 thread, not "
+                + (double) single * 8 / multiple, multiple * 4 <= single * 8);
+    }
+
+    /**
+     * Check records with multiple threads sharing the plugin and fail if a
+     * status is wrong or if a check throws an exception.
+     *
+     * @param threadCount
+     * @param checkCount
+     *            Number of checks by thread.
+     * @return The duration of all the checks, in nanoseconds.
+     * @throws InterruptedException
+     */
+    private long checkConcurrently(int threadCount, final int checkCount) throws InterruptedException {
+        final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            final int offset = i * 7;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < checkCount; j++) {
+                        int recordId = (offset + j) % 50;
+                        RTARequest rtaRequest = new RTARequest();
+                        prepareStubRtaRequest(rtaRequest, String.valueOf(recordId));
+                        try {
+                            rta.updateAvailability(Collections.singletonList(rtaRequest));
+                        } catch (RuntimeException e) {
+                            errors.add(recordId + ": " + e);
+                            continue;
+                        }
+                        HoldingStatus expected = recordId % 2 == 0 ? HoldingStatus.AVAILABLE
+                                : HoldingStatus.UNAVAILABLE;
+                        for (Library library : rtaRequest.getLibraries()) {
+                            if (library.getHoldingStatus() != expected) {
+                                errors.add(recordId + ": " + library.getHoldingStatus());
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long duration = System.nanoTime() - start;
+
+        assertEquals(Collections.emptyList(), errors);
+        return duration;
+    }
+
+    @Test
+    public void convertStatusFromChars() {
+        char[] buffer = "<x>\n  not   available \t</x>".toCharArray();
+        assertEquals(HoldingStatus.UNAVAILABLE, AvailabilityILSDI2Primo.convert(buffer, 3, buffer.length - 7));
+        buffer = " available ".toCharArray();
+        assertEquals(HoldingStatus.AVAILABLE, AvailabilityILSDI2Primo.convert(buffer, 0, buffer.length));
+        assertEquals(null, AvailabilityILSDI2Primo.convert(buffer, 0, 5));
+        buffer = "availablex".toCharArray();
+        assertEquals(null, AvailabilityILSDI2Primo.convert(buffer, 0, buffer.length));
+
+        // A status can be matched in multiple parts.
+        int state = AvailabilityStatus.match(AvailabilityStatus.MATCH_START, "possibly ".toCharArray(), 0, 9);
+        state = AvailabilityStatus.match(state, " available".toCharArray(), 0, 10);
+        assertEquals(AvailabilityStatus.POSSIBLY_AVAILABLE, AvailabilityStatus.getFromMatch(state));
+    }
+
+    @Test
+    public void updateAvailabilityStaxBibBib() {
+        params.put("IdType", "bib");
+        params.put("ReturnType", "bib");
+        params.put("Parser", "stax");
+        rta.init(logger, mtFetcher, params);
+
+        List<RTARequest> rtaRequests = new ArrayList<>();
+        RTARequest rtaRequest = new RTARequest();
+        prepareRtaRequest(rtaRequest, "92005291", "bib");
+        rtaRequests.add(rtaRequest);
+
+        rta.updateAvailability(rtaRequests);
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequest.getLibraries().get(0).getHoldingStatus());
+    }
+
+    @Test
+    public void updateAvailabilityStaxBibItem() {
+        params.put("IdType", "bib");
+        params.put("ReturnType", "item");
+        params.put("Parser", "stax");
+        rta.init(logger, mtFetcher, params);
+
+        List<RTARequest> rtaRequests = new ArrayList<>();
+        RTARequest rtaRequest = new RTARequest();
+        prepareRtaRequest(rtaRequest, "92005291", "item");
+        rtaRequests.add(rtaRequest);
+
+        rta.updateAvailability(rtaRequests);
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequest.getLibraries().get(0).getHoldingStatus());
+    }
+
+    @Test
+    public void updateAvailabilityStaxItemMultiple() {
+        params.put("IdType", "item");
+        params.put("ReturnType", "item");
+        params.put("Parser", "stax");
+        rta.init(logger, mtFetcher, params);
+
+        List<RTARequest> rtaRequests = new ArrayList<>();
+        RTARequest rtaRequest_1 = new RTARequest();
+        prepareRtaRequest(rtaRequest_1, "1", "item");
+        rtaRequests.add(rtaRequest_1);
+        RTARequest rtaRequest_2 = new RTARequest();
+        prepareRtaRequest(rtaRequest_2, "2", "item");
+        rtaRequests.add(rtaRequest_2);
+        RTARequest rtaRequest_99999 = new RTARequest();
+        prepareRtaRequest(rtaRequest_99999, "99999", "item");
+        rtaRequests.add(rtaRequest_99999);
+
+        rta.updateAvailability(rtaRequests);
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequest_1.getLibraries().get(0).getHoldingStatus());
+        assertEquals(HoldingStatus.AVAILABLE, rtaRequest_2.getLibraries().get(0).getHoldingStatus());
+        assertEquals(HoldingStatus.CHECKHOLDING, rtaRequest_99999.getLibraries().get(0).getHoldingStatus());
+    }
+
     /**
      * Helper to get a rta request.
      *
@@ -268,4 +1322,40 @@ public class StandardFlossPhysicalRTAPluginTest {
         libraries.add(library);
         rtaRequest.setLibraries(libraries);
     }
+
+    /**
+     * Get the name of a bean of the metrics of an instance of the plugin.
+     *
+     * @param plugin
+     * @param name
+     *            The name of the bean and its other properties, if any.
+     * @return ObjectName
+     * @throws MalformedObjectNameException
+     */
+    private ObjectName getMetricsName(StandardFlossPhysicalRTAPlugin plugin, String name)
+            throws MalformedObjectNameException {
+        return new ObjectName("net.berthereau.exlibris.rta:type=StandardFlossPhysicalRTAPlugin,instance="
+                + Integer.toHexString(System.identityHashCode(plugin)) + ",name=" + name);
+    }
+
+    /**
+     * Helper to get a rta request for the embedded server.
+     *
+     * @param rtaRequest
+     *            The request to update.
+     * @param recordIdentifier
+     *            The identifier of the record to check.
+     */
+    private void prepareStubRtaRequest(RTARequest rtaRequest, String recordIdentifier) {
+        List<Library> libraries = new ArrayList<>();
+        Library library = new Library();
+        library.setInstitution("NCSU");
+        library.setLibraryCode("DHHL");
+        library.setHoldingStatus(HoldingStatus.CHECKHOLDING);
+        library.setRtaBaseURL(stubServer.getBaseUrl());
+        libraries.add(library);
+        rtaRequest.setPrimoRecordId(recordIdentifier + "primo");
+        rtaRequest.setRecordIdentifier(recordIdentifier);
+        rtaRequest.setLibraries(libraries);
+    }
 }
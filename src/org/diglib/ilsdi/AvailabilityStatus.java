@@ -18,6 +18,20 @@ public enum AvailabilityStatus {
 
     private static HashMap<String, AvailabilityStatus> statusMap = new HashMap<>(AvailabilityStatus.values().length);
 
+    // The values, without the copy done by values().
+    private static final AvailabilityStatus[] VALUES = AvailabilityStatus.values();
+
+    // State of a match: the statuses that can still match (one bit by
+    // status), a pending space and the position in the normalized value.
+    private static final int MATCH_CANDIDATES = (1 << VALUES.length) - 1;
+    private static final int MATCH_PENDING_SPACE = 1 << VALUES.length;
+    private static final int MATCH_POSITION_SHIFT = VALUES.length + 1;
+
+    /**
+     * Initial state of a match of characters against the statuses.
+     */
+    public static final int MATCH_START = MATCH_CANDIDATES;
+
     static {
         for (AvailabilityStatus status : AvailabilityStatus.values()) {
             statusMap.put(status.name, status);
@@ -38,6 +52,92 @@ public enum AvailabilityStatus {
         return statusMap.get(value);
     }
 
+    /**
+     * Match characters against the statuses, without creating any string.
+     *
+     * The characters are normalized as with the XPath function
+     * normalize-space(), so the surrounding whitespaces are ignored. The
+     * characters of a value may be matched in multiple parts, as they are
+     * provided by a xml parser.
+     *
+     * @param state
+     *            The state returned by the previous part, or MATCH_START.
+     * @param buffer
+     * @param start
+     * @param length
+     * @return The new state of the match.
+     */
+    public static int match(int state, char[] buffer, int start, int length) {
+        int candidates = state & MATCH_CANDIDATES;
+        boolean pendingSpace = (state & MATCH_PENDING_SPACE) != 0;
+        int position = state >>> MATCH_POSITION_SHIFT;
+        for (int i = start, end = start + length; i < end && candidates != 0; i++) {
+            char c = buffer[i];
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                pendingSpace = position > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                candidates = matchChar(candidates, position++, ' ');
+                pendingSpace = false;
+            }
+            candidates = matchChar(candidates, position++, c);
+        }
+        return candidates | (pendingSpace ? MATCH_PENDING_SPACE : 0) | (position << MATCH_POSITION_SHIFT);
+    }
+
+    /**
+     * Check if a match can still succeed.
+     *
+     * @param state
+     * @return boolean
+     */
+    public static boolean canMatch(int state) {
+        return (state & MATCH_CANDIDATES) != 0;
+    }
+
+    /**
+     * Get the status matched by all the characters.
+     *
+     * @param state
+     * @return The status, or null if the characters are not a status.
+     */
+    public static AvailabilityStatus getFromMatch(int state) {
+        int candidates = state & MATCH_CANDIDATES;
+        int position = state >>> MATCH_POSITION_SHIFT;
+        for (int i = 0; i < VALUES.length; i++) {
+            if ((candidates & (1 << i)) != 0 && VALUES[i].name.length() == position) {
+                return VALUES[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Allow to check quickly if characters are a ILS-DI availability status,
+     * ignoring surrounding whitespaces.
+     *
+     * @param buffer
+     * @param start
+     * @param length
+     * @return The status, or null if the characters are not a status.
+     */
+    public static AvailabilityStatus getFromChars(char[] buffer, int start, int length) {
+        return getFromMatch(match(MATCH_START, buffer, start, length));
+    }
+
+    private static int matchChar(int candidates, int position, char c) {
+        for (int i = 0; i < VALUES.length; i++) {
+            if ((candidates & (1 << i)) != 0) {
+                String value = VALUES[i].name;
+                if (position >= value.length() || value.charAt(position) != c) {
+                    candidates &= ~(1 << i);
+                }
+            }
+        }
+        return candidates;
+    }
+
     @Override
     public String toString() {
         return name;